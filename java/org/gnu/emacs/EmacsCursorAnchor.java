@@ -0,0 +1,192 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import android.graphics.Matrix;
+
+import android.view.inputmethod.CursorAnchorInfo;
+
+import android.util.Log;
+
+
+
+/* Reporter of the position of a view's cursor to the input method.
+
+   Emacs reports the position of the cursor each time it is
+   redisplayed, which handwriting and floating keyboard input methods
+   ask to be informed of continuously.  Rather than constructing and
+   reporting a CursorAnchorInfo for each position, the latest is
+   recorded, and reported on the UI thread at the start of the next
+   frame, if it differs from the last position reported.
+
+   The transformation from the view's coordinates to those of the
+   screen is likewise computed on the UI thread, and is retained until
+   the view is laid out again or its location on the screen changes,
+   which is checked before each report.
+
+   Positions are recorded by the Emacs thread and reported from the UI
+   thread, so they are synchronized on this object.  */
+
+public final class EmacsCursorAnchor implements Runnable
+{
+  private static final String TAG = "EmacsCursorAnchor";
+
+  /* The view whose cursor is reported.  */
+  private final EmacsView view;
+
+  /* The latest position of the cursor.  */
+  private float x, y, yBaseline, yBottom;
+
+  /* Whether a report has been scheduled.  */
+  private boolean pending;
+
+  /* The position of the cursor last reported.  Only accessed from the
+     UI thread.  */
+  private float lastX, lastY, lastYBaseline, lastYBottom;
+
+  /* Whether the next position should be reported even if it is
+     identical to the last.  */
+  private boolean force;
+
+  /* The transformation from the view's coordinates to those of the
+     screen, and whether it must be computed afresh.  */
+  private final Matrix matrix;
+  private boolean matrixDirty;
+
+  /* The view's location on the screen when the transformation was
+     computed, and an array into which its current location is
+     saved.  */
+  private final int[] offsets, location;
+
+  /* Builder reused to create each CursorAnchorInfo.  */
+  private final CursorAnchorInfo.Builder builder;
+
+  public
+  EmacsCursorAnchor (EmacsView view)
+  {
+    this.view = view;
+    this.matrix = new Matrix ();
+    this.offsets = new int[2];
+    this.location = new int[2];
+    this.builder = new CursorAnchorInfo.Builder ();
+    this.matrixDirty = true;
+    this.force = true;
+  }
+
+  /* Record that the cursor is at X, Y, with a baseline at YBASELINE
+     and its bottom at YBOTTOM, and schedule its report.  Called from
+     the Emacs thread.  */
+
+  public void
+  update (float x, float y, float yBaseline, float yBottom)
+  {
+    synchronized (this)
+      {
+	this.x = x;
+	this.y = y;
+	this.yBaseline = yBaseline;
+	this.yBottom = yBottom;
+
+	if (pending)
+	  return;
+
+	pending = true;
+      }
+
+    view.postOnAnimation (this);
+  }
+
+  /* Functions called from the UI thread.  */
+
+  /* Compute the transformation to screen coordinates afresh before the
+     next report, and report the position even if it is unchanged.
+     Called when the view is laid out.  */
+
+  public void
+  invalidateMatrix ()
+  {
+    matrixDirty = true;
+  }
+
+  /* Report the next position even if it is identical to the last, as
+     the input method has asked to be informed of the position.  */
+
+  public void
+  invalidate ()
+  {
+    force = true;
+  }
+
+  /* Report the latest position of the cursor, if it or the view's
+     location on the screen has changed.  */
+
+  @Override
+  public void
+  run ()
+  {
+    float x, y, yBaseline, yBottom;
+
+    synchronized (this)
+      {
+	x = this.x;
+	y = this.y;
+	yBaseline = this.yBaseline;
+	yBottom = this.yBottom;
+	pending = false;
+      }
+
+    /* The view might be moved without being laid out, as when the
+       window containing it is.  */
+
+    view.getLocationOnScreen (location);
+
+    if (location[0] != offsets[0] || location[1] != offsets[1])
+      matrixDirty = true;
+
+    if (!force && !matrixDirty && x == lastX && y == lastY
+	&& yBaseline == lastYBaseline && yBottom == lastYBottom)
+      return;
+
+    if (matrixDirty)
+      {
+	matrix.set (view.getMatrix ());
+	offsets[0] = location[0];
+	offsets[1] = location[1];
+	matrix.postTranslate (offsets[0], offsets[1]);
+	matrixDirty = false;
+      }
+
+    force = false;
+    lastX = x;
+    lastY = y;
+    lastYBaseline = yBaseline;
+    lastYBottom = yBottom;
+
+    if (EmacsService.DEBUG_IC)
+      Log.d (TAG, ("run: " + x + " " + y + " " + yBaseline + "-"
+		   + yBottom));
+
+    /* The builder copies the matrix into each CursorAnchorInfo.  */
+    builder.reset ();
+    builder.setMatrix (matrix);
+    builder.setInsertionMarkerLocation (x, y, yBaseline, yBottom, 0);
+    view.imManager.updateCursorAnchorInfo (view, builder.build ());
+  }
+};
@@ -0,0 +1,932 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import android.util.Log;
+
+
+
+/* Index of the files within a directory tree, which enables the
+   documents provider to search Emacs's home directory without
+   walking it afresh for each query.
+
+   The index is built on a thread of its own, and is subsequently
+   kept up to date by monitoring each directory within the tree with
+   a FileObserver, and by the documents provider, which reports
+   changes it makes itself.
+
+   Each file is assigned a number, and the trigrams (sequences of
+   three characters) within its name and, if requested, within the
+   contents of text files are entered into an inverted index, which
+   maps each trigram to a sorted list of the numbers of the files
+   containing it.  A query is answered by intersecting the lists of
+   the trigrams within it.
+
+   Numbers are assigned in ascending order, so that each list remains
+   sorted as files are added.  The numbers of files that are removed
+   or modified are not reused, but remain in the lists till so many
+   accumulate that the lists are rebuilt, at which point the files
+   that remain are numbered afresh.  The total length of the lists is
+   limited to MAX_POSTINGS, past which the contents of further files
+   are not indexed.
+
+   Queries are made from the documents provider's binder threads,
+   so the index is synchronized on this object.  */
+
+public final class EmacsDocumentIndex
+{
+  private static final String TAG = "EmacsDocumentIndex";
+
+  /* Maximum number of directories monitored for changes.  */
+  private static final int MAX_WATCHES = 4096;
+
+  /* Number of bytes at the start of each text file whose trigrams are
+     recorded.  */
+  private static final int CONTENT_SIZE_LIMIT = 256 * 1024;
+
+  /* Maximum number of file numbers within every list of the inverted
+     index, each of which occupies four bytes.  */
+  private static final int MAX_POSTINGS = 4 * 1024 * 1024;
+
+  /* Minimum number of the numbers of removed files within the
+     inverted index before it is rebuilt.  */
+  private static final int MIN_COMPACTION = 64 * 1024;
+
+  /* Bit set in the trigrams of file names, which distinguishes them
+     from those of file contents.  */
+  private static final long NAME_TRIGRAM = 1L << 48;
+
+  private static final class Entry
+  {
+    /* The absolute file name of this file.  */
+    String path;
+
+    /* Its name in lower case.  */
+    String foldedName;
+
+    /* Whether it is a directory.  */
+    boolean directory;
+
+    /* The number assigned to this file, or -1 if it has been
+       removed.  */
+    int number;
+
+    /* Number of lists in the inverted index containing that
+       number.  */
+    int postings;
+  };
+
+  /* Sorted list of the numbers of the files containing a
+     trigram.  */
+
+  private static final class PostingList
+  {
+    /* The numbers, of which the first COUNT are in use.  */
+    int[] numbers;
+    int count;
+
+    public
+    PostingList ()
+    {
+      numbers = new int[2];
+    }
+
+    /* Append NUMBER to this list.  */
+
+    public void
+    add (int number)
+    {
+      if (count == numbers.length)
+	numbers = Arrays.copyOf (numbers, count * 2);
+
+      numbers[count++] = number;
+    }
+  };
+
+  /* The directory indexed.  */
+  private final File root;
+
+  /* Whether to record the trigrams within text files.  */
+  private final boolean indexContents;
+
+  /* Function run once the index is first complete.  */
+  private final Runnable completion;
+
+  /* Map between absolute file names and index entries.  */
+  private final HashMap<String, Entry> entries;
+
+  /* Array of index entries by number, in which the entries of removed
+     files are NULL, and the number to be assigned to the next
+     file.  */
+  private Entry[] files;
+  private int nextNumber;
+
+  /* The inverted index, a map between trigrams and the lists of the
+     files containing them.  */
+  private final HashMap<Long, PostingList> postings;
+
+  /* Number of file numbers within the inverted index, and how many of
+     those are the numbers of removed files.  */
+  private int postingCount, deadPostings;
+
+  /* Whether the contents of a file have been left unindexed for want
+     of space.  */
+  private boolean budgetExhausted;
+
+  /* Map between directories and the objects monitoring them, sorted
+     so that those within a directory are adjacent.  These are only
+     accessed from the index thread.  */
+  private final TreeMap<String, FileObserver> observers;
+
+  /* The distinct trigrams within the contents of the file last read,
+     and the buffer into which it is read.  These are only accessed
+     from the index thread.  */
+  private final HashSet<Long> trigrams;
+  private final char[] readBuffer;
+
+  /* Whether the index has been built.  */
+  private boolean complete;
+
+  /* Handler for the index thread.  */
+  private Handler handler;
+
+  /* Create an index of the files within ROOT.  If INDEXCONTENTS,
+     record the contents of text files as well.  Run COMPLETION on the
+     index thread once it is complete.  */
+
+  public
+  EmacsDocumentIndex (File root, boolean indexContents,
+		      Runnable completion)
+  {
+    this.root = root;
+    this.indexContents = indexContents;
+    this.completion = completion;
+    this.entries = new HashMap<String, Entry> ();
+    this.observers = new TreeMap<String, FileObserver> ();
+    this.files = new Entry[256];
+    this.postings = new HashMap<Long, PostingList> ();
+    this.trigrams = new HashSet<Long> ();
+    this.readBuffer = new char[8192];
+  }
+
+  /* Start building the index.  */
+
+  public void
+  start ()
+  {
+    HandlerThread thread;
+
+    thread = new HandlerThread ("Document index thread");
+    thread.start ();
+    handler = new Handler (thread.getLooper ());
+    handler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  indexDirectory (root);
+
+	  synchronized (EmacsDocumentIndex.this)
+	    {
+	      complete = true;
+	    }
+
+	  completion.run ();
+	}
+      });
+  }
+
+  /* Return whether the index has been built.  */
+
+  public synchronized boolean
+  isComplete ()
+  {
+    return complete;
+  }
+
+  /* Return STRING in lower case, folding each character individually,
+     so that the trigrams of queries and of file contents read
+     piecemeal agree.  */
+
+  private static String
+  fold (String string)
+  {
+    char[] chars;
+    int i;
+
+    chars = string.toCharArray ();
+
+    for (i = 0; i < chars.length; ++i)
+      chars[i] = Character.toLowerCase (chars[i]);
+
+    return new String (chars);
+  }
+
+  /* Return the trigram formed by the characters A, B and C.  */
+
+  private static long
+  trigram (char a, char b, char c)
+  {
+    return ((long) a << 32) | ((long) b << 16) | c;
+  }
+
+
+
+  /* Functions that modify the index, which must be called with it
+     locked.  */
+
+  /* Assign a number to ENTRY and enter it into the index, with the
+     trigrams within its name, and if CONTENTS, those within
+     `trigrams', which are the trigrams within its contents.  */
+
+  private void
+  addEntry (Entry entry, boolean contents)
+  {
+    Entry old;
+    String name;
+    int i, count;
+
+    old = entries.put (entry.path, entry);
+
+    if (old != null)
+      removeEntry (old);
+
+    if (nextNumber == files.length)
+      files = Arrays.copyOf (files, files.length * 2);
+
+    entry.number = nextNumber++;
+    files[entry.number] = entry;
+
+    /* Index the trigrams within its name.  The same trigram might
+       appear more than once, but its list will then end with this
+       file's number.  */
+
+    name = entry.foldedName;
+
+    for (i = 0; i + 2 < name.length (); ++i)
+      addPosting (entry, (trigram (name.charAt (i), name.charAt (i + 1),
+				   name.charAt (i + 2))
+			  | NAME_TRIGRAM));
+
+    count = trigrams.size ();
+
+    if (!contents || count == 0)
+      return;
+
+    if (postingCount + count > MAX_POSTINGS)
+      compact ();
+
+    if (postingCount + count > MAX_POSTINGS)
+      {
+	if (!budgetExhausted)
+	  Log.w (TAG, ("Index of file contents is full; contents of "
+		       + entry.path + " and subsequent files will not be"
+		       + " indexed"));
+
+	budgetExhausted = true;
+	return;
+      }
+
+    for (Long trigram : trigrams)
+      addPosting (entry, trigram);
+  }
+
+  /* Append the number of ENTRY to the list of TRIGRAM, unless it is
+     already present.  */
+
+  private void
+  addPosting (Entry entry, long trigram)
+  {
+    PostingList list;
+
+    list = postings.get (trigram);
+
+    if (list == null)
+      {
+	list = new PostingList ();
+	postings.put (trigram, list);
+      }
+    else if (list.numbers[list.count - 1] == entry.number)
+      return;
+
+    list.add (entry.number);
+    entry.postings++;
+    postingCount++;
+  }
+
+  /* Remove ENTRY from the index.  Its number is removed from the
+     inverted index once sufficiently many such numbers accumulate.  */
+
+  private void
+  removeEntry (Entry entry)
+  {
+    if (entry.number < 0)
+      return;
+
+    files[entry.number] = null;
+    entry.number = -1;
+    deadPostings += entry.postings;
+
+    if (deadPostings >= MIN_COMPACTION
+	&& deadPostings * 2 >= postingCount)
+      compact ();
+  }
+
+  /* Remove the numbers of removed files from the inverted index, and
+     renumber the files that remain consecutively.  */
+
+  private void
+  compact ()
+  {
+    int[] numbers;
+    Entry[] newFiles;
+    Iterator<PostingList> iter;
+    PostingList list;
+    int i, j, count, number, remaining;
+
+    if (deadPostings == 0)
+      return;
+
+    /* Number the files that remain in their existing order, so that
+       lists remain sorted.  */
+
+    numbers = new int[nextNumber];
+    newFiles = new Entry[Math.max (256, entries.size () * 2)];
+    remaining = 0;
+
+    for (i = 0; i < nextNumber; ++i)
+      {
+	if (files[i] == null)
+	  {
+	    numbers[i] = -1;
+	    continue;
+	  }
+
+	numbers[i] = remaining;
+	files[i].number = remaining;
+	newFiles[remaining++] = files[i];
+      }
+
+    /* Renumber the files within each list, removing those that no
+       longer exist.  */
+
+    postingCount = 0;
+    iter = postings.values ().iterator ();
+
+    while (iter.hasNext ())
+      {
+	list = iter.next ();
+	count = 0;
+
+	for (j = 0; j < list.count; ++j)
+	  {
+	    number = numbers[list.numbers[j]];
+
+	    if (number >= 0)
+	      list.numbers[count++] = number;
+	  }
+
+	if (count == 0)
+	  iter.remove ();
+	else
+	  list.count = count;
+
+	postingCount += count;
+      }
+
+    files = newFiles;
+    nextNumber = remaining;
+    deadPostings = 0;
+    budgetExhausted = false;
+  }
+
+
+
+  /* Functions run on the index thread.  */
+
+  /* Record DIRECTORY and each of its children in the index, save for
+     DIRECTORY itself if it is the root of the index, and monitor
+     them for changes.  */
+
+  private void
+  indexDirectory (File directory)
+  {
+    ArrayDeque<File> stack;
+    File[] files;
+    String canonicalName;
+    boolean isDirectory;
+
+    stack = new ArrayDeque<File> ();
+    stack.push (directory);
+
+    if (!directory.equals (root))
+      indexFile (directory, true);
+
+    while (!stack.isEmpty ())
+      {
+	directory = stack.pop ();
+	watchDirectory (directory);
+	files = directory.listFiles ();
+
+	try
+	  {
+	    canonicalName = directory.getCanonicalPath ();
+	  }
+	catch (IOException e)
+	  {
+	    canonicalName = null;
+	  }
+
+	if (files == null)
+	  continue;
+
+	for (File file : files)
+	  {
+	    isDirectory = file.isDirectory ();
+	    indexFile (file, isDirectory);
+
+	    /* Don't follow symlinks to directories, which might lead
+	       to the same directory being indexed repeatedly.  */
+
+	    if (isDirectory && canonicalName != null
+		&& isCanonical (file, canonicalName))
+	      stack.push (file);
+	  }
+      }
+  }
+
+  /* Return whether FILE, a child of a directory whose canonical name
+     is PARENT, is not a symbolic link.  */
+
+  private static boolean
+  isCanonical (File file, String parent)
+  {
+    try
+      {
+	return file.getCanonicalPath ().equals (parent + "/"
+						+ file.getName ());
+      }
+    catch (IOException e)
+      {
+	return false;
+      }
+  }
+
+  /* Enter FILE, which is a directory if DIRECTORY, into the index.  */
+
+  private void
+  indexFile (File file, boolean directory)
+  {
+    Entry entry;
+    String name;
+    boolean contents;
+
+    name = file.getName ();
+    entry = new Entry ();
+    entry.path = file.getAbsolutePath ();
+    entry.foldedName = fold (name);
+    entry.directory = directory;
+    contents = (indexContents && !directory
+		&& EmacsMimeTypes.getMimeType (name).startsWith ("text/"));
+
+    if (contents)
+      readTrigrams (file);
+
+    synchronized (this)
+      {
+	addEntry (entry, contents);
+      }
+  }
+
+  /* Read the distinct trigrams within the first CONTENT_SIZE_LIMIT
+     bytes of FILE, in lower case, into `trigrams', which is left
+     empty if FILE cannot be read.  */
+
+  private void
+  readTrigrams (File file)
+  {
+    FileInputStream stream;
+    Reader reader;
+    char a, b, c;
+    int read, i, seen;
+
+    stream = null;
+    trigrams.clear ();
+
+    try
+      {
+	stream = new FileInputStream (file);
+
+	/* Limit the number of bytes read, though the last character
+	   might thus be truncated.  */
+	reader = new InputStreamReader (new LimitedInputStream (stream),
+					"UTF-8");
+	a = b = 0;
+	seen = 0;
+
+	while ((read = reader.read (readBuffer)) > 0)
+	  {
+	    for (i = 0; i < read; ++i)
+	      {
+		c = Character.toLowerCase (readBuffer[i]);
+
+		if (++seen >= 3)
+		  trigrams.add (trigram (a, b, c));
+
+		a = b;
+		b = c;
+	      }
+	  }
+      }
+    catch (IOException e)
+      {
+	trigrams.clear ();
+      }
+    finally
+      {
+	if (stream != null)
+	  {
+	    try
+	      {
+		stream.close ();
+	      }
+	    catch (IOException e)
+	      {
+		/* Ignore errors closing a file that was read.  */
+	      }
+	  }
+      }
+  }
+
+  /* Input stream that reads no more than CONTENT_SIZE_LIMIT bytes from
+     another.  */
+
+  private static final class LimitedInputStream
+    extends FilterInputStream
+  {
+    /* Number of bytes that remain to be read.  */
+    private int remaining;
+
+    public
+    LimitedInputStream (InputStream stream)
+    {
+      super (stream);
+      remaining = CONTENT_SIZE_LIMIT;
+    }
+
+    @Override
+    public int
+    read ()
+      throws IOException
+    {
+      int value;
+
+      if (remaining <= 0)
+	return -1;
+
+      value = super.read ();
+
+      if (value >= 0)
+	remaining--;
+
+      return value;
+    }
+
+    @Override
+    public int
+    read (byte[] buffer, int offset, int length)
+      throws IOException
+    {
+      int read;
+
+      if (remaining <= 0)
+	return -1;
+
+      read = super.read (buffer, offset, Math.min (length, remaining));
+
+      if (read > 0)
+	remaining -= read;
+
+      return read;
+    }
+  };
+
+  /* Monitor DIRECTORY for changes to its children, unless
+     MAX_WATCHES directories are already being monitored.  */
+
+  @SuppressWarnings ("deprecation") /* FileObserver (String, int) */
+  private void
+  watchDirectory (File directory)
+  {
+    FileObserver observer;
+    final String path;
+    int mask;
+
+    path = directory.getAbsolutePath ();
+
+    if (observers.containsKey (path)
+	|| observers.size () >= MAX_WATCHES)
+      return;
+
+    mask = (FileObserver.CREATE | FileObserver.DELETE
+	    | FileObserver.MOVED_FROM | FileObserver.MOVED_TO);
+
+    if (indexContents)
+      mask |= FileObserver.CLOSE_WRITE;
+
+    observer = new FileObserver (path, mask) {
+	@Override
+	public void
+	onEvent (int event, String name)
+	{
+	  if (name != null)
+	    postUpdate (path + "/" + name);
+	}
+      };
+
+    observer.startWatching ();
+    observers.put (path, observer);
+  }
+
+  /* Bring the index entry for PATH and its children, if any, up to
+     date.  */
+
+  private void
+  update (String path)
+  {
+    File file;
+    String prefix;
+    Entry old;
+    Iterator<Map.Entry<String, Entry>> iter;
+    Iterator<FileObserver> observerIter;
+    Map.Entry<String, Entry> entry;
+    FileObserver watch;
+
+    prefix = path + "/";
+
+    synchronized (this)
+      {
+	old = entries.remove (path);
+
+	if (old != null)
+	  removeEntry (old);
+
+	/* Only a directory can have children within the index.  */
+
+	if (old != null && old.directory)
+	  {
+	    iter = entries.entrySet ().iterator ();
+
+	    while (iter.hasNext ())
+	      {
+		entry = iter.next ();
+
+		if (entry.getKey ().startsWith (prefix))
+		  {
+		    removeEntry (entry.getValue ());
+		    iter.remove ();
+		  }
+	      }
+	  }
+      }
+
+    /* Stop monitoring directories that might have been removed, which
+       are PATH and those whose names begin with PREFIX.  */
+
+    watch = observers.remove (path);
+
+    if (watch != null)
+      watch.stopWatching ();
+
+    observerIter = observers.subMap (prefix, prefix + '\uffff')
+      .values ().iterator ();
+
+    while (observerIter.hasNext ())
+      {
+	observerIter.next ().stopWatching ();
+	observerIter.remove ();
+      }
+
+    file = new File (path);
+
+    if (file.isDirectory ())
+      indexDirectory (file);
+    else if (file.exists ())
+      indexFile (file, false);
+  }
+
+
+
+  /* Bring the index entry for the file PATH, which might have been
+     created, modified, removed or renamed, up to date.  If PATH is a
+     directory, so are those for its children.  */
+
+  public void
+  postUpdate (final String path)
+  {
+    if (!path.startsWith (root.getAbsolutePath () + "/"))
+      return;
+
+    handler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  try
+	    {
+	      update (path);
+	    }
+	  catch (Exception e)
+	    {
+	      Log.w (TAG, "Failed to update index for " + path + ": " + e);
+	    }
+	}
+      });
+  }
+
+  /* Return the sorted numbers of the files within the lists of each
+     of the trigrams within QUERY, a string in lower case, that are
+     marked with FLAG, and the length of that array in *COUNT.  */
+
+  private int[]
+  intersect (String query, long flag, int[] count)
+  {
+    PostingList[] lists;
+    PostingList shortest;
+    int[] result;
+    int i, j, n, number, length;
+    long key;
+
+    n = query.length () - 2;
+    lists = new PostingList[n];
+
+    for (i = 0; i < n; ++i)
+      {
+	key = (trigram (query.charAt (i), query.charAt (i + 1),
+			query.charAt (i + 2))
+	       | flag);
+	lists[i] = postings.get (key);
+
+	if (lists[i] == null)
+	  {
+	    count[0] = 0;
+	    return null;
+	  }
+      }
+
+    /* Begin with the shortest list.  */
+
+    shortest = lists[0];
+
+    for (i = 1; i < n; ++i)
+      {
+	if (lists[i].count < shortest.count)
+	  shortest = lists[i];
+      }
+
+    result = new int[shortest.count];
+    length = 0;
+
+  outer:
+    for (j = 0; j < shortest.count; ++j)
+      {
+	number = shortest.numbers[j];
+
+	if (files[number] == null)
+	  continue;
+
+	for (i = 0; i < n; ++i)
+	  {
+	    if (lists[i] != shortest
+		&& Arrays.binarySearch (lists[i].numbers, 0,
+					lists[i].count, number) < 0)
+	      continue outer;
+	  }
+
+	result[length++] = number;
+      }
+
+    count[0] = length;
+    return result;
+  }
+
+  /* Return the absolute file names of the files whose names or (if
+     the contents of files are being indexed) contents contain QUERY,
+     disregarding case.
+
+     A file is held to contain QUERY within its contents if they
+     contain each trigram within QUERY, which is not necessarily true
+     of QUERY itself.  */
+
+  public synchronized String[]
+  search (String query)
+  {
+    String[] results;
+    int[] names, contents, count;
+    int i, j, length, nameCount, contentCount;
+    Entry entry;
+
+    query = fold (query);
+
+    /* Shorter queries contain no trigrams; compare them with the name
+       of each file.  */
+
+    if (query.length () < 3)
+      {
+	results = new String[entries.size ()];
+	length = 0;
+
+	for (i = 0; i < nextNumber; ++i)
+	  {
+	    entry = files[i];
+
+	    if (entry != null && entry.foldedName.contains (query))
+	      results[length++] = entry.path;
+	  }
+
+	return Arrays.copyOf (results, length);
+      }
+
+    count = new int[1];
+    names = intersect (query, NAME_TRIGRAM, count);
+    nameCount = count[0];
+
+    /* The trigrams within a name are exact, so a name containing
+       each of them need only be compared with QUERY.  */
+
+    for (i = j = 0; i < nameCount; ++i)
+      {
+	if (files[names[i]].foldedName.contains (query))
+	  names[j++] = names[i];
+      }
+
+    nameCount = j;
+    contents = null;
+    contentCount = 0;
+
+    if (indexContents)
+      {
+	contents = intersect (query, 0, count);
+	contentCount = count[0];
+      }
+
+    /* Merge both sorted arrays of numbers.  */
+
+    results = new String[nameCount + contentCount];
+    i = j = length = 0;
+
+    while (i < nameCount || j < contentCount)
+      {
+	if (j == contentCount
+	    || (i < nameCount && names[i] < contents[j]))
+	  results[length++] = files[names[i++]].path;
+	else if (i == nameCount || contents[j] < names[i])
+	  results[length++] = files[contents[j++]].path;
+	else
+	  {
+	    results[length++] = files[names[i]].path;
+	    i++;
+	    j++;
+	  }
+      }
+
+    return Arrays.copyOf (results, length);
+  }
+};
@@ -21,20 +21,24 @@
 
 import android.content.Context;
 
+import android.database.AbstractCursor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 
 import android.os.Build;
+import android.os.Bundle;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import static android.provider.DocumentsContract.buildChildDocumentsUri;
 import android.provider.DocumentsProvider;
 
-import android.webkit.MimeTypeMap;
-
 import android.net.Uri;
 
 import java.io.File;
@@ -43,6 +47,19 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 /* ``Documents provider''.  This allows Emacs's home directory to be
    modified by other programs holding permissions to manage system
    storage, which is useful to (for example) correct misconfigurations
@@ -62,6 +79,97 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
   /* The default projection for requests for a file.  */
   private static final String[] DEFAULT_DOCUMENT_PROJECTION;
 
+  /* Number of children read before `queryChildDocuments' returns.
+     The remainder of a larger directory is read in the background,
+     and retrieved when the requesting application next queries that
+     directory.  */
+  private static final int LISTING_PAGE_SIZE = 256;
+
+  /* Number of children read in the background in between each test
+     of whether the listing has been discarded.  */
+  private static final int LISTING_CHUNK_SIZE = 64;
+
+  /* Number of milliseconds after which a completed listing that has
+     not been retrieved is discarded.  */
+  private static final int LISTING_TIMEOUT = 10000;
+
+  /* The status of a child of a directory being listed.  */
+
+  private static final class ChildDocument
+  {
+    /* The absolute file name and display name of this child.  */
+    String documentId, displayName;
+
+    /* Whether it is a directory, and whether it is writable.  */
+    boolean directory, writable;
+
+    /* Its size and last modification time.  */
+    long size, lastModified;
+  };
+
+  /* The listing of a directory, which might be incomplete.  */
+
+  private static final class Listing
+  {
+    /* The document ID of the directory.  */
+    String directory;
+
+    /* Stream and iterator from which its children are read.  */
+    DirectoryStream<Path> stream;
+    Iterator<Path> iterator;
+
+    /* Children read so far.  */
+    final ArrayList<ChildDocument> children
+      = new ArrayList<ChildDocument> ();
+
+    /* Whether every child has been read, and when.  */
+    boolean complete;
+    long completionTime;
+
+    /* Whether this listing has been discarded, which directs the
+       listing thread to stop reading it.  */
+    boolean discarded;
+  };
+
+  /* Map between directories and listings of their contents that are
+     either being read or have yet to be retrieved.  */
+  private final HashMap<String, Listing> listings
+    = new HashMap<String, Listing> ();
+
+  /* Handler for the thread on which directories are read, or NULL if
+     it has not been started.  */
+  private Handler listingHandler;
+
+  /* Number of documents in each page of the results of a search,
+     whose rows are created as they are read.  */
+  private static final int SEARCH_PAGE_SIZE = 64;
+
+  /* Index of the files within the home directory, or NULL if it has
+     not been created.  */
+  private EmacsDocumentIndex index;
+
+  /* URIs of searches whose results were returned before the index was
+     complete, which are notified once it is.  */
+  private final ArrayList<Uri> pendingSearches = new ArrayList<Uri> ();
+
+  /* Number of milliseconds by which change notifications are delayed,
+     so that those for the same URI are sent only once.  */
+  private static final int NOTIFICATION_DELAY = 100;
+
+  /* URIs for which change notifications are pending.  */
+  private final HashSet<Uri> pendingNotifications = new HashSet<Uri> ();
+
+  /* Handler through which change notifications are sent.  */
+  private Handler notificationHandler;
+
+  /* Maximum number of recently modified documents recorded.  */
+  private static final int MAX_RECENT_DOCUMENTS = 64;
+
+  /* Recently modified documents, from the least to the most recent.
+     The values are not significant.  */
+  private final LinkedHashMap<String, Boolean> recentDocuments
+    = new LinkedHashMap<String, Boolean> ();
+
   static
   {
     DEFAULT_ROOT_PROJECTION = new String[] {
@@ -91,6 +199,7 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
   {
     /* Set the base directory to Emacs's files directory.  */
     baseDir = getContext ().getFilesDir ();
+    notificationHandler = new Handler (Looper.getMainLooper ());
     return true;
   }
 
@@ -118,7 +227,9 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
     /* Add the appropriate flags.  */
 
     row.add (Root.COLUMN_FLAGS, (Root.FLAG_SUPPORTS_CREATE
-				 | Root.FLAG_SUPPORTS_IS_CHILD));
+				 | Root.FLAG_SUPPORTS_IS_CHILD
+				 | Root.FLAG_SUPPORTS_SEARCH
+				 | Root.FLAG_SUPPORTS_RECENTS));
     row.add (Root.COLUMN_ICON, R.drawable.emacs);
     row.add (Root.FLAG_LOCAL_ONLY);
     row.add (Root.COLUMN_TITLE, "Emacs");
@@ -139,6 +250,37 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
     return updatedUri;
   }
 
+  /* Inform the system that the contents of URI have changed after
+     NOTIFICATION_DELAY, unless such a notification is already
+     pending.  Operations on directories can change many files within
+     the same directory in quick succession, each of which would
+     otherwise direct every application observing it to query it
+     again.  */
+
+  private void
+  postNotification (final Uri uri)
+  {
+    synchronized (pendingNotifications)
+      {
+	if (!pendingNotifications.add (uri))
+	  return;
+      }
+
+    notificationHandler.postDelayed (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  synchronized (pendingNotifications)
+	    {
+	      pendingNotifications.remove (uri);
+	    }
+
+	  getContext ().getContentResolver ().notifyChange (uri, null);
+	}
+      }, NOTIFICATION_DELAY);
+  }
+
   /* Inform the system that FILE's contents (or FILE itself) has
      changed.  */
 
@@ -146,13 +288,12 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
   notifyChange (File file)
   {
     Uri updatedUri;
-    Context context;
 
-    context = getContext ();
     updatedUri
       = buildChildDocumentsUri ("org.gnu.emacs",
 				file.getAbsolutePath ());
-    context.getContentResolver ().notifyChange (updatedUri, null);
+    discardListing (file.getAbsolutePath ());
+    postNotification (updatedUri);
   }
 
   /* Inform the system that FILE's contents (or FILE itself) has
@@ -163,41 +304,193 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
   notifyChangeByName (String file)
   {
     Uri updatedUri;
-    Context context;
 
-    context = getContext ();
     updatedUri
       = buildChildDocumentsUri ("org.gnu.emacs", file);
-    context.getContentResolver ().notifyChange (updatedUri, null);
+    discardListing (file);
+    postNotification (updatedUri);
   }
 
-  /* Return the MIME type of a file FILE.  */
+  /* Return the URI of the list of recently modified documents.  */
 
-  private String
-  getMimeType (File file)
+  private Uri
+  getRecentsUri ()
   {
-    String name, extension, mime;
-    int extensionSeparator;
-    MimeTypeMap singleton;
+    return DocumentsContract.buildRecentDocumentsUri ("org.gnu.emacs",
+						      baseDir.getAbsolutePath ());
+  }
 
-    if (file.isDirectory ())
-      return Document.MIME_TYPE_DIR;
+  /* Record that the document DOCUMENTID has been modified, discarding
+     the least recently modified document if more than
+     MAX_RECENT_DOCUMENTS are recorded.  */
+
+  private void
+  addRecentDocument (String documentId)
+  {
+    Iterator<String> iter;
+
+    synchronized (recentDocuments)
+      {
+	recentDocuments.remove (documentId);
+	recentDocuments.put (documentId, Boolean.TRUE);
+	iter = recentDocuments.keySet ().iterator ();
+
+	while (recentDocuments.size () > MAX_RECENT_DOCUMENTS)
+	  {
+	    iter.next ();
+	    iter.remove ();
+	  }
+      }
+
+    postNotification (getRecentsUri ());
+  }
+
+  /* Remove the document DOCUMENTID, and any documents within it if
+     it is a directory, from the list of recently modified documents.
+     Value is whether any document was removed.  */
 
-    /* Abuse WebView stuff to get the file's MIME type.  */
-    name = file.getName ();
-    extensionSeparator = name.lastIndexOf ('.');
+  private boolean
+  removeRecentDocument (String documentId)
+  {
+    Iterator<String> iter;
+    String prefix, name;
+    boolean removed;
+
+    prefix = documentId + "/";
+    removed = false;
 
-    if (extensionSeparator > 0)
+    synchronized (recentDocuments)
       {
-	singleton = MimeTypeMap.getSingleton ();
-	extension = name.substring (extensionSeparator + 1);
-	mime = singleton.getMimeTypeFromExtension (extension);
+	iter = recentDocuments.keySet ().iterator ();
 
-	if (mime != null)
-	  return mime;
+	while (iter.hasNext ())
+	  {
+	    name = iter.next ();
+
+	    if (name.equals (documentId) || name.startsWith (prefix))
+	      {
+		iter.remove ();
+		removed = true;
+	      }
+	  }
       }
 
-    return "application/octet-stream";
+    if (removed)
+      postNotification (getRecentsUri ());
+
+    return removed;
+  }
+
+  /* Record that FILE has been renamed to NEWNAME in the list of
+     recently modified documents, renaming FILE and any documents
+     within it if it is a directory without changing their positions
+     within that list.  Any document previously named NEWNAME, or
+     within it, is removed, as it has been replaced.  */
+
+  private void
+  renameRecentDocument (File file, File newName)
+  {
+    String oldPath, newPath, oldPrefix, newPrefix;
+    String[] names;
+    boolean[] renamed;
+    HashSet<String> newNames;
+    int i;
+
+    oldPath = file.getAbsolutePath ();
+    newPath = newName.getAbsolutePath ();
+    oldPrefix = oldPath + "/";
+    newPrefix = newPath + "/";
+
+    synchronized (recentDocuments)
+      {
+	names = recentDocuments.keySet ().toArray (new String[0]);
+	renamed = new boolean[names.length];
+	newNames = new HashSet<String> ();
+
+	for (i = 0; i < names.length; ++i)
+	  {
+	    if (names[i].equals (oldPath))
+	      names[i] = newPath;
+	    else if (names[i].startsWith (oldPrefix))
+	      names[i] = (newPrefix
+			  + names[i].substring (oldPrefix.length ()));
+	    else
+	      continue;
+
+	    renamed[i] = true;
+	    newNames.add (names[i]);
+	  }
+
+	if (newNames.isEmpty ())
+	  return;
+
+	/* LinkedHashMap cannot rename its keys, so rebuild the list
+	   in the same order.  */
+
+	recentDocuments.clear ();
+
+	for (i = 0; i < names.length; ++i)
+	  {
+	    if (renamed[i] || !newNames.contains (names[i]))
+	      recentDocuments.put (names[i], Boolean.TRUE);
+	  }
+      }
+
+    postNotification (getRecentsUri ());
+  }
+
+  @Override
+  public Cursor
+  queryRecentDocuments (String rootId, String[] projection)
+  {
+    MatrixCursor result;
+    String[] documents;
+    File file;
+    int i;
+
+    if (projection == null)
+      projection = DEFAULT_DOCUMENT_PROJECTION;
+
+    synchronized (recentDocuments)
+      {
+	documents = recentDocuments.keySet ().toArray (new String[0]);
+      }
+
+    result = new MatrixCursor (projection);
+
+    /* Return the most recently modified documents first.  */
+
+    for (i = documents.length - 1; i >= 0; --i)
+      {
+	file = new File (documents[i]);
+
+	if (file.isFile ())
+	  queryDocument1 (result, file);
+      }
+
+    result.setNotificationUri (getContext ().getContentResolver (),
+			       getRecentsUri ());
+    return result;
+  }
+
+  /* Return the MIME type of a file FILE.  */
+
+  private String
+  getMimeType (File file)
+  {
+    return getMimeType (file.getName (), file.isDirectory ());
+  }
+
+  /* Return the MIME type of a file named NAME, which is a directory
+     if DIRECTORY.  */
+
+  private String
+  getMimeType (String name, boolean directory)
+  {
+    if (directory)
+      return Document.MIME_TYPE_DIR;
+
+    return EmacsMimeTypes.getMimeType (name);
   }
 
   /* Append the specified FILE to the query result RESULT.
@@ -205,23 +498,34 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
 
   private void
   queryDocument1 (MatrixCursor result, File file)
+  {
+    /* fileName is a string that the system will ask for some time in
+       the future.  Here, it is just the absolute name of the file.  */
+    queryDocument2 (result, file.getAbsolutePath (), file.getName (),
+		    file.isDirectory (), file.canWrite (), file.length (),
+		    file.lastModified ());
+  }
+
+  /* Append a row describing the file DOCUMENTID named DISPLAYNAME to
+     RESULT.  DIRECTORY, WRITABLE, SIZE and LASTMODIFIED are its
+     type, accessibility, size and last modification time.  */
+
+  private void
+  queryDocument2 (MatrixCursor result, String documentId,
+		  String displayName, boolean directory,
+		  boolean writable, long size, long lastModified)
   {
     MatrixCursor.RowBuilder row;
-    String fileName, displayName, mimeType;
     int flags;
 
     row = result.newRow ();
     flags = 0;
 
-    /* fileName is a string that the system will ask for some time in
-       the future.  Here, it is just the absolute name of the file.  */
-    fileName = file.getAbsolutePath ();
-
     /* If file is a directory, add the right flags for that.  */
 
-    if (file.isDirectory ())
+    if (directory)
       {
-	if (file.canWrite ())
+	if (writable)
 	  {
 	    flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
 	    flags |= Document.FLAG_SUPPORTS_DELETE;
@@ -233,7 +537,7 @@ public final class EmacsDocumentsProvider extends DocumentsProvider
 	      flags |= Document.FLAG_SUPPORTS_MOVE;
 	  }
       }
-    else if (file.canWrite ())
+    else if (writable)
       {
 	/* Apply the correct flags for a writable file.  */
 	flags |= Document.FLAG_SUPPORTS_WRITE;
@@ -249,14 +553,12 @@ else if (file.canWrite ())
 	  }
       }
 
-    displayName = file.getName ();
-    mimeType = getMimeType (file);
-
-    row.add (Document.COLUMN_DOCUMENT_ID, fileName);
+    row.add (Document.COLUMN_DOCUMENT_ID, documentId);
     row.add (Document.COLUMN_DISPLAY_NAME, displayName);
-    row.add (Document.COLUMN_SIZE, file.length ());
-    row.add (Document.COLUMN_MIME_TYPE, mimeType);
-    row.add (Document.COLUMN_LAST_MODIFIED, file.lastModified ());
+    row.add (Document.COLUMN_SIZE, size);
+    row.add (Document.COLUMN_MIME_TYPE,
+	     getMimeType (displayName, directory));
+    row.add (Document.COLUMN_LAST_MODIFIED, lastModified);
     row.add (Document.COLUMN_FLAGS, flags);
   }
 
@@ -285,12 +587,283 @@ else if (file.canWrite ())
     return result;
   }
 
+  /* Return a new ChildDocument describing the file PATH.  */
+
+  private static ChildDocument
+  readChildDocument (Path path)
+  {
+    ChildDocument child;
+    BasicFileAttributes attributes;
+
+    child = new ChildDocument ();
+    child.documentId = path.toString ();
+    child.displayName = path.getFileName ().toString ();
+
+    try
+      {
+	/* Read the type, size and modification time of PATH with a
+	   single system call.  */
+	attributes = Files.readAttributes (path,
+					   BasicFileAttributes.class);
+	child.directory = attributes.isDirectory ();
+	child.size = attributes.size ();
+	child.lastModified = attributes.lastModifiedTime ().toMillis ();
+      }
+    catch (IOException e)
+      {
+	/* PATH might be a dangling symlink.  List it as an empty file,
+	   as `File' would.  */
+      }
+
+    child.writable = Files.isWritable (path);
+    return child;
+  }
+
+  /* Read up to LIMIT further children into LISTING.  Value is true if
+     every child has been read, in which case its stream is closed.  */
+
+  private static boolean
+  fillListing (Listing listing, int limit)
+  {
+    ChildDocument child;
+    int i;
+    boolean complete;
+
+    complete = true;
+
+    try
+      {
+	for (i = 0; i < limit; ++i)
+	  {
+	    if (!listing.iterator.hasNext ())
+	      break;
+
+	    child = readChildDocument (listing.iterator.next ());
+
+	    synchronized (listing)
+	      {
+		listing.children.add (child);
+	      }
+	  }
+
+	complete = i < limit;
+      }
+    catch (DirectoryIteratorException e)
+      {
+	/* Return the children read so far.  */
+      }
+
+    if (complete)
+      closeListing (listing);
+
+    return complete;
+  }
+
+  /* Close the stream from which LISTING is read.  */
+
+  private static void
+  closeListing (Listing listing)
+  {
+    try
+      {
+	listing.stream.close ();
+      }
+    catch (IOException e)
+      {
+	/* Nothing else can be done.  */
+      }
+  }
+
+  /* Read the remainder of LISTING on the listing thread, then notify
+     applications that have queried its directory, which will retrieve
+     it when they query that directory again.  */
+
+  private synchronized void
+  postFillListing (final Listing listing)
+  {
+    HandlerThread thread;
+
+    if (listingHandler == null)
+      {
+	thread = new HandlerThread ("Documents provider listing thread");
+	thread.start ();
+	listingHandler = new Handler (thread.getLooper ());
+      }
+
+    listingHandler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  boolean complete;
+
+	  do
+	    {
+	      synchronized (listing)
+		{
+		  if (listing.discarded)
+		    {
+		      closeListing (listing);
+		      return;
+		    }
+		}
+
+	      complete = fillListing (listing, LISTING_CHUNK_SIZE);
+	    }
+	  while (!complete);
+
+	  synchronized (listing)
+	    {
+	      listing.complete = true;
+	      listing.completionTime = System.currentTimeMillis ();
+
+	      if (listing.discarded)
+		return;
+	    }
+
+	  getContext ().getContentResolver ()
+	    .notifyChange (getNotificationUri (new File (listing.directory)),
+			   null);
+	}
+      });
+  }
+
+  /* Discard any listing of the directory DIRECTORY, which should be
+     called when its contents change.  */
+
+  private void
+  discardListing (String directory)
+  {
+    Listing listing;
+
+    synchronized (listings)
+      {
+	listing = listings.remove (directory);
+      }
+
+    if (listing != null)
+      {
+	synchronized (listing)
+	  {
+	    listing.discarded = true;
+	  }
+      }
+  }
+
+  /* Discard completed listings that have not been retrieved within
+     LISTING_TIMEOUT.  Call this with `listings' locked.  */
+
+  private void
+  pruneListings ()
+  {
+    Iterator<Listing> iter;
+    Listing listing;
+    long now;
+
+    now = System.currentTimeMillis ();
+    iter = listings.values ().iterator ();
+
+    while (iter.hasNext ())
+      {
+	listing = iter.next ();
+
+	synchronized (listing)
+	  {
+	    if (listing.complete
+		&& now - listing.completionTime > LISTING_TIMEOUT)
+	      iter.remove ();
+	  }
+      }
+  }
+
+  /* Return a cursor holding the children of the directory
+     PARENTDOCUMENTID read so far, with the columns in PROJECTION.
+
+     The first LISTING_PAGE_SIZE children are read before this function
+     returns.  If the directory holds more, the remainder are read in
+     the background, and the cursor returned bears EXTRA_LOADING to
+     indicate that the application should query the directory again
+     once it is notified of a change.  */
+
+  private Cursor
+  queryChildDocuments1 (String parentDocumentId, String[] projection)
+  {
+    MatrixCursor result;
+    Listing listing;
+    Bundle extras;
+    boolean loading;
+
+    result = new MatrixCursor (projection);
+
+    synchronized (listings)
+      {
+	pruneListings ();
+	listing = listings.get (parentDocumentId);
+
+	/* A complete listing is retrieved only once.  */
+
+	if (listing != null && listing.complete)
+	  listings.remove (parentDocumentId);
+      }
+
+    if (listing == null)
+      {
+	listing = new Listing ();
+	listing.directory = parentDocumentId;
+
+	try
+	  {
+	    listing.stream
+	      = Files.newDirectoryStream (Paths.get (parentDocumentId));
+	  }
+	catch (Exception e)
+	  {
+	    /* Return an empty cursor, as `File.listFiles' would.  */
+	    return result;
+	  }
+
+	listing.iterator = listing.stream.iterator ();
+
+	if (fillListing (listing, LISTING_PAGE_SIZE))
+	  listing.complete = true;
+	else
+	  {
+	    synchronized (listings)
+	      {
+		listings.put (parentDocumentId, listing);
+	      }
+
+	    postFillListing (listing);
+	  }
+      }
+
+    synchronized (listing)
+      {
+	for (ChildDocument child : listing.children)
+	  queryDocument2 (result, child.documentId, child.displayName,
+			  child.directory, child.writable, child.size,
+			  child.lastModified);
+
+	loading = !listing.complete;
+      }
+
+    if (loading)
+      {
+	extras = new Bundle ();
+	extras.putBoolean (DocumentsContract.EXTRA_LOADING, true);
+	result.setExtras (extras);
+      }
+
+    return result;
+  }
+
   @Override
   public Cursor
   queryChildDocuments (String parentDocumentId, String[] projection,
 		       String sortOrder) throws FileNotFoundException
   {
-    MatrixCursor result;
+    Cursor result;
+    MatrixCursor matrixCursor;
     File directory;
     File[] files;
     Context context;
@@ -298,20 +871,30 @@ else if (file.canWrite ())
     if (projection == null)
       projection = DEFAULT_DOCUMENT_PROJECTION;
 
-    result = new MatrixCursor (projection);
-
     /* Try to open the file corresponding to the location being
        requested.  */
     directory = new File (parentDocumentId);
 
-    /* Look up each child.  */
-    files = directory.listFiles ();
-
-    if (files != null)
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+      /* Read directories incrementally where java.nio.file is
+	 available, as Emacs's home directory can hold package trees
+	 with thousands of files.  */
+      result = queryChildDocuments1 (parentDocumentId, projection);
+    else
       {
-	/* Now add each child.  */
-	for (File child : files)
-	  queryDocument1 (result, child);
+	matrixCursor = new MatrixCursor (projection);
+
+	/* Look up each child.  */
+	files = directory.listFiles ();
+
+	if (files != null)
+	  {
+	    /* Now add each child.  */
+	    for (File child : files)
+	      queryDocument1 (matrixCursor, child);
+	  }
+
+	result = matrixCursor;
       }
 
     context = getContext ();
@@ -323,13 +906,251 @@ else if (file.canWrite ())
     return result;
   }
 
+  /* Return the index of the home directory, creating it if it does
+     not yet exist.  Its contents are indexed if Emacs is running and
+     `android-index-document-contents' is enabled.  */
+
+  private synchronized EmacsDocumentIndex
+  getIndex ()
+  {
+    boolean indexContents;
+    Runnable completion;
+
+    if (index != null)
+      return index;
+
+    indexContents = (EmacsService.SERVICE != null
+		     && EmacsNative.shouldIndexDocumentContents ());
+    completion = new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  notifyPendingSearches ();
+	}
+      };
+    index = new EmacsDocumentIndex (baseDir, indexContents,
+				    completion);
+    index.start ();
+    return index;
+  }
+
+  /* Notify applications that have searched the home directory before
+     the index was complete that the results have changed.  */
+
+  private void
+  notifyPendingSearches ()
+  {
+    Uri[] uris;
+    Context context;
+
+    synchronized (pendingSearches)
+      {
+	uris = pendingSearches.toArray (new Uri[0]);
+	pendingSearches.clear ();
+      }
+
+    context = getContext ();
+
+    for (Uri uri : uris)
+      context.getContentResolver ().notifyChange (uri, null);
+  }
+
+  /* Bring the index entry for the file PATH up to date, if the index
+     exists.  Call this after creating, deleting or renaming PATH.  */
+
+  private void
+  updateIndex (String path)
+  {
+    EmacsDocumentIndex index;
+
+    synchronized (this)
+      {
+	index = this.index;
+      }
+
+    if (index != null)
+      index.postUpdate (path);
+  }
+
+  /* Cursor over the results of a search, whose rows are created
+     SEARCH_PAGE_SIZE at a time as they are read, rather than for
+     every file matched at once.  */
+
+  private final class SearchCursor extends AbstractCursor
+  {
+    /* The absolute file names of the files matched.  */
+    private final String[] paths;
+
+    /* The columns requested.  */
+    private final String[] projection;
+
+    /* The rows of the page holding the current position, and the
+       position of its first row, or -1.  */
+    private MatrixCursor page;
+    private int pageStart;
+
+    public
+    SearchCursor (String[] paths, String[] projection)
+    {
+      this.paths = paths;
+      this.projection = projection;
+      this.pageStart = -1;
+    }
+
+    @Override
+    public int
+    getCount ()
+    {
+      return paths.length;
+    }
+
+    @Override
+    public String[]
+    getColumnNames ()
+    {
+      return projection;
+    }
+
+    @Override
+    public boolean
+    onMove (int oldPosition, int newPosition)
+    {
+      int start, end, i;
+
+      start = newPosition - newPosition % SEARCH_PAGE_SIZE;
+
+      if (start != pageStart)
+	{
+	  end = Math.min (start + SEARCH_PAGE_SIZE, paths.length);
+	  page = new MatrixCursor (projection, end - start);
+
+	  for (i = start; i < end; ++i)
+	    queryDocument1 (page, new File (paths[i]));
+
+	  pageStart = start;
+	}
+
+      return page.moveToPosition (newPosition - start);
+    }
+
+    @Override
+    public String
+    getString (int column)
+    {
+      return page.getString (column);
+    }
+
+    @Override
+    public short
+    getShort (int column)
+    {
+      return page.getShort (column);
+    }
+
+    @Override
+    public int
+    getInt (int column)
+    {
+      return page.getInt (column);
+    }
+
+    @Override
+    public long
+    getLong (int column)
+    {
+      return page.getLong (column);
+    }
+
+    @Override
+    public float
+    getFloat (int column)
+    {
+      return page.getFloat (column);
+    }
+
+    @Override
+    public double
+    getDouble (int column)
+    {
+      return page.getDouble (column);
+    }
+
+    @Override
+    public int
+    getType (int column)
+    {
+      return page.getType (column);
+    }
+
+    @Override
+    public boolean
+    isNull (int column)
+    {
+      return page.isNull (column);
+    }
+  };
+
+  @Override
+  public Cursor
+  querySearchDocuments (String rootId, String query,
+			String[] projection)
+    throws FileNotFoundException
+  {
+    SearchCursor result;
+    EmacsDocumentIndex index;
+    String[] paths;
+    Uri searchUri;
+    Bundle extras;
+    boolean loading;
+
+    if (projection == null)
+      projection = DEFAULT_DOCUMENT_PROJECTION;
+
+    index = getIndex ();
+    searchUri = DocumentsContract.buildSearchDocumentsUri ("org.gnu.emacs",
+							   rootId, query);
+
+    /* If the index is incomplete, arrange for the application to be
+       notified once it is, so that the search can be repeated.  */
+
+    synchronized (pendingSearches)
+      {
+	loading = !index.isComplete ();
+
+	if (loading)
+	  pendingSearches.add (searchUri);
+      }
+
+    paths = index.search (query);
+    result = new SearchCursor (paths, projection);
+    result.setNotificationUri (getContext ().getContentResolver (),
+			       searchUri);
+
+    if (loading && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+      {
+	extras = new Bundle ();
+	extras.putBoolean (DocumentsContract.EXTRA_LOADING, true);
+	result.setExtras (extras);
+      }
+
+    return result;
+  }
+
   @Override
   public ParcelFileDescriptor
   openDocument (String documentId, String mode,
 		CancellationSignal signal) throws FileNotFoundException
   {
-    return ParcelFileDescriptor.open (new File (documentId),
-				      ParcelFileDescriptor.parseMode (mode));
+    ParcelFileDescriptor fd;
+
+    fd = ParcelFileDescriptor.open (new File (documentId),
+				    ParcelFileDescriptor.parseMode (mode));
+
+    if (mode.indexOf ('w') >= 0)
+      addRecentDocument (documentId);
+
+    return fd;
   }
 
   @Override
@@ -376,6 +1197,11 @@ else if (file.canWrite ())
     if (parentFile != null)
       notifyChange (parentFile);
 
+    updateIndex (file.getAbsolutePath ());
+
+    if (!Document.MIME_TYPE_DIR.equals (mimeType))
+      addRecentDocument (file.getAbsolutePath ());
+
     return file.getAbsolutePath ();
   }
 
@@ -426,6 +1252,8 @@ else if (file.canWrite ())
       {
 	/* Tell the system about the change.  */
 	notifyChange (parent);
+	updateIndex (file.getAbsolutePath ());
+	removeRecentDocument (file.getAbsolutePath ());
 	return;
       }
 
@@ -438,8 +1266,12 @@ else if (file.canWrite ())
       }
 
     if (file.delete ())
-      /* Tell the system about the change.  */
-      notifyChange (parent);
+      {
+	/* Tell the system about the change.  */
+	notifyChange (parent);
+	updateIndex (file.getAbsolutePath ());
+	removeRecentDocument (file.getAbsolutePath ());
+      }
   }
 
   @Override
@@ -478,6 +1310,9 @@ else if (file.canWrite ())
       return null;
 
     notifyChange (parent);
+    updateIndex (file.getAbsolutePath ());
+    updateIndex (newName.getAbsolutePath ());
+    renameRecentDocument (file, newName);
     return newName.getAbsolutePath ();
   }
 
@@ -514,6 +1349,9 @@ else if (file.canWrite ())
       {
 	notifyChangeByName (file.getParent ());
 	notifyChangeByName (targetParentDocumentId);
+	updateIndex (file.getAbsolutePath ());
+	updateIndex (newName.getAbsolutePath ());
+	renameRecentDocument (file, newName);
 	return newName.getAbsolutePath ();
       }
 
@@ -572,6 +1410,9 @@ else if (file.canWrite ())
     file.delete ();
     notifyChangeByName (file.getParent ());
     notifyChangeByName (targetParentDocumentId);
+    updateIndex (file.getAbsolutePath ());
+    updateIndex (newName.getAbsolutePath ());
+    renameRecentDocument (file, newName);
 
     return newName.getAbsolutePath ();
   }
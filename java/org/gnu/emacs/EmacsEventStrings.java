@@ -0,0 +1,173 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/* Record of the character strings delivered with recent key events,
+   which Emacs retrieves by the serials of those events when they are
+   read.
+
+   Strings are saved by the UI thread and retrieved by the Emacs
+   thread, and each thread is the only one to do so, so the record is
+   kept in a ring buffer without locking.  The UI thread stores each
+   string with the serial of its event into the slot after the last,
+   and then publishes it by incrementing `head'; the Emacs thread
+   examines the slots between the last it consumed and `head'.  Each
+   string and its serial are stored together in an immutable object,
+   so a slot being overwritten as it is read yields either the old
+   pair or the new, never one's serial with the other's string.
+
+   A key event is sent to Emacs before its serial is known, so Emacs
+   might read it before its string is saved.  The UI thread sets
+   `saving' while sending such an event, and the Emacs thread waits
+   for it to be cleared before concluding that an event has no
+   string.  */
+
+public final class EmacsEventStrings
+{
+  /* Number of strings retained, which must be a power of two.  */
+  private static final int CAPACITY = 16;
+
+  /* A string and the serial of its event.  */
+
+  private static final class Slot
+  {
+    final int serial;
+    final String string;
+
+    public
+    Slot (int serial, String string)
+    {
+      this.serial = serial;
+      this.string = string;
+    }
+  };
+
+  /* The contents of each slot.  */
+  private final AtomicReferenceArray<Slot> slots;
+
+  /* Number of strings ever saved.  Only modified by the UI
+     thread.  */
+  private volatile long head;
+
+  /* Number of slots consumed by the Emacs thread.  Only accessed from
+     the Emacs thread.  */
+  private long tail;
+
+  /* Whether the UI thread is sending an event whose string is yet to
+     be saved.  */
+  private volatile boolean saving;
+
+  public
+  EmacsEventStrings ()
+  {
+    slots = new AtomicReferenceArray<Slot> (CAPACITY);
+  }
+
+  /* Functions called from the UI thread.  */
+
+  /* Announce that an event whose string will be saved is about to be
+     sent to Emacs.  */
+
+  public void
+  beginSave ()
+  {
+    saving = true;
+  }
+
+  /* Save STRING as that of the event SERIAL.  */
+
+  public void
+  save (int serial, String string)
+  {
+    long index;
+
+    index = head;
+    slots.set ((int) index & (CAPACITY - 1), new Slot (serial, string));
+
+    /* Publish the slot.  */
+    head = index + 1;
+  }
+
+  /* Announce that the string announced by `beginSave' has been
+     saved.  */
+
+  public void
+  endSave ()
+  {
+    saving = false;
+  }
+
+  /* Functions called from the Emacs thread.  */
+
+  /* Return the string saved for the event SERIAL within the slots
+     that have yet to be consumed, or NULL if there is none.  */
+
+  private String
+  find (int serial)
+  {
+    long end, i;
+    Slot slot;
+
+    end = head;
+
+    /* Slots older than the last CAPACITY have been overwritten.  A
+       slot might also be overwritten while it is being read, but then
+       its serial will be that of the newer event.  */
+
+    for (i = Math.max (tail, end - CAPACITY); i < end; ++i)
+      {
+	slot = slots.get ((int) i & (CAPACITY - 1));
+
+	if (slot.serial != serial)
+	  continue;
+
+	tail = i + 1;
+	return slot.string;
+      }
+
+    return null;
+  }
+
+  /* Return and remove the string saved for the event SERIAL, or NULL
+     if there is none.  */
+
+  public String
+  lookup (int serial)
+  {
+    boolean wasSaving;
+    String string;
+
+    while (true)
+      {
+	/* Read `saving' before the slots, so that a string saved
+	   after they are read is not overlooked.  */
+	wasSaving = saving;
+	string = find (serial);
+
+	if (string != null || !wasSaving)
+	  return string;
+
+	Thread.yield ();
+      }
+  }
+};
@@ -19,6 +19,8 @@
 
 package org.gnu.emacs;
 
+import java.util.Arrays;
+
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -55,6 +57,28 @@ public final class EmacsInputConnection implements InputConnection
      `endBatchEdit'.  */
   private int batchEditCount;
 
+  /* Operations that are queued within batch edits.  Keep these in
+     synch with `applyEdits' in androidterm.c.  */
+  private static final int EDIT_COMMIT_TEXT		= 0;
+  private static final int EDIT_SET_COMPOSING_TEXT	= 1;
+  private static final int EDIT_DELETE_SURROUNDING_TEXT = 2;
+  private static final int EDIT_SET_COMPOSING_REGION	= 3;
+
+  /* Edits queued within the current batch edit, which are sent to
+     Emacs at once when it ends or another request must be answered.
+     Each consists of three elements of `edits', an operation and its
+     two arguments, and an element of `editTexts' holding its text, if
+     any.  */
+  private int[] edits;
+  private String[] editTexts;
+
+  /* Number of edits queued.  */
+  private int editCount;
+
+  /* Whether text has been committed within the current batch
+     edit.  */
+  private boolean committedInBatch;
+
   /* Whether or not to synchronize and call `updateIC' with the
      selection position after committing text.
 
@@ -97,6 +121,66 @@ public final class EmacsInputConnection implements InputConnection
   {
     this.view = view;
     this.windowHandle = view.window.handle;
+    this.edits = new int[48];
+    this.editTexts = new String[16];
+  }
+
+
+
+  /* Queue an edit consisting of OPERATION, ARG1, ARG2 and TEXT till
+     the current batch edit ends.  */
+
+  private void
+  queueEdit (int operation, int arg1, int arg2, String text)
+  {
+    if (editCount == editTexts.length)
+      {
+	edits = Arrays.copyOf (edits, edits.length * 2);
+	editTexts = Arrays.copyOf (editTexts, editTexts.length * 2);
+      }
+
+    edits[editCount * 3] = operation;
+    edits[editCount * 3 + 1] = arg1;
+    edits[editCount * 3 + 2] = arg2;
+    editTexts[editCount++] = text;
+  }
+
+  /* Send each queued edit to Emacs, and conclude a batch edit if
+     ENDBATCH.  This must be called before any other request is sent
+     to Emacs, so that Emacs receives edits in the order in which they
+     were performed, and queries reflect each of them.  */
+
+  private void
+  flushEdits (boolean endBatch)
+  {
+    if (editCount == 0 && !endBatch)
+      return;
+
+    EmacsNative.applyEdits (windowHandle, edits, editTexts, editCount,
+			    endBatch);
+    Arrays.fill (editTexts, 0, editCount, null);
+    editCount = 0;
+  }
+
+  /* Synchronize with the Emacs thread, obtain the new selection, and
+     report it immediately.  */
+
+  private void
+  syncSelection ()
+  {
+    int[] selection;
+
+    selection = EmacsNative.getSelection (windowHandle);
+
+    if (EmacsService.DEBUG_IC && selection != null)
+      Log.d (TAG, "syncSelection: new selection is " + selection[0]
+	     + ", by " + selection[1]);
+
+    if (selection != null)
+      /* N.B. that the composing region is removed after text is
+	 committed.  */
+      view.imManager.updateSelection (view, selection[0],
+				      selection[1], -1, -1);
   }
 
 
@@ -133,7 +217,9 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "endBatchEdit");
 
-    EmacsNative.endBatchEdit (windowHandle);
+    /* Send the edits queued within this batch edit to Emacs, together
+       with its conclusion.  */
+    flushEdits (true);
 
     /* Subtract one from the UI thread record of the number of batch
        edits currently under way.  */
@@ -141,6 +227,15 @@ public final class EmacsInputConnection implements InputConnection
     if (batchEditCount > 0)
       batchEditCount -= 1;
 
+    /* Report the selection once, after the outermost batch edit, if
+       text was committed within.  */
+
+    if (batchEditCount == 0 && committedInBatch)
+      {
+	committedInBatch = false;
+	syncSelection ();
+      }
+
     return batchEditCount > 0;
   }
 
@@ -154,6 +249,8 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "commitCompletion: " + info);
 
+    flushEdits (false);
+
     EmacsNative.commitCompletion (windowHandle,
 				  info.getText ().toString (),
 				  info.getPosition ());
@@ -177,8 +274,6 @@ public final class EmacsInputConnection implements InputConnection
   public boolean
   commitText (CharSequence text, int newCursorPosition)
   {
-    int[] selection;
-
     /* Return if the input connection is out of date.  */
     if (view.icSerial < view.icGeneration)
       return false;
@@ -186,26 +281,22 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "commitText: " + text + " " + newCursorPosition);
 
-    EmacsNative.commitText (windowHandle, text.toString (),
-			    newCursorPosition);
+    /* Within a batch edit, queue this edit and defer reporting the
+       selection until the batch edit ends.  */
 
-    if (syncAfterCommit)
+    if (batchEditCount > 0)
       {
-	/* Synchronize with the Emacs thread, obtain the new
-	   selection, and report it immediately.  */
-
-	selection = EmacsNative.getSelection (windowHandle);
+	queueEdit (EDIT_COMMIT_TEXT, newCursorPosition, 0,
+		   text.toString ());
+	committedInBatch |= syncAfterCommit;
+	return true;
+      }
 
-	if (EmacsService.DEBUG_IC && selection != null)
-	  Log.d (TAG, "commitText: new selection is " + selection[0]
-		 + ", by " + selection[1]);
+    EmacsNative.commitText (windowHandle, text.toString (),
+			    newCursorPosition);
 
-	if (selection != null)
-	  /* N.B. that the composing region is removed after text is
-	     committed.  */
-	  view.imManager.updateSelection (view, selection[0],
-					  selection[1], -1, -1);
-      }
+    if (syncAfterCommit)
+      syncSelection ();
 
     return true;
   }
@@ -230,8 +321,12 @@ public final class EmacsInputConnection implements InputConnection
       Log.d (TAG, ("deleteSurroundingText: "
 		   + leftLength + " " + rightLength));
 
-    EmacsNative.deleteSurroundingText (windowHandle, leftLength,
-				       rightLength);
+    if (batchEditCount > 0)
+      queueEdit (EDIT_DELETE_SURROUNDING_TEXT, leftLength, rightLength,
+		 null);
+    else
+      EmacsNative.deleteSurroundingText (windowHandle, leftLength,
+					 rightLength);
     return true;
   }
 
@@ -256,6 +351,8 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "finishComposingText");
 
+    flushEdits (false);
+
     EmacsNative.finishComposingText (windowHandle);
     return true;
   }
@@ -264,6 +361,8 @@ public final class EmacsInputConnection implements InputConnection
   public String
   getSelectedText (int flags)
   {
+    String string;
+
     /* Return if the input connection is out of date.  */
     if (view.icSerial < view.icGeneration)
       return null;
@@ -271,6 +370,16 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "getSelectedText: " + flags);
 
+    flushEdits (false);
+
+    /* Answer from the text mirrored on this thread if it is up to
+       date.  An empty string means the mark is inactive.  */
+
+    string = view.textMirror.getSelectedText ();
+
+    if (string != null)
+      return string.length () > 0 ? string : null;
+
     return EmacsNative.getSelectedText (windowHandle, flags);
   }
 
@@ -287,8 +396,13 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "getTextAfterCursor: " + length + " " + flags);
 
-    string = EmacsNative.getTextAfterCursor (windowHandle, length,
-					     flags);
+    flushEdits (false);
+
+    string = view.textMirror.getTextAfterCursor (length);
+
+    if (string == null)
+      string = EmacsNative.getTextAfterCursor (windowHandle, length,
+					       flags);
 
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "   --> " + string);
@@ -309,8 +423,13 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "getTextBeforeCursor: " + length + " " + flags);
 
-    string = EmacsNative.getTextBeforeCursor (windowHandle, length,
-					      flags);
+    flushEdits (false);
+
+    string = view.textMirror.getTextBeforeCursor (length);
+
+    if (string == null)
+      string = EmacsNative.getTextBeforeCursor (windowHandle, length,
+						flags);
 
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "   --> " + string);
@@ -330,8 +449,12 @@ public final class EmacsInputConnection implements InputConnection
       Log.d (TAG, ("setComposingText: "
 		   + text + " ## " + newCursorPosition));
 
-    EmacsNative.setComposingText (windowHandle, text.toString (),
-				  newCursorPosition);
+    if (batchEditCount > 0)
+      queueEdit (EDIT_SET_COMPOSING_TEXT, newCursorPosition, 0,
+		 text.toString ());
+    else
+      EmacsNative.setComposingText (windowHandle, text.toString (),
+				    newCursorPosition);
     return true;
   }
 
@@ -354,7 +477,10 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "setComposingRegion: " + start + " " + end);
 
-    EmacsNative.setComposingRegion (windowHandle, start, end);
+    if (batchEditCount > 0)
+      queueEdit (EDIT_SET_COMPOSING_REGION, start, end, null);
+    else
+      EmacsNative.setComposingRegion (windowHandle, start, end);
     return true;
   }
 
@@ -376,6 +502,8 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "performEditorAction: " + editorAction);
 
+    flushEdits (false);
+
     EmacsNative.performEditorAction (windowHandle, editorAction);
     return true;
   }
@@ -393,6 +521,8 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "performContextMenuAction: " + contextMenuAction);
 
+    flushEdits (false);
+
     /* Translate the action in Java code.  That way, a great deal of
        JNI boilerplate can be avoided.  */
 
@@ -445,6 +575,8 @@ public final class EmacsInputConnection implements InputConnection
       Log.d (TAG, "getExtractedText: " + request.hintMaxChars + ", "
 	     + request.hintMaxLines + " " + flags);
 
+    flushEdits (false);
+
     /* If a request arrives with hintMaxChars, hintMaxLines and flags
        set to 0, and the system is known to be buggy, return an empty
        extracted text object with the absolute selection positions.  */
@@ -498,6 +630,8 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "setSelection: " + start + " " + end);
 
+    flushEdits (false);
+
     EmacsNative.setSelection (windowHandle, start, end);
     return true;
   }
@@ -515,6 +649,8 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "sendKeyEvent: " + key);
 
+    flushEdits (false);
+
     /* Use the standard API if possible.  */
 
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
@@ -555,6 +691,13 @@ public final class EmacsInputConnection implements InputConnection
     if (EmacsService.DEBUG_IC)
       Log.d (TAG, "requestCursorUpdates: " + cursorUpdateMode);
 
+    flushEdits (false);
+
+    /* Report the next position of the cursor even if it is the same
+       as the last.  */
+    if (view.cursorAnchor != null)
+      view.cursorAnchor.invalidate ();
+
     EmacsNative.requestCursorUpdates (windowHandle, cursorUpdateMode);
     return true;
   }
@@ -584,8 +727,14 @@ public final class EmacsInputConnection implements InputConnection
       Log.d (TAG, ("getSurroundingText: " + beforeLength + ", "
 		   + afterLength));
 
-    text = EmacsNative.getSurroundingText (windowHandle, beforeLength,
-					   afterLength, flags);
+    flushEdits (false);
+
+    text = view.textMirror.getSurroundingText (beforeLength,
+					       afterLength);
+
+    if (text == null)
+      text = EmacsNative.getSurroundingText (windowHandle, beforeLength,
+					     afterLength, flags);
 
     if (EmacsService.DEBUG_IC && text != null)
       Log.d (TAG, ("getSurroundingText: "
@@ -610,6 +759,7 @@ public final class EmacsInputConnection implements InputConnection
     if (view.icSerial < view.icGeneration)
       return null;
 
+    flushEdits (false);
     snapshot = EmacsNative.takeSnapshot (windowHandle);
 
     if (EmacsService.DEBUG_IC)
@@ -625,7 +775,9 @@ public final class EmacsInputConnection implements InputConnection
   public void
   closeConnection ()
   {
+    flushEdits (false);
     batchEditCount = 0;
+    committedInBatch = false;
   }
 
   @Override
@@ -637,6 +789,7 @@ public final class EmacsInputConnection implements InputConnection
       Log.d (TAG, ("replaceText: " + text + ":: " + start + ","
 		   + end + "," + newCursorPosition));
 
+    flushEdits (false);
     EmacsNative.replaceText (windowHandle, start, end,
 			     text.toString (), newCursorPosition,
 			     attributes);
@@ -648,7 +801,9 @@ public final class EmacsInputConnection implements InputConnection
   public void
   reset ()
   {
+    flushEdits (false);
     batchEditCount = 0;
+    committedInBatch = false;
   }
 
 
@@ -0,0 +1,178 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+
+
+/* Record of the time elapsed between the arrival of input events and
+   the display of Emacs's response to them, which is maintained while
+   `android-trace-input-latency' is set.
+
+   Each key or pointer event is recorded when it is sent to Emacs,
+   with the serial assigned to it and the time at which it was
+   generated.  When a change to the contents of a window is next
+   posted to the screen, every event Emacs has finished processing
+   before then is considered to have been answered, and the time
+   elapsed since it was generated is entered into a histogram, which
+   `android-input-latency-histogram' returns.  Buffer swaps that
+   change nothing answer no events, since another frame might yet
+   display the response to them.  Each event also begins an
+   asynchronous trace section, which ends when it is answered.
+
+   Events are recorded from the UI thread and answered from the Emacs
+   thread, so this record is synchronized on this class.  */
+
+public final class EmacsLatencyTracer
+{
+  /* Name of the trace sections emitted.  */
+  private static final String SECTION_NAME = "Emacs input latency";
+
+  /* Maximum number of events awaiting a response, after which the
+     oldest is discarded.  This must be a power of two.  */
+  private static final int MAX_PENDING = 64;
+
+  /* The largest power of two representable in the histogram, in
+     milliseconds.  Longer latencies are recorded as if they were of
+     this length.  The histogram is otherwise divided into buckets as
+     in EmacsSafStatistics.java.  */
+  private static final int MAX_EXPONENT = 16;
+
+  /* Number of buckets in the histogram.  */
+  private static final int BUCKET_COUNT
+    = EmacsSafStatistics.getBucketCount (MAX_EXPONENT);
+
+  /* Serials of events awaiting a response, and the times at which they
+     were generated, in the time base of `SystemClock.uptimeMillis'.
+     These form a ring buffer, of which FIRSTPENDING is the index of
+     the oldest element and PENDINGCOUNT the number of elements.  */
+  private static final long[] pendingSerials = new long[MAX_PENDING];
+  private static final long[] pendingTimes = new long[MAX_PENDING];
+  private static int firstPending, pendingCount;
+
+  /* Number of events whose latency falls within each bucket.  */
+  private static final long[] histogram = new long[BUCKET_COUNT];
+
+  /* Functions called from the UI thread.  */
+
+  /* Record that an input event generated at TIME has been sent to
+     Emacs with the serial SERIAL, if input latency is being
+     traced.  */
+
+  public static void
+  noteEvent (long serial, long time)
+  {
+    int index;
+
+    if (serial == 0 || !EmacsNative.shouldTraceInputLatency ())
+      return;
+
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+      Trace.beginAsyncSection (SECTION_NAME, (int) serial);
+
+    synchronized (EmacsLatencyTracer.class)
+      {
+	if (pendingCount == MAX_PENDING)
+	  {
+	    /* Discard the oldest event.  */
+
+	    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+	      Trace.endAsyncSection (SECTION_NAME,
+				     (int) pendingSerials[firstPending]);
+
+	    firstPending = (firstPending + 1) & (MAX_PENDING - 1);
+	    pendingCount--;
+	  }
+
+	index = (firstPending + pendingCount) & (MAX_PENDING - 1);
+	pendingSerials[index] = serial;
+	pendingTimes[index] = time;
+	pendingCount++;
+      }
+  }
+
+  /* Functions called from the Emacs thread.  */
+
+  /* Record that changes to the contents of a window have been posted
+     to the screen.  */
+
+  public static synchronized void
+  noteSwap ()
+  {
+    long serial, now;
+    int bucket;
+
+    if (pendingCount == 0)
+      return;
+
+    serial = EmacsNative.getProcessedEventSerial ();
+    now = SystemClock.uptimeMillis ();
+
+    while (pendingCount > 0
+	   && pendingSerials[firstPending] <= serial)
+      {
+	bucket = EmacsSafStatistics.getBucket (now - pendingTimes[firstPending],
+					       MAX_EXPONENT);
+	histogram[bucket]++;
+
+	if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+	  Trace.endAsyncSection (SECTION_NAME,
+				 (int) pendingSerials[firstPending]);
+
+	firstPending = (firstPending + 1) & (MAX_PENDING - 1);
+	pendingCount--;
+      }
+  }
+
+  /* Return the histogram of input latencies as an array of pairs of
+     the shortest latency in milliseconds encompassed by a bucket and
+     the number of events within that bucket, in ascending order of
+     latency.  Empty buckets are omitted.  Clear the histogram
+     afterwards if RESET.  */
+
+  public static synchronized long[]
+  getHistogram (boolean reset)
+  {
+    long[] buffer, value;
+    int i, length;
+
+    buffer = new long[BUCKET_COUNT * 2];
+    length = 0;
+
+    for (i = 0; i < BUCKET_COUNT; ++i)
+      {
+	if (histogram[i] == 0)
+	  continue;
+
+	buffer[length++] = EmacsSafStatistics.getBucketStart (i);
+	buffer[length++] = histogram[i];
+
+	if (reset)
+	  histogram[i] = 0;
+      }
+
+    value = new long[length];
+    System.arraycopy (buffer, 0, value, 0, length);
+    return value;
+  }
+};
@@ -0,0 +1,182 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import android.webkit.MimeTypeMap;
+
+
+
+/* Table of MIME types associated with file name extensions.
+
+   The MIME type of every file listed by the documents provider, and
+   of every document created by Emacs, is derived from its extension.
+   MimeTypeMap cannot enumerate the extensions it knows, so each
+   extension's type is consulted once and recorded in an open-addressed
+   table keyed by the characters of the extension within the file
+   name, which is searched without extracting the extension into a
+   new string.  Types of files specific to Emacs, which MimeTypeMap
+   does not know, are entered into the table when it is created.  */
+
+public final class EmacsMimeTypes
+{
+  /* The type of files whose extension is not known.  */
+  public static final String DEFAULT_TYPE = "application/octet-stream";
+
+  /* Types assigned to extensions irrespective of MimeTypeMap.  */
+  private static final String[] OVERRIDES = new String[] {
+    "el",	"text/x-emacs-lisp",
+    "eld",	"text/x-emacs-lisp",
+    "elc",	"application/x-elc",
+    "org",	"text/org",
+    "texi",	"text/x-texinfo",
+    "texinfo",	"text/x-texinfo",
+    "info",	"text/x-info",
+    "diff",	"text/x-diff",
+    "patch",	"text/x-patch",
+  };
+
+  /* Maximum number of extensions recorded, after which the types of
+     further extensions are consulted but not recorded.  */
+  private static final int MAX_ENTRIES = 1024;
+
+  /* Extensions within the table, the hash codes of each, and their
+     types, which are DEFAULT_TYPE if MimeTypeMap knows of none.  The
+     table is created upon first use.  */
+  private static String[] extensions;
+  private static int[] hashes;
+  private static String[] types;
+
+  /* Number of extensions within the table.  */
+  private static int count;
+
+  /* Return the hash code of the characters in STRING between START
+     and END.  */
+
+  private static int
+  hash (String string, int start, int end)
+  {
+    int h, i;
+
+    h = 0;
+
+    for (i = start; i < end; ++i)
+      h = 31 * h + string.charAt (i);
+
+    return h ^ (h >>> 16);
+  }
+
+  /* Create the table with room for CAPACITY extensions, which must be
+     a power of two, and enter the contents of OLDEXTENSIONS and
+     OLDTYPES, if any, into it.  */
+
+  private static void
+  createTable (int capacity, String[] oldExtensions, String[] oldTypes)
+  {
+    int i;
+
+    extensions = new String[capacity];
+    hashes = new int[capacity];
+    types = new String[capacity];
+    count = 0;
+
+    if (oldExtensions == null)
+      {
+	for (i = 0; i < OVERRIDES.length; i += 2)
+	  put (OVERRIDES[i], OVERRIDES[i + 1]);
+      }
+    else
+      {
+	for (i = 0; i < oldExtensions.length; ++i)
+	  {
+	    if (oldExtensions[i] != null)
+	      put (oldExtensions[i], oldTypes[i]);
+	  }
+      }
+  }
+
+  /* Enter EXTENSION into the table with the type TYPE.  */
+
+  private static void
+  put (String extension, String type)
+  {
+    int h, i, mask;
+
+    if ((count + 1) * 4 > extensions.length * 3)
+      createTable (extensions.length * 2, extensions, types);
+
+    h = hash (extension, 0, extension.length ());
+    mask = extensions.length - 1;
+    i = h & mask;
+
+    while (extensions[i] != null)
+      i = (i + 1) & mask;
+
+    extensions[i] = extension;
+    hashes[i] = h;
+    types[i] = type;
+    count++;
+  }
+
+  /* Return the MIME type of a file named NAME, or DEFAULT_TYPE if its
+     extension is absent or unknown.  Files whose names begin with a
+     period and contain no other are considered to have no
+     extension.  */
+
+  public static synchronized String
+  getMimeType (String name)
+  {
+    int index, start, end, h, i, mask;
+    String extension, type;
+
+    index = name.lastIndexOf ('.');
+
+    if (index <= 0)
+      return DEFAULT_TYPE;
+
+    if (extensions == null)
+      createTable (64, null, null);
+
+    start = index + 1;
+    end = name.length ();
+    h = hash (name, start, end);
+    mask = extensions.length - 1;
+
+    for (i = h & mask; extensions[i] != null; i = (i + 1) & mask)
+      {
+	if (hashes[i] == h
+	    && extensions[i].length () == end - start
+	    && extensions[i].regionMatches (0, name, start, end - start))
+	  return types[i];
+      }
+
+    /* This extension has not been encountered before.  Consult
+       MimeTypeMap.  */
+    extension = name.substring (start);
+    type = MimeTypeMap.getSingleton ().getMimeTypeFromExtension (extension);
+
+    if (type == null)
+      type = DEFAULT_TYPE;
+
+    if (count < MAX_ENTRIES)
+      put (extension, type);
+
+    return type;
+  }
+};
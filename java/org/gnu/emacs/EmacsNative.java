@@ -160,6 +160,14 @@ public static native long sendTouchMove (long window, int x, int y,
 					   long time, int pointerID,
 					   int flags);
 
+  /* Send COUNT ANDROID_MOTION_NOTIFY or ANDROID_TOUCH_MOVE events,
+     each described by five consecutive elements of SAMPLES: the X
+     and Y coordinates of the pointer, the time, the pointer ID, and
+     the button associated with the pointer, or 0 if it is a touch
+     sequence.  */
+  public static native long sendMotionBatch (long window, long[] samples,
+					     int count);
+
   /* Send an ANDROID_WHEEL event.  */
   public static native long sendWheel (long window, int x, int y,
 				       long time, int state,
@@ -196,6 +204,10 @@ public static native long sendDndText (long window, int x, int y,
   /* Send an ANDROID_NOTIFICATION_ACTION event.  */
   public static native void sendNotificationAction (String tag, String action);
 
+  /* Send an ANDROID_OPEN_FILE event, directing Emacs to visit
+     FILENAME.  */
+  public static native long sendOpenFile (String fileName);
+
   /* Return the file name associated with the specified file
      descriptor, or NULL if there is none.  */
   public static native byte[] getProcName (int fd);
@@ -222,9 +234,29 @@ public static native long sendDndText (long window, int x, int y,
      be prevented from reaching the system input method.  */
   public static native boolean shouldForwardCtrlSpace ();
 
-  /* Return the keycode repeated activation of which should signal
-     quit.  */
-  public static native int getQuitKeycode ();
+  /* Return whether the document IDs of files within document trees
+     should be saved across sessions.  */
+  public static native boolean shouldPersistDocumentCache ();
+
+  /* Return whether documents that cannot be seeked should be copied
+     into the cache directory when opened for reading.  */
+  public static native boolean shouldSpoolDocuments ();
+
+  /* Return whether documents opened for writing should be written
+     through files within the cache directory.  */
+  public static native boolean shouldWriteBehindDocuments ();
+
+  /* Return whether the contents of text files within the home
+     directory should be indexed for searches by other programs.  */
+  public static native boolean shouldIndexDocumentContents ();
+
+  /* Return whether only the latest position of each pointer should
+     be reported when pointers move.  */
+  public static native boolean shouldCoalescePointerMotion ();
+
+  /* Return whether the latency of input events should be
+     recorded.  */
+  public static native boolean shouldTraceInputLatency ();
 
   /* Initialize the current thread, by blocking signals that do not
      interest it.  */
@@ -258,6 +290,13 @@ public static native void setComposingText (long window, String text,
   public static native void setComposingRegion (long window, int start,
 						int end);
   public static native void setSelection (long window, int start, int end);
+
+  /* Perform the COUNT edits queued within a batch edit at once, and
+     conclude the batch edit if ENDBATCH.  See `queueEdit' in
+     EmacsInputConnection.java for the format of EDITS and TEXTS.  */
+  public static native void applyEdits (long window, int[] edits,
+					String[] texts, int count,
+					boolean endBatch);
   public static native void performEditorAction (long window,
 						 int editorAction);
   public static native void performContextMenuAction (long window,
@@ -278,6 +317,14 @@ public static native SurroundingText getSurroundingText (long window,
      failure.  */
   public static native int[] getSelection (long window);
 
+  /* Return the number of edits the input method has performed, which
+     is compared with the counter recorded in an EmacsTextMirror.  */
+  public static native long getEditCounter ();
+
+  /* Return the serial of the last event Emacs has finished
+     processing.  */
+  public static native long getProcessedEventSerial ();
+
 
   /* Graphics functions used as replacements for potentially buggy
      Android APIs.  */
@@ -313,9 +360,11 @@ public static native void blitRect (Bitmap src, Bitmap dest, int x1,
 
   /* Functions that assist in generating content file names.  */
 
-  /* Calculate an 8 digit checksum for the byte array DISPLAYNAME
-     suitable for inclusion in a content file name.  */
-  public static native String displayNameHash (byte[] displayName);
+  /* Calculate an 8 digit checksum for the first LENGTH bytes of the
+     byte array DISPLAYNAME suitable for inclusion in a content file
+     name.  */
+  public static native String displayNameHash (byte[] displayName,
+					       int length);
 
   static
   {
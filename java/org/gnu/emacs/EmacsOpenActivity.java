@@ -62,6 +62,11 @@
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
+import java.nio.channels.FileChannel;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.util.List;
 
 public final class EmacsOpenActivity extends Activity
@@ -70,6 +75,10 @@ public final class EmacsOpenActivity extends Activity
 {
   private static final String TAG = "EmacsOpenActivity";
 
+  /* Name of the directory within the cache directory holding copies
+     of content URIs which cannot be opened otherwise.  */
+  private static final String IMPORT_DIRECTORY = "imports";
+
   /* Any currently focused EmacsOpenActivity.  Used to show pop ups
      while the activity is active and Emacs doesn't have permission to
      display over other programs.  */
@@ -205,10 +214,116 @@ private class EmacsClientThread extends Thread
     dialog.show ();
   }
 
+  /* Return the directory within the cache directory in which copies
+     of the content URI URI are saved.  Each URI is assigned a
+     directory of its own, named after a digest of the URI, so that a
+     document imported repeatedly replaces its previous copy rather
+     than accumulating duplicates.  */
+
+  private File
+  getImportDirectory (Uri uri)
+  {
+    MessageDigest digest;
+    StringBuilder builder;
+    byte[] bytes;
+
+    try
+      {
+	digest = MessageDigest.getInstance ("SHA-1");
+	bytes = digest.digest (uri.toString ().getBytes ("UTF-8"));
+      }
+    catch (NoSuchAlgorithmException exception)
+      {
+	/* SHA-1 is always available.  */
+	throw new RuntimeException (exception);
+      }
+    catch (UnsupportedEncodingException exception)
+      {
+	/* So is UTF-8.  */
+	throw new RuntimeException (exception);
+      }
+
+    builder = new StringBuilder (bytes.length * 2);
+
+    for (byte b : bytes)
+      {
+	builder.append (Character.forDigit ((b >> 4) & 0xf, 16));
+	builder.append (Character.forDigit (b & 0xf, 16));
+      }
+
+    return new File (new File (getCacheDir (), IMPORT_DIRECTORY),
+		     builder.toString ());
+  }
+
+  /* Copy the contents of FD into the file OUTFILE.  SIZE is the size
+     of FD if it is a regular file, or -1 otherwise.  */
+
+  private static void
+  copyFileDescriptor (ParcelFileDescriptor fd, File outFile,
+		      long size)
+    throws IOException
+  {
+    FileInputStream stream;
+    FileOutputStream outStream;
+    FileChannel channel, outChannel;
+    long position, transferred;
+    byte buffer[];
+    int read;
+
+    /* Initialize both streams to NULL.  */
+    outStream = null;
+    stream = null;
+
+    try
+      {
+	outStream = new FileOutputStream (outFile);
+	stream = new FileInputStream (fd.getFileDescriptor ());
+
+	if (size >= 0)
+	  {
+	    /* FD is a regular file, so its contents can be transferred
+	       by the kernel without being read into this process.  */
+	    channel = stream.getChannel ();
+	    outChannel = outStream.getChannel ();
+	    position = 0;
+
+	    while (position < size
+		   && (transferred
+		       = channel.transferTo (position, size - position,
+					     outChannel)) > 0)
+	      position += transferred;
+	  }
+	else
+	  {
+	    /* FD is a pipe or socket, whose contents can only be
+	       read.  */
+	    buffer = new byte[65536];
+
+	    while ((read = stream.read (buffer)) >= 0)
+	      outStream.write (buffer, 0, read);
+	  }
+      }
+    finally
+      {
+	/* Note that this does not close FD.
+
+	   Keep in mind that execution is transferred to ``finally''
+	   even if an exception happens inside the loops above.  */
+
+	if (stream != null)
+	  stream.close ();
+
+	if (outStream != null)
+	  outStream.close ();
+      }
+  }
+
   /* Check that the specified FILE is non-NULL and readable.
 
      If it is not, then copy the file in FD to a location in the
-     system cache directory and return the name of that file.
+     system cache directory and return the name of that file.  A copy
+     made previously is reused if the size and modification time of
+     FILE have not changed since.
 
      Alternatively, return URI formatted into a `/content/' file name
      if the system runs Android 4.4 or later.  */
@@ -218,12 +333,12 @@ private class EmacsClientThread extends Thread
 		       Uri uri)
     throws IOException, FileNotFoundException
   {
-    File inFile;
-    FileOutputStream outStream;
-    InputStream stream;
-    byte buffer[];
-    int read;
+    File inFile, directory, tempFile;
+    File[] files;
     String content;
+    long size, mtime;
+
+    mtime = 0;
 
     if (file != null)
       {
@@ -233,6 +348,9 @@ private class EmacsClientThread extends Thread
 	  return file;
 
 	content = inFile.getName ();
+
+	/* This is zero if FILE cannot be stat'ed either.  */
+	mtime = inFile.lastModified ();
       }
     else
       /* content is the name of this content file if the next branch
@@ -252,36 +370,53 @@ private class EmacsClientThread extends Thread
       content = "content." + System.currentTimeMillis () / 1000;
 
     /* inFile is now the file being written to.  */
-    inFile = new File (getCacheDir (), content);
-    buffer = new byte[4098];
+    directory = getImportDirectory (uri);
+    inFile = new File (directory, content);
+    size = fd.getStatSize ();
 
-    /* Initialize both streams to NULL.  */
-    outStream = null;
-    stream = null;
+    /* If this URI has been copied before, and neither the size nor
+       the modification time of the file has changed, return the
+       existing copy.  The modification time of each copy is set to
+       that of its original, and copies whose originals cannot be
+       stat'ed are never reused.  */
+
+    if (mtime != 0 && size >= 0 && inFile.length () == size
+	&& inFile.lastModified () == mtime)
+      return inFile.getCanonicalPath ();
+
+    /* Otherwise, delete any previous copy of this URI, which might
+       have been saved under a different name.  */
+
+    if (!directory.isDirectory () && !directory.mkdirs ())
+      throw new IOException ("Failed to create " + directory);
+
+    files = directory.listFiles ();
+
+    if (files != null)
+      {
+	for (File old : files)
+	  old.delete ();
+      }
+
+    /* Write into a temporary file, lest an incomplete copy be
+       mistaken for a complete one.  */
+    tempFile = File.createTempFile ("import", null, directory);
 
     try
       {
-	outStream = new FileOutputStream (inFile);
-	stream = new FileInputStream (fd.getFileDescriptor ());
+	copyFileDescriptor (fd, tempFile, size);
 
-	while ((read = stream.read (buffer)) >= 0)
-	  outStream.write (buffer, 0, read);
+	if (!tempFile.renameTo (inFile))
+	  throw new IOException ("Failed to rename " + tempFile);
       }
     finally
       {
-	/* Note that this does not close FD.
-
-	   Keep in mind that execution is transferred to ``finally''
-	   even if an exception happens inside the while loop
-	   above.  */
-
-	if (stream != null)
-	  stream.close ();
-
-	if (outStream != null)
-	  outStream.close ();
+	tempFile.delete ();
       }
 
+    if (mtime != 0)
+      inFile.setLastModified (mtime);
+
     return inFile.getCanonicalPath ();
   }
 
@@ -701,9 +836,23 @@ else if (scheme.equals ("org-protocol"))
 	    return;
 	  }
 
-	/* And start emacsclient.  Set `currentActivity' to this now.
-	   Presumably, it will shortly become capable of displaying
-	   dialogs.  */
+	/* Files can be handed to Emacs directly when it is running in
+	   this process, without starting emacsclient and waiting for
+	   it to connect to the server, which need not even be running.
+	   org-protocol links must still be relayed through emacsclient,
+	   since it is the server that dispatches them to their
+	   handlers.  */
+
+	if (!scheme.equals ("org-protocol")
+	    && EmacsNative.sendOpenFile (fileName) != 0)
+	  {
+	    finishSuccess ();
+	    return;
+	  }
+
+	/* Otherwise, start emacsclient.  Set `currentActivity' to this
+	   now.  Presumably, it will shortly become capable of
+	   displaying dialogs.  */
 	currentActivity = this;
 	startEmacsClient (new String[] { "--timeout=10", "--no-wait",
 					 "--reuse-frame", fileName, });
@@ -0,0 +1,651 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.util.Log;
+
+
+
+/* The caches maintained by EmacsSafThread are discarded when Emacs
+   exits, so that the first lookup of any file name in a new session
+   must search each of its parent directories afresh, which is
+   painfully slow if the document provider is remote.
+
+   This class maintains a record of the document IDs previously
+   assigned to file names within each document tree, which is saved in
+   the cache directory and retained across sessions.  Its contents are
+   merely hints: `documentIdFromName1' verifies each entry against the
+   document provider before it is used, and discards those that have
+   become obsolete.
+
+   The record is saved as a log of changes appended to a single file,
+   which is rewritten from scratch if the number of superseded changes
+   within grows excessive.  It must only be accessed from the SAF
+   thread.  */
+
+public final class EmacsSafCacheFile
+{
+  private static final String TAG = "EmacsSafCacheFile";
+
+  /* Number identifying cache files, and their format.  */
+  private static final int MAGIC = 0x45534146;
+  private static final int VERSION = 1;
+
+  /* Types of records within a cache file.  */
+  private static final int RECORD_ENTRY   = 1;
+  private static final int RECORD_REMOVE  = 2;
+  private static final int RECORD_DISCARD = 3;
+
+  /* Maximum number of entries retained for each tree.  */
+  private static final int MAX_ENTRIES = 16384;
+
+  /* Minimum number of records in the log before it is considered for
+     compaction.  */
+  private static final int COMPACT_THRESHOLD = 1024;
+
+  public static final class Entry
+  {
+    /* The ID of this document and that of its parent.  */
+    public String documentId, parentId;
+
+    /* The MIME type of this document.  */
+    public String type;
+
+    /* The time of the last modification to this document, or -1 if
+       unknown.  */
+    public long mtime;
+  };
+
+  /* The file holding the log.  */
+  private final File file;
+
+  /* Map between tree URIs and maps between file names within that
+     tree and their entries.  */
+  private final HashMap<String, HashMap<String, Entry>> trees;
+
+  /* Stream to which records are appended, or NULL if not yet
+     opened.  */
+  private DataOutputStream output;
+
+  /* Number of records in the log.  */
+  private int records;
+
+  /* Whether the log has become unusable.  */
+  private boolean failed;
+
+  public
+  EmacsSafCacheFile (File file)
+  {
+    this.file = file;
+    this.trees = new HashMap<String, HashMap<String, Entry>> ();
+  }
+
+  /* Return the map of entries for TREE, creating it if necessary.  */
+
+  private HashMap<String, Entry>
+  getTree (String tree)
+  {
+    HashMap<String, Entry> map;
+
+    map = trees.get (tree);
+
+    if (map == null)
+      {
+	map = new HashMap<String, Entry> ();
+	trees.put (tree, map);
+      }
+
+    return map;
+  }
+
+  /* Remove NAME and each file name within it from MAP.  */
+
+  private static void
+  removeName (HashMap<String, Entry> map, String name)
+  {
+    Iterator<String> iter;
+    String key;
+
+    map.remove (name);
+    iter = map.keySet ().iterator ();
+
+    while (iter.hasNext ())
+      {
+	key = iter.next ();
+
+	if (key.length () > name.length ()
+	    && key.charAt (name.length ()) == '/'
+	    && key.startsWith (name))
+	  iter.remove ();
+      }
+  }
+
+  /* Read the log from disk.  Discard its contents if it is
+     corrupt or was written by an incompatible version of Emacs.  */
+
+  public void
+  load ()
+  {
+    DataInputStream input;
+    int type;
+    String tree, name;
+    Entry entry;
+    HashMap<String, Entry> map;
+    boolean truncated;
+
+    input = null;
+    truncated = false;
+
+    if (!file.exists ())
+      return;
+
+    try
+      {
+	input = new DataInputStream (new BufferedInputStream
+				     (new FileInputStream (file)));
+
+	if (input.readInt () != MAGIC || input.readInt () != VERSION)
+	  throw new IOException ("Incompatible cache file");
+
+	while (true)
+	  {
+	    try
+	      {
+		type = input.readByte ();
+	      }
+	    catch (EOFException e)
+	      {
+		break;
+	      }
+
+	    try
+	      {
+		tree = input.readUTF ();
+
+		switch (type)
+		  {
+		  case RECORD_ENTRY:
+		    name = input.readUTF ();
+		    entry = new Entry ();
+		    entry.documentId = input.readUTF ();
+		    entry.parentId = input.readUTF ();
+		    entry.type = input.readUTF ();
+		    entry.mtime = input.readLong ();
+		    getTree (tree).put (name, entry);
+		    break;
+
+		  case RECORD_REMOVE:
+		    name = input.readUTF ();
+		    map = trees.get (tree);
+
+		    if (map != null)
+		      removeName (map, name);
+		    break;
+
+		  case RECORD_DISCARD:
+		    trees.remove (tree);
+		    break;
+
+		  default:
+		    throw new IOException ("Invalid record type");
+		  }
+	      }
+	    catch (EOFException e)
+	      {
+		/* The last record was not completely written,
+		   presumably because Emacs was killed in the process.
+		   Rewrite the log without it.  */
+		truncated = true;
+		break;
+	      }
+
+	    records++;
+	  }
+      }
+    catch (IOException e)
+      {
+	Log.w (TAG, "Discarding document cache: " + e);
+	trees.clear ();
+	records = 0;
+	file.delete ();
+	return;
+      }
+    finally
+      {
+	try
+	  {
+	    if (input != null)
+	      input.close ();
+	  }
+	catch (IOException e)
+	  {
+
+	  }
+      }
+
+    if (truncated)
+      compact ();
+    else
+      maybeCompact ();
+  }
+
+  /* Open the log for appending, writing a header if it is new.  Value
+     is false if this is impossible.  */
+
+  private boolean
+  openOutput ()
+  {
+    boolean exists;
+
+    if (failed)
+      return false;
+
+    if (output != null)
+      return true;
+
+    try
+      {
+	exists = file.exists () && file.length () > 0;
+	output = new DataOutputStream (new BufferedOutputStream
+				       (new FileOutputStream (file, true)));
+
+	if (!exists)
+	  {
+	    output.writeInt (MAGIC);
+	    output.writeInt (VERSION);
+	  }
+      }
+    catch (IOException e)
+      {
+	fail (e);
+	return false;
+      }
+
+    return true;
+  }
+
+  /* Stop recording changes after an I/O error, and delete the log, as
+     it may contain a partially written record.  */
+
+  private void
+  fail (IOException e)
+  {
+    Log.w (TAG, "Failed to write document cache: " + e);
+    failed = true;
+
+    try
+      {
+	if (output != null)
+	  output.close ();
+      }
+    catch (IOException e1)
+      {
+
+      }
+
+    output = null;
+    file.delete ();
+  }
+
+  /* Append a record of the specified TYPE concerning TREE and NAME to
+     the log.  ENTRY should be the entry being recorded if TYPE is
+     RECORD_ENTRY.  */
+
+  private void
+  appendRecord (int type, String tree, String name, Entry entry)
+  {
+    if (!openOutput ())
+      return;
+
+    try
+      {
+	output.writeByte (type);
+	output.writeUTF (tree);
+
+	if (type != RECORD_DISCARD)
+	  output.writeUTF (name);
+
+	if (type == RECORD_ENTRY)
+	  {
+	    output.writeUTF (entry.documentId);
+	    output.writeUTF (entry.parentId);
+	    output.writeUTF (entry.type);
+	    output.writeLong (entry.mtime);
+	  }
+
+	records++;
+      }
+    catch (IOException e)
+      {
+	fail (e);
+      }
+  }
+
+  /* Rewrite the log so that it only holds the entries that are
+     presently valid.  */
+
+  private void
+  compact ()
+  {
+    File temp;
+    DataOutputStream stream;
+    String tree;
+
+    if (output != null)
+      {
+	try
+	  {
+	    output.close ();
+	  }
+	catch (IOException e)
+	  {
+
+	  }
+
+	output = null;
+      }
+
+    temp = new File (file.getPath () + ".new");
+    stream = null;
+    records = 0;
+
+    try
+      {
+	stream = new DataOutputStream (new BufferedOutputStream
+				       (new FileOutputStream (temp)));
+	stream.writeInt (MAGIC);
+	stream.writeInt (VERSION);
+
+	for (Map.Entry<String, HashMap<String, Entry>> map
+	       : trees.entrySet ())
+	  {
+	    tree = map.getKey ();
+
+	    for (Map.Entry<String, Entry> item
+		   : map.getValue ().entrySet ())
+	      {
+		stream.writeByte (RECORD_ENTRY);
+		stream.writeUTF (tree);
+		stream.writeUTF (item.getKey ());
+		stream.writeUTF (item.getValue ().documentId);
+		stream.writeUTF (item.getValue ().parentId);
+		stream.writeUTF (item.getValue ().type);
+		stream.writeLong (item.getValue ().mtime);
+		records++;
+	      }
+	  }
+
+	stream.close ();
+	stream = null;
+
+	if (!temp.renameTo (file))
+	  throw new IOException ("Failed to rename " + temp);
+      }
+    catch (IOException e)
+      {
+	if (stream != null)
+	  {
+	    try
+	      {
+		stream.close ();
+	      }
+	    catch (IOException e1)
+	      {
+
+	      }
+	  }
+
+	temp.delete ();
+	fail (e);
+      }
+  }
+
+  /* Compact the log if most of the records within are obsolete.  */
+
+  private void
+  maybeCompact ()
+  {
+    int live;
+
+    if (records < COMPACT_THRESHOLD)
+      return;
+
+    live = 0;
+
+    for (HashMap<String, Entry> map : trees.values ())
+      live += map.size ();
+
+    if (records > live * 2)
+      compact ();
+  }
+
+  /* Write each record appended so far to disk, and compact the log if
+     necessary.  */
+
+  public void
+  flush ()
+  {
+    if (output != null)
+      {
+	try
+	  {
+	    output.flush ();
+	  }
+	catch (IOException e)
+	  {
+	    fail (e);
+	    return;
+	  }
+      }
+
+    maybeCompact ();
+  }
+
+
+
+  /* Return the entry for the file NAME within TREE, or NULL if there
+     is none.  */
+
+  public Entry
+  get (String tree, String name)
+  {
+    HashMap<String, Entry> map;
+
+    map = trees.get (tree);
+    return map != null ? map.get (name) : null;
+  }
+
+  /* Record ENTRY as the document designated by NAME within TREE.  */
+
+  public void
+  put (String tree, String name, Entry entry)
+  {
+    HashMap<String, Entry> map;
+
+    map = getTree (tree);
+
+    /* Forget the contents of trees that have grown too large, rather
+       than maintaining some measure of their age.  */
+
+    if (map.size () >= MAX_ENTRIES && !map.containsKey (name))
+      {
+	map.clear ();
+	appendRecord (RECORD_DISCARD, tree, null, null);
+      }
+
+    map.put (name, entry);
+    appendRecord (RECORD_ENTRY, tree, name, entry);
+  }
+
+  /* Remove the file NAME within TREE, along with any files inside it
+     if it is a directory.  */
+
+  public void
+  remove (String tree, String name)
+  {
+    HashMap<String, Entry> map;
+
+    map = trees.get (tree);
+
+    if (map == null || map.isEmpty ())
+      return;
+
+    removeName (map, name);
+    appendRecord (RECORD_REMOVE, tree, name, null);
+  }
+
+  /* Remove each file within TREE whose document ID is DOCUMENTID,
+     along with any files inside.  */
+
+  public void
+  removeDocument (String tree, String documentId)
+  {
+    HashMap<String, Entry> map;
+    String name;
+
+    map = trees.get (tree);
+
+    if (map == null)
+      return;
+
+    while (true)
+      {
+	name = null;
+
+	for (Map.Entry<String, Entry> item : map.entrySet ())
+	  {
+	    if (item.getValue ().documentId.equals (documentId))
+	      {
+		name = item.getKey ();
+		break;
+	      }
+	  }
+
+	if (name == null)
+	  return;
+
+	remove (tree, name);
+      }
+  }
+
+  /* Remove the files immediately within the directory NAME inside
+     TREE.  */
+
+  public void
+  removeChildren (String tree, String name)
+  {
+    HashMap<String, Entry> map;
+    Iterator<String> iter;
+    String key;
+    int length;
+
+    map = trees.get (tree);
+
+    if (map == null)
+      return;
+
+    length = name.length ();
+    iter = map.keySet ().iterator ();
+
+    while (iter.hasNext ())
+      {
+	key = iter.next ();
+
+	if (key.length () > length + 1
+	    && key.charAt (length) == '/'
+	    && key.startsWith (name)
+	    && key.indexOf ('/', length + 1) < 0)
+	  {
+	    iter.remove ();
+	    appendRecord (RECORD_REMOVE, tree, key, null);
+	  }
+      }
+  }
+
+  /* Discard every entry within TREE.  */
+
+  public void
+  discard (String tree)
+  {
+    if (trees.remove (tree) != null)
+      appendRecord (RECORD_DISCARD, tree, null, null);
+  }
+
+  /* Discard every tree save for those within TREES.  */
+
+  public void
+  retain (Collection<String> retained)
+  {
+    Iterator<String> iter;
+    String tree;
+
+    iter = trees.keySet ().iterator ();
+
+    while (iter.hasNext ())
+      {
+	tree = iter.next ();
+
+	if (!retained.contains (tree))
+	  {
+	    iter.remove ();
+	    appendRecord (RECORD_DISCARD, tree, null, null);
+	  }
+      }
+  }
+
+  /* Return NAME, a file name within a document tree, with empty
+     components and leading and trailing separators removed.  */
+
+  public static String
+  normalizeName (String name)
+  {
+    StringBuilder builder;
+
+    builder = new StringBuilder ();
+
+    for (String component : name.split ("/"))
+      {
+	if (component.isEmpty ())
+	  continue;
+
+	if (builder.length () > 0)
+	  builder.append ('/');
+
+	builder.append (component);
+      }
+
+    return builder.toString ();
+  }
+};
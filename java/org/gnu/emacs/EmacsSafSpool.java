@@ -0,0 +1,290 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+
+import android.util.Log;
+
+
+
+/* Document providers are permitted to return pipes or sockets when a
+   document is opened for reading alone, which is generally the case
+   with those that fetch their contents from a remote server.  Such
+   file descriptors cannot be seeked, and each time the document is
+   opened, its contents must be retrieved afresh.
+
+   This class copies the contents of such documents into files within
+   the cache directory, and supplies file descriptors referring to
+   these files in place of the originals.  Each copy is reused for so
+   long as the modification time of its document remains unchanged,
+   and the least recently used copies are deleted once their number
+   or total size grows excessive.  It must only be accessed from the
+   SAF thread.  */
+
+public final class EmacsSafSpool
+{
+  private static final String TAG = "EmacsSafSpool";
+
+  /* Maximum number of documents retained, and their maximum total
+     size.  */
+  private static final int MAX_ENTRIES = 32;
+  private static final long MAX_SIZE = 256 * 1024 * 1024;
+
+  /* Number of bytes transferred between each test of the cancellation
+     signal.  */
+  private static final long TRANSFER_SIZE = 1024 * 1024;
+
+  private static final class Entry
+  {
+    /* The file holding the contents of the document.  */
+    File file;
+
+    /* The modification time of the document when it was copied, and
+       its size.  */
+    long mtime, size;
+  };
+
+  /* The directory holding copies of documents.  */
+  private final File directory;
+
+  /* Map between keys identifying documents and their copies, in order
+     of their last use.  */
+  private final LinkedHashMap<String, Entry> entries;
+
+  /* The total size of those copies.  */
+  private long totalSize;
+
+  /* Whether copies left over from previous sessions have been
+     deleted.  */
+  private boolean initialized;
+
+  public
+  EmacsSafSpool (File directory)
+  {
+    this.directory = directory;
+    this.entries = new LinkedHashMap<String, Entry> (16, 0.75f, true);
+  }
+
+  /* Create `directory' if it does not exist, and delete files within
+     that were not created in this session.  */
+
+  private void
+  initialize ()
+  {
+    File[] files;
+
+    if (initialized)
+      return;
+
+    initialized = true;
+
+    if (!directory.isDirectory () && !directory.mkdirs ())
+      Log.w (TAG, "Failed to create " + directory);
+
+    files = directory.listFiles ();
+
+    if (files == null)
+      return;
+
+    for (File file : files)
+      file.delete ();
+  }
+
+  /* Return a file descriptor referring to a copy of the document KEY
+     whose modification time is MTIME, or NULL if no such copy
+     exists.  */
+
+  public ParcelFileDescriptor
+  open (String key, long mtime)
+    throws IOException
+  {
+    Entry entry;
+
+    entry = entries.get (key);
+
+    if (entry == null)
+      return null;
+
+    if (entry.mtime != mtime || !entry.file.exists ())
+      {
+	remove (key);
+	return null;
+      }
+
+    return ParcelFileDescriptor.open (entry.file,
+				      ParcelFileDescriptor.MODE_READ_ONLY);
+  }
+
+  /* Copy the contents of the document KEY from the file descriptor FD
+     into a new file, and return a seekable file descriptor referring
+     to that file.  FD is closed whether or not this succeeds.
+
+     MTIME is the modification time of the document, or -1 if it is
+     not known, in which case the copy is never reused.  SIGNAL is a
+     cancellation signal tested periodically during the copy.  */
+
+  public ParcelFileDescriptor
+  spool (String key, long mtime, ParcelFileDescriptor fd,
+	 CancellationSignal signal)
+    throws IOException
+  {
+    File file;
+    FileOutputStream output;
+    FileChannel channel;
+    ReadableByteChannel source;
+    ParcelFileDescriptor descriptor;
+    long position, transferred;
+    Entry entry;
+
+    initialize ();
+    remove (key);
+
+    file = null;
+    output = null;
+    descriptor = null;
+
+    try
+      {
+	file = File.createTempFile ("spool", null, directory);
+	output = new FileOutputStream (file);
+	channel = output.getChannel ();
+
+	/* Pipes cannot be mapped, so FD must not be supplied to
+	   transferFrom as a FileChannel.  */
+	source
+	  = Channels.newChannel (new FileInputStream (fd.getFileDescriptor ()));
+	position = 0;
+
+	while ((transferred = channel.transferFrom (source, position,
+						    TRANSFER_SIZE))
+	       > 0)
+	  {
+	    position += transferred;
+
+	    if (signal != null)
+	      signal.throwIfCanceled ();
+	  }
+
+	output.close ();
+	output = null;
+
+	descriptor
+	  = ParcelFileDescriptor.open (file,
+				       ParcelFileDescriptor.MODE_READ_ONLY);
+
+	if (mtime == -1)
+	  /* The copy cannot be verified in future, so delete it
+	     immediately.  DESCRIPTOR remains valid.  */
+	  file.delete ();
+	else
+	  {
+	    entry = new Entry ();
+	    entry.file = file;
+	    entry.mtime = mtime;
+	    entry.size = position;
+	    entries.put (key, entry);
+	    totalSize += position;
+	    trim ();
+	  }
+
+	file = null;
+	return descriptor;
+      }
+    finally
+      {
+	if (output != null)
+	  {
+	    try
+	      {
+		output.close ();
+	      }
+	    catch (IOException e)
+	      {
+		/* Ignore errors when discarding an incomplete copy.  */
+	      }
+	  }
+
+	if (file != null)
+	  file.delete ();
+
+	try
+	  {
+	    fd.close ();
+	  }
+	catch (IOException e)
+	  {
+	    Log.w (TAG, "Failed to close document: " + e);
+	  }
+      }
+  }
+
+  /* Delete copies of documents until their number and total size are
+     within MAX_ENTRIES and MAX_SIZE, beginning with the least recently
+     used.  The most recent copy is always retained.  */
+
+  private void
+  trim ()
+  {
+    Iterator<Entry> iter;
+    Entry entry;
+
+    iter = entries.values ().iterator ();
+
+    while ((entries.size () > MAX_ENTRIES || totalSize > MAX_SIZE)
+	   && entries.size () > 1)
+      {
+	entry = iter.next ();
+	iter.remove ();
+	totalSize -= entry.size;
+	entry.file.delete ();
+      }
+  }
+
+  /* Delete the copy of the document KEY, if one exists.  Call this
+     when the document is modified or deleted by Emacs.  */
+
+  public void
+  remove (String key)
+  {
+    Entry entry;
+
+    entry = entries.remove (key);
+
+    if (entry != null)
+      {
+	totalSize -= entry.size;
+	entry.file.delete ();
+      }
+  }
+};
@@ -0,0 +1,277 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.net.Uri;
+
+
+
+/* Record of the time taken by operations on document trees, and of
+   the efficacy of the caches maintained by EmacsSafThread, which is
+   kept separately for each document provider.
+
+   Operations are timed from both the SAF thread and the Emacs thread,
+   and the record is read from the latter, so each value is recorded
+   within an atomic array.  The time taken by an operation is
+   recorded by incrementing the count within one of a series of
+   buckets, eight of which divide each power of two, so that the
+   precision of the histogram is proportional to the magnitude of each
+   value recorded.  */
+
+public final class EmacsSafStatistics
+{
+  /* Operations whose duration is recorded.  */
+  public static final int DOCUMENT_ID_FROM_NAME	= 0;
+  public static final int STAT_DOCUMENT		= 1;
+  public static final int ACCESS_DOCUMENT	= 2;
+  public static final int OPEN_DOCUMENT_DIRECTORY = 3;
+  public static final int OPEN_DOCUMENT		= 4;
+  public static final int CREATE_DOCUMENT	= 5;
+  public static final int RENAME_DOCUMENT	= 6;
+  public static final int MOVE_DOCUMENT		= 7;
+  public static final int DELETE_DOCUMENT	= 8;
+  public static final int OPERATION_COUNT	= 9;
+
+  /* Events that are counted.  */
+  public static final int STAT_HITS	  = 0;
+  public static final int STAT_MISSES	  = 1;
+  public static final int NAME_HITS	  = 2;
+  public static final int NAME_MISSES	  = 3;
+  public static final int EVICTIONS	  = 4;
+  public static final int QUITS		  = 5;
+  public static final int PREFETCHES	  = 6;
+  public static final int PREFETCHED	  = 7;
+  public static final int PREFETCH_HITS	  = 8;
+  public static final int COUNTER_COUNT	  = 9;
+
+  /* Number of bits of each duration that are significant, and the
+     number of buckets into which each power of two is divided as a
+     consequence.  */
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /* The largest power of two representable in the histogram, in
+     microseconds.  Longer durations are recorded as if they were of
+     this length.  */
+  private static final int MAX_EXPONENT = 35;
+
+  /* Number of buckets in each histogram.  */
+  private static final int BUCKET_COUNT = getBucketCount (MAX_EXPONENT);
+
+  /* Map between authorities and their statistics.  */
+  private static final ConcurrentHashMap<String, Authority> authorities
+    = new ConcurrentHashMap<String, Authority> ();
+
+  public static final class Authority
+  {
+    /* Counts of the events enumerated above.  */
+    private final AtomicLongArray counters;
+
+    /* Histograms of the duration of each operation, one after the
+       other.  */
+    private final AtomicLongArray histograms;
+
+    private
+    Authority ()
+    {
+      counters = new AtomicLongArray (COUNTER_COUNT);
+      histograms = new AtomicLongArray (OPERATION_COUNT * BUCKET_COUNT);
+    }
+
+    /* Increment the counter COUNTER by AMOUNT.  */
+
+    public void
+    count (int counter, long amount)
+    {
+      counters.addAndGet (counter, amount);
+    }
+
+    public void
+    count (int counter)
+    {
+      counters.incrementAndGet (counter);
+    }
+
+    /* Record that OPERATION, which began when `System.nanoTime'
+       returned START, has completed.  */
+
+    public void
+    record (int operation, long start)
+    {
+      long duration;
+
+      duration = (System.nanoTime () - start) / 1000;
+      histograms.incrementAndGet (operation * BUCKET_COUNT
+				  + getBucket (duration, MAX_EXPONENT));
+    }
+
+    /* Return the contents of this record, as described under
+       `getStatistics'.  */
+
+    private long[]
+    snapshot ()
+    {
+      long[] buffer, value;
+      int i, j, length, countIndex;
+      long count;
+
+      buffer = new long[COUNTER_COUNT + OPERATION_COUNT
+			* (1 + BUCKET_COUNT * 2)];
+
+      for (i = 0; i < COUNTER_COUNT; ++i)
+	buffer[i] = counters.get (i);
+
+      length = COUNTER_COUNT;
+
+      for (i = 0; i < OPERATION_COUNT; ++i)
+	{
+	  /* Save only the buckets that are not empty.  */
+	  countIndex = length++;
+
+	  for (j = 0; j < BUCKET_COUNT; ++j)
+	    {
+	      count = histograms.get (i * BUCKET_COUNT + j);
+
+	      if (count == 0)
+		continue;
+
+	      buffer[length++] = getBucketStart (j);
+	      buffer[length++] = count;
+	      buffer[countIndex]++;
+	    }
+	}
+
+      value = new long[length];
+      System.arraycopy (buffer, 0, value, 0, length);
+      return value;
+    }
+  };
+
+  /* Functions also used by EmacsLatencyTracer, whose histograms are
+     divided into buckets in the same manner.  */
+
+  /* Return the number of buckets in a histogram in which MAXEXPONENT
+     is the largest power of two representable.  */
+
+  static int
+  getBucketCount (int maxExponent)
+  {
+    return (maxExponent - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+  }
+
+  /* Return the index of the bucket encompassing DURATION in such a
+     histogram.  */
+
+  static int
+  getBucket (long duration, int maxExponent)
+  {
+    int exponent;
+
+    if (duration < SUB_BUCKETS)
+      return (int) Math.max (duration, 0);
+
+    exponent = 63 - Long.numberOfLeadingZeros (duration);
+
+    if (exponent > maxExponent)
+      return getBucketCount (maxExponent) - 1;
+
+    return (((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS)
+	    + (int) ((duration >>> (exponent - SUB_BUCKET_BITS))
+		     & (SUB_BUCKETS - 1)));
+  }
+
+  /* Return the shortest duration encompassed by the bucket
+     BUCKET.  */
+
+  static long
+  getBucketStart (int bucket)
+  {
+    int exponent;
+
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+
+    exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+    return ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))
+	    << (exponent - SUB_BUCKET_BITS));
+  }
+
+  /* Return the statistics for the document provider AUTHORITY,
+     creating them if they do not yet exist.  */
+
+  public static Authority
+  getAuthority (String authority)
+  {
+    Authority statistics, existing;
+
+    if (authority == null)
+      authority = "";
+
+    statistics = authorities.get (authority);
+
+    if (statistics != null)
+      return statistics;
+
+    statistics = new Authority ();
+    existing = authorities.putIfAbsent (authority, statistics);
+    return existing != null ? existing : statistics;
+  }
+
+  /* Record that OPERATION, which began when `System.nanoTime'
+     returned START, has completed within the document tree URI.  */
+
+  public static void
+  record (Uri uri, int operation, long start)
+  {
+    getAuthority (uri.getAuthority ()).record (operation, start);
+  }
+
+  /* Return the statistics recorded for each document provider, as an
+     array of alternating authorities and arrays of longs.
+
+     Each array of longs holds COUNTER_COUNT counters, in the order
+     enumerated above, followed by a histogram for each operation.
+     Each histogram is a count N, followed by N pairs of the shortest
+     duration in microseconds encompassed by a bucket and the number
+     of operations within that bucket, in ascending order of
+     duration.  */
+
+  public static Object[]
+  getStatistics ()
+  {
+    ArrayList<Object> list;
+
+    list = new ArrayList<Object> ();
+
+    for (Map.Entry<String, Authority> entry : authorities.entrySet ())
+      {
+	list.add (entry.getKey ());
+	list.add (entry.getValue ().snapshot ());
+      }
+
+    return list.toArray ();
+  }
+};
@@ -19,14 +19,18 @@
 
 package org.gnu.emacs;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import android.content.ContentResolver;
+import android.content.UriPermission;
 import android.database.Cursor;
 import android.net.Uri;
 
@@ -66,7 +70,12 @@
    The cache is split into two levels: the first caches the
    relationships between display names and document IDs, while the
    second caches individual document IDs and their contents (children,
-   type, etc.)
+   type, etc.)  Together they form a tree of components, which is
+   searched without extracting each component of a file name into a
+   string of its own.  The components of the file name last located
+   within each document tree are also retained, so that its siblings
+   and children are located from the directory containing them rather
+   than from the root of the tree.
 
    Long-running operations are also run on this thread for another
    reason: Android uses special cancellation objects to terminate
@@ -77,7 +86,18 @@ second caches individual document IDs and their contents (children,
    cancellation objects that it provides.  Performing the blocking
    operations in this auxiliary thread enables the main thread to wait
    for completion itself, signaling the cancellation objects when it
-   deems necessary.  */
+   deems necessary.
+
+   The relationships between file names and document IDs may also be
+   saved on disk and restored in subsequent sessions, in which case
+   they are recorded by an EmacsSafCacheFile.
+
+   Programs that retrieve the status of one file frequently proceed to
+   do likewise for its siblings, each of which would otherwise demand
+   a separate query.  When the file status cache misses repeatedly
+   for files within the same directory, the status of each of its
+   children is retrieved at once in a third thread, from where it is
+   entered into the cache.  */
 
 
 
@@ -95,6 +115,28 @@ public final class EmacsSafThread extends HandlerThread
   /* Handler for this thread's main loop.  */
   private Handler handler;
 
+  /* The file to which the document ID cache is saved, or NULL if it
+     is not to be retained across sessions.  */
+  private final File cacheFile;
+
+  /* Record of document IDs saved in that file, or NULL.  */
+  private EmacsSafCacheFile persistentCache;
+
+  /* Copies of documents that cannot be seeked.  */
+  private final EmacsSafSpool spool;
+
+  /* Local files being written in place of documents.  */
+  private final EmacsSafUploader uploader;
+
+  /* The last tree URI parsed by `parseTreeUri', and the string from
+     which it was parsed.  */
+  private Uri lastTreeUri;
+  private String lastTreeUriString;
+
+  /* Handler for the thread on which directories are prefetched, or
+     NULL if it has not been started.  */
+  private Handler prefetchHandler;
+
   /* File access mode constants.  See `man 7 inode'.  */
   public static final int S_IRUSR = 0000400;
   public static final int S_IWUSR = 0000200;
@@ -111,12 +153,54 @@ public final class EmacsSafThread extends HandlerThread
      considered invalid.  */
   public static final int CACHE_INVALID_TIME = 10;
 
+  /* Projections used to retrieve file status, directory entries,
+     access modes and modification times.  */
+  private static final String[] STAT_PROJECTION = new String[] {
+    Document.COLUMN_FLAGS,
+    Document.COLUMN_LAST_MODIFIED,
+    Document.COLUMN_MIME_TYPE,
+    Document.COLUMN_SIZE,
+  };
+
+  private static final String[] CHILD_PROJECTION = new String[] {
+    Document.COLUMN_DISPLAY_NAME,
+    Document.COLUMN_DOCUMENT_ID,
+    Document.COLUMN_MIME_TYPE,
+    Document.COLUMN_LAST_MODIFIED,
+  };
+
+  private static final String[] ACCESS_PROJECTION = new String[] {
+    Document.COLUMN_FLAGS,
+    Document.COLUMN_MIME_TYPE,
+  };
+
+  private static final String[] MTIME_PROJECTION = new String[] {
+    Document.COLUMN_LAST_MODIFIED,
+  };
+
+  /* Number of misses in the file status cache for files within a
+     single directory after which the status of each of its children
+     is retrieved, and the number of milliseconds within which they
+     must take place.  */
+  public static final int PREFETCH_THRESHOLD = 3;
+  public static final int PREFETCH_WINDOW = 1000;
+
+  /* Create a SAF thread that will use RESOLVER to access documents.
+     If CACHEFILE is non-NULL, load document IDs recorded in previous
+     sessions from that file, and record new ones in it.  Save copies
+     of documents that are spooled within SPOOLDIRECTORY, and files
+     written in place of documents within UPLOADDIRECTORY.  */
+
   public
-  EmacsSafThread (ContentResolver resolver)
+  EmacsSafThread (ContentResolver resolver, File cacheFile,
+		  File spoolDirectory, File uploadDirectory)
   {
     super ("Document provider access thread");
     this.resolver = resolver;
+    this.cacheFile = cacheFile;
     this.cacheToplevels = new HashMap<Uri, CacheToplevel> ();
+    this.spool = new EmacsSafSpool (spoolDirectory);
+    this.uploader = new EmacsSafUploader (resolver, uploadDirectory);
   }
 
 
@@ -130,21 +214,237 @@ public final class EmacsSafThread extends HandlerThread
     /* Set up the handler after the thread starts.  */
     handler = new Handler (getLooper ());
 
+    /* Load the persistent cache before any request is processed.  */
+
+    if (cacheFile != null)
+      handler.post (new Runnable () {
+	  @Override
+	  public void
+	  run ()
+	  {
+	    loadPersistentCache ();
+	  }
+	});
+
+    /* Resume copying files written in place of documents in previous
+       sessions into those documents.  */
+
+    handler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  uploader.resume (new EmacsSafUploader.Callback () {
+	      @Override
+	      public void
+	      uploaded (String key)
+	      {
+		int index;
+
+		index = key.indexOf ('\0');
+		postInvalidateStat (Uri.parse (key.substring (0, index)),
+				    key.substring (index + 1));
+	      }
+	    });
+	}
+      });
+
     /* And start periodically pruning the cache.  */
     postPruneMessage ();
   }
 
+  /* Load the persistent cache from `cacheFile', and discard the
+     entries for trees Emacs is no longer permitted to access.  */
+
+  private void
+  loadPersistentCache ()
+  {
+    HashSet<String> trees;
+    Uri uri;
+
+    persistentCache = new EmacsSafCacheFile (cacheFile);
+    persistentCache.load ();
+
+    /* Permissions might have been revoked while Emacs was not
+       running.  */
+
+    trees = new HashSet<String> ();
+
+    try
+      {
+	for (UriPermission permission
+	       : resolver.getPersistedUriPermissions ())
+	  {
+	    uri = permission.getUri ();
+
+	    if (DocumentsContract.isTreeUri (uri)
+		&& permission.isReadPermission ())
+	      trees.add (uri.toString ());
+	  }
+      }
+    catch (Exception e)
+      {
+	Log.w (TAG, "Failed to enumerate persisted permissions: " + e);
+      }
+
+    persistentCache.retain (trees);
+    persistentCache.flush ();
+  }
+
 
   private static final class CacheToplevel
   {
     /* Map between document names and children.  */
-    HashMap<String, DocIdEntry> children;
+    DocIdTable children;
 
     /* Map between document names and file status.  */
     HashMap<String, StatCacheEntry> statCache;
 
     /* Map between document IDs and cache items.  */
     HashMap<String, CacheEntry> idCache;
+
+    /* Map between the document IDs of directories and the record of
+       misses in the file status cache for their children.  */
+    HashMap<String, PrefetchState> prefetchStates;
+
+    /* The document ID of the tree itself.  */
+    String treeDocumentId;
+
+    /* Number of times entries within `children' or `idCache' have
+       been replaced or removed.  */
+    int generation;
+
+    /* Number of times entries within `statCache' have been
+       invalidated.  */
+    int statGeneration;
+
+    /* Record of the file name last located within this tree.  */
+    ResolvedPath resolved;
+
+    /* Statistics for the provider of this tree.  */
+    EmacsSafStatistics.Authority statistics;
+  };
+
+  private static final class ResolvedPath
+  {
+    /* The file name, or NULL.  */
+    String name;
+
+    /* The number of its components that were located.  */
+    int depth;
+
+    /* The offset of the end of each of those components within
+       `name', and their document IDs and cache entries.  */
+    int[] ends;
+    String[] ids;
+    CacheEntry[] entries;
+
+    /* The generation of the toplevel when these components were
+       located.  */
+    int generation;
+
+    /* The time at which the oldest cache entry consulted while
+       locating them was created.  */
+    long time;
+
+    public
+    ResolvedPath ()
+    {
+      ends = new int[16];
+      ids = new String[16];
+      entries = new CacheEntry[16];
+      time = Long.MAX_VALUE;
+    }
+
+    /* Return the number of leading components of NAME that were
+       located in the course of searching for `name', if GENERATION is
+       still that of the toplevel and none of their cache entries have
+       expired.  */
+
+    public int
+    match (String name, int generation)
+    {
+      int length, prefix, i;
+
+      if (this.name == null || generation != this.generation
+	  || (SystemClock.uptimeMillis () - time
+	      >= CACHE_INVALID_TIME * 1000))
+	return 0;
+
+      length = Math.min (name.length (), this.name.length ());
+
+      for (prefix = 0; prefix < length; ++prefix)
+	{
+	  if (name.charAt (prefix) != this.name.charAt (prefix))
+	    break;
+	}
+
+      /* Count those components that end within the common prefix, and
+	 in NAME, are followed by a separator or the end of the
+	 string.  */
+
+      for (i = 0; i < depth; ++i)
+	{
+	  if (ends[i] > prefix
+	      || (ends[i] < name.length ()
+		  && name.charAt (ends[i]) != '/'))
+	    break;
+	}
+
+      return i;
+    }
+
+    /* Begin recording the components of NAME, the first DEPTH of
+       which are shared with `name'.  */
+
+    public void
+    reset (String name, int depth)
+    {
+      this.name = name;
+      this.depth = depth;
+
+      if (depth == 0)
+	time = Long.MAX_VALUE;
+    }
+
+    /* Record that the component at DEPTH, which ends at END, was
+       found to be the document ID designated by cache entry ENTRY
+       when the toplevel's generation was GENERATION.  TIME is the
+       time at which the oldest cache entry consulted was created.  */
+
+    public void
+    record (int depth, int end, String id, CacheEntry entry,
+	    long time, int generation)
+    {
+      if (depth == ends.length)
+	{
+	  ends = Arrays.copyOf (ends, depth * 2);
+	  ids = Arrays.copyOf (ids, depth * 2);
+	  entries = Arrays.copyOf (entries, depth * 2);
+	}
+
+      ends[depth] = end;
+      ids[depth] = id;
+      entries[depth] = entry;
+      this.depth = depth + 1;
+      this.time = Math.min (this.time, time);
+      this.generation = generation;
+    }
+  };
+
+  private static final class PrefetchState
+  {
+    /* Number of misses recorded since `windowStart'.  */
+    int misses;
+
+    /* The time at which the first of those misses took place.  */
+    long windowStart;
+
+    /* The time at which this directory was last prefetched, or 0.  */
+    long lastPrefetch;
+
+    /* Whether a prefetch is presently underway.  */
+    boolean pending;
   };
 
   private static final class StatCacheEntry
@@ -158,6 +458,10 @@ public final class EmacsSafThread extends HandlerThread
     /* Whether or not this file is a directory.  */
     boolean isDirectory;
 
+    /* Whether this entry was created by a prefetch and has yet to be
+       used.  */
+    boolean prefetched;
+
     public
     StatCacheEntry ()
     {
@@ -177,6 +481,11 @@ public final class EmacsSafThread extends HandlerThread
     /* The document ID.  */
     String documentId;
 
+    /* The display name under which this entry is recorded, and its
+       hash code as computed by `DocIdTable.hash'.  */
+    String name;
+    int hash;
+
     /* The time this entry was created.  */
     long time;
 
@@ -239,7 +548,7 @@ public final class EmacsSafThread extends HandlerThread
 
 	  entry = new CacheEntry ();
 	  entry.type = type;
-	  toplevel.idCache.put (documentId, entry);
+	  putCacheEntry (toplevel, documentId, entry);
 	  return entry;
 	}
       catch (OperationCanceledException e)
@@ -265,13 +574,250 @@ public final class EmacsSafThread extends HandlerThread
     }
   };
 
+  /* Map between the display names of documents within a directory
+     and their document ID entries.  Unlike a HashMap, it can be
+     searched for a range of characters within a larger string, so that
+     the components of a file name need not be extracted into strings
+     of their own.  */
+
+  private static final class DocIdTable
+  {
+    /* Open-addressed table of entries, whose size is always a power
+       of two.  */
+    DocIdEntry[] entries;
+
+    /* The number of entries within that table.  */
+    int size;
+
+    public
+    DocIdTable ()
+    {
+      entries = new DocIdEntry[8];
+    }
+
+    /* Return the hash code of the characters within STRING from START
+       to END, which is the same as that of a string holding only
+       those characters.  */
+
+    private static int
+    hash (String string, int start, int end)
+    {
+      int hash;
+
+      hash = 0;
+
+      for (; start < end; ++start)
+	hash = 31 * hash + string.charAt (start);
+
+      return hash ^ (hash >>> 16);
+    }
+
+    /* Return the index of the entry whose name is the characters
+       within STRING from START to END with the hash code HASH, or the
+       bitwise complement of the index where it should be inserted if
+       there is no such entry.  */
+
+    private int
+    find (String string, int start, int end, int hash)
+    {
+      int mask, i, length;
+      DocIdEntry entry;
+
+      mask = entries.length - 1;
+      length = end - start;
+
+      for (i = hash & mask; (entry = entries[i]) != null;
+	   i = (i + 1) & mask)
+	{
+	  if (entry.hash == hash
+	      && entry.name.length () == length
+	      && entry.name.regionMatches (0, string, start, length))
+	    return i;
+	}
+
+      return ~i;
+    }
+
+    /* Return the entry whose name is the characters within STRING
+       from START to END, or NULL if there is none.  */
+
+    public DocIdEntry
+    get (String string, int start, int end)
+    {
+      int i;
+
+      i = find (string, start, end, hash (string, start, end));
+      return i >= 0 ? entries[i] : null;
+    }
+
+    public DocIdEntry
+    get (String name)
+    {
+      return get (name, 0, name.length ());
+    }
+
+    /* Record ENTRY under NAME, replacing any existing entry.  Value is
+       the entry replaced, or NULL.  */
+
+    public DocIdEntry
+    put (String name, DocIdEntry entry)
+    {
+      DocIdEntry[] old;
+      DocIdEntry previous;
+      int i;
+
+      entry.name = name;
+      entry.hash = hash (name, 0, name.length ());
+      i = find (name, 0, name.length (), entry.hash);
+
+      if (i >= 0)
+	{
+	  previous = entries[i];
+	  entries[i] = entry;
+	  return previous;
+	}
+
+      entries[~i] = entry;
+
+      /* Keep the table at most half full.  */
+
+      if (++size * 2 > entries.length)
+	{
+	  old = entries;
+	  entries = new DocIdEntry[old.length * 2];
+	  size = 0;
+
+	  for (DocIdEntry tem : old)
+	    {
+	      if (tem != null)
+		insert (tem);
+	    }
+	}
+
+      return null;
+    }
+
+    /* Insert ENTRY, which must not already be present, into the
+       table.  */
+
+    private void
+    insert (DocIdEntry entry)
+    {
+      int mask, i;
+
+      mask = entries.length - 1;
+
+      i = entry.hash & mask;
+
+      while (entries[i] != null)
+	i = (i + 1) & mask;
+
+      entries[i] = entry;
+      size++;
+    }
+
+    /* Remove the entry at index I, moving entries following it into
+       its place where they would otherwise become unreachable.  */
+
+    private void
+    removeAt (int i)
+    {
+      int mask, j, k;
+      DocIdEntry entry;
+
+      mask = entries.length - 1;
+      entries[i] = null;
+      size--;
+
+      for (j = (i + 1) & mask; (entry = entries[j]) != null;
+	   j = (j + 1) & mask)
+	{
+	  k = entry.hash & mask;
+
+	  /* Leave ENTRY be if its natural position lies after I.  */
+
+	  if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+	    continue;
+
+	  entries[i] = entry;
+	  entries[j] = null;
+	  i = j;
+	}
+    }
+
+    /* Remove the entry whose name is the characters within STRING
+       from START to END, if any.  */
+
+    public void
+    remove (String string, int start, int end)
+    {
+      int i;
+
+      i = find (string, start, end, hash (string, start, end));
+
+      if (i >= 0)
+	removeAt (i);
+    }
+
+    public void
+    remove (String name)
+    {
+      remove (name, 0, name.length ());
+    }
+
+    /* Remove the first entry for the document DOCUMENTID, if any.  */
+
+    public void
+    removeDocument (String documentId)
+    {
+      int i;
+
+      for (i = 0; i < entries.length; ++i)
+	{
+	  if (entries[i] != null
+	      && entries[i].documentId.equals (documentId))
+	    {
+	      removeAt (i);
+	      return;
+	    }
+	}
+    }
+
+    /* Remove each entry older than CACHE_INVALID_TIME.  Value is the
+       number of entries removed.  */
+
+    public int
+    prune ()
+    {
+      DocIdEntry[] old;
+      int oldSize;
+
+      old = entries;
+      oldSize = size;
+      entries = new DocIdEntry[old.length];
+      size = 0;
+
+      for (DocIdEntry tem : old)
+	{
+	  if (tem != null && tem.isValid ())
+	    insert (tem);
+	}
+
+      return oldSize - size;
+    }
+  };
+
   private static final class CacheEntry
   {
     /* The type of this document.  */
     String type;
 
     /* Map between document names and children.  */
-    HashMap<String, DocIdEntry> children;
+    DocIdTable children;
+
+    /* The document ID of the directory holding this document, or
+       NULL if unknown.  */
+    String parent;
 
     /* The time this entry was created.  */
     long time;
@@ -279,7 +825,7 @@ public final class EmacsSafThread extends HandlerThread
     public
     CacheEntry ()
     {
-      children = new HashMap<String, DocIdEntry> ();
+      children = new DocIdTable ();
       time = SystemClock.uptimeMillis ();
     }
 
@@ -304,40 +850,18 @@ public final class EmacsSafThread extends HandlerThread
       return toplevel;
 
     toplevel = new CacheToplevel ();
-    toplevel.children = new HashMap<String, DocIdEntry> ();
+    toplevel.children = new DocIdTable ();
     toplevel.statCache = new HashMap<String, StatCacheEntry> ();
     toplevel.idCache = new HashMap<String, CacheEntry> ();
+    toplevel.prefetchStates = new HashMap<String, PrefetchState> ();
+    toplevel.treeDocumentId = DocumentsContract.getTreeDocumentId (uri);
+    toplevel.resolved = new ResolvedPath ();
+    toplevel.statistics
+      = EmacsSafStatistics.getAuthority (uri.getAuthority ());
     cacheToplevels.put (uri, toplevel);
     return toplevel;
   }
 
-  /* Remove each cache entry within COLLECTION older than
-     CACHE_INVALID_TIME.  */
-
-  private void
-  pruneCache1 (Collection<DocIdEntry> collection)
-  {
-    Iterator<DocIdEntry> iter;
-    DocIdEntry tem;
-
-    iter = collection.iterator ();
-    while (iter.hasNext ())
-      {
-	/* Get the cache entry.  */
-	tem = iter.next ();
-
-	/* If it's not valid anymore, remove it.  Iterating over a
-	   collection whose contents are being removed is undefined
-	   unless the removal is performed using the iterator's own
-	   `remove' function, so tem.remove cannot be used here.  */
-
-	if (tem.isValid ())
-	  continue;
-
-	iter.remove ();
-      }
-  }
-
   /* Remove every entry older than CACHE_INVALID_TIME from each
      toplevel inside `cachedToplevels'.  */
 
@@ -346,11 +870,19 @@ public final class EmacsSafThread extends HandlerThread
   {
     Iterator<CacheEntry> iter;
     Iterator<StatCacheEntry> statIter;
+    Iterator<PrefetchState> prefetchIter;
     CacheEntry tem;
     StatCacheEntry stat;
+    PrefetchState state;
+    long now;
+    int evictions;
+
+    now = SystemClock.uptimeMillis ();
 
     for (CacheToplevel toplevel : cacheToplevels.values ())
       {
+	evictions = 0;
+
 	/* First, clean up expired cache entries.  */
 	iter = toplevel.idCache.values ().iterator ();
 
@@ -369,13 +901,18 @@ public final class EmacsSafThread extends HandlerThread
 	      {
 		/* Otherwise, clean up expired items in its document
 		   ID cache.  */
-		pruneCache1 (tem.children.values ());
+		evictions += tem.children.prune ();
 		continue;
 	      }
 
 	    iter.remove ();
+	    evictions++;
 	  }
 
+	/* Components located previously might have been removed.  */
+	if (evictions > 0)
+	  toplevel.generation++;
+
 	statIter = toplevel.statCache.values ().iterator ();
 
 	while (statIter.hasNext ())
@@ -393,9 +930,34 @@ public final class EmacsSafThread extends HandlerThread
 	      continue;
 
 	    statIter.remove ();
+	    evictions++;
+	  }
+
+	toplevel.statistics.count (EmacsSafStatistics.EVICTIONS,
+				   evictions);
+
+	/* Forget about directories that have neither been prefetched
+	   nor missed recently.  */
+
+	prefetchIter = toplevel.prefetchStates.values ().iterator ();
+
+	while (prefetchIter.hasNext ())
+	  {
+	    state = prefetchIter.next ();
+
+	    if (state.pending
+		|| now - state.windowStart < PREFETCH_WINDOW
+		|| now - state.lastPrefetch < CACHE_INVALID_TIME * 1000)
+	      continue;
+
+	    prefetchIter.remove ();
 	  }
       }
 
+    /* Write out changes to the persistent cache.  */
+    if (persistentCache != null)
+      persistentCache.flush ();
+
     postPruneMessage ();
   }
 
@@ -405,35 +967,62 @@ public final class EmacsSafThread extends HandlerThread
      NAME, ID, and TYPE should respectively be the display name of the
      document within its parent document (the CacheEntry whose
      `children' field is CHILDREN), its document ID, and its MIME
-     type.
+     type.  PARENT should be the document ID of that parent document.
 
      If ID_ENTRY_EXISTS, don't create a new document ID entry within
      CHILDREN indexed by NAME.
 
-     Value is the cache entry saved for the document ID.  */
+     Value is the cache entry saved for the document ID, which is the
+     existing entry if one of the same type remains valid, so that
+     the children recorded within it are retained.  */
 
   private CacheEntry
-  cacheChild (CacheToplevel toplevel,
-	      HashMap<String, DocIdEntry> children,
+  cacheChild (CacheToplevel toplevel, DocIdTable children,
 	      String name, String id, String type,
-	      boolean id_entry_exists)
+	      String parent, boolean id_entry_exists)
   {
-    DocIdEntry idEntry;
+    DocIdEntry idEntry, previous;
     CacheEntry cacheEntry;
 
     if (!id_entry_exists)
       {
 	idEntry = new DocIdEntry ();
 	idEntry.documentId = id;
-	children.put (name, idEntry);
+	previous = children.put (name, idEntry);
+
+	/* NAME might have designated another document.  */
+	if (previous != null && !previous.documentId.equals (id))
+	  toplevel.generation++;
+      }
+
+    cacheEntry = toplevel.idCache.get (id);
+
+    if (cacheEntry != null && cacheEntry.type.equals (type)
+	&& cacheEntry.isValid ())
+      {
+	cacheEntry.parent = parent;
+	return cacheEntry;
       }
 
     cacheEntry = new CacheEntry ();
     cacheEntry.type = type;
-    toplevel.idCache.put (id, cacheEntry);
+    cacheEntry.parent = parent;
+    putCacheEntry (toplevel, id, cacheEntry);
     return cacheEntry;
   }
 
+  /* Record ENTRY as the cache entry for DOCUMENTID within TOPLEVEL.
+     Entries located previously are only invalidated if an existing
+     entry is replaced.  */
+
+  private static void
+  putCacheEntry (CacheToplevel toplevel, String documentId,
+		 CacheEntry entry)
+  {
+    if (toplevel.idCache.put (documentId, entry) != null)
+      toplevel.generation++;
+  }
+
   /* Cache file status for DOCUMENTID within TOPLEVEL.  Value is the
      new cache entry.  CURSOR is the cursor from where to retrieve the
      file status, in the form of the columns COLUMN_FLAGS,
@@ -525,7 +1114,7 @@ public final class EmacsSafThread extends HandlerThread
 
     /* We know this is a directory already.  */
     entry.type = Document.MIME_TYPE_DIR;
-    toplevel.idCache.put (documentId, entry);
+    putCacheEntry (toplevel, documentId, entry);
 
     /* Now, try to cache each of its constituents.  */
 
@@ -544,7 +1133,7 @@ public final class EmacsSafThread extends HandlerThread
 	       children.  */
 	    idEntry = new DocIdEntry ();
 	    idEntry.documentId = id;
-	    entry.children.put (id, idEntry);
+	    entry.children.put (name, idEntry);
 
 	    /* Cache the file status for ID within TOPELVEL too; if a
 	       directory listing is being requested, it's very likely
@@ -563,7 +1152,8 @@ public final class EmacsSafThread extends HandlerThread
 	       type.  */
 	    constituent = new CacheEntry ();
 	    constituent.type = type;
-	    toplevel.idCache.put (documentId, entry);
+	    constituent.parent = documentId;
+	    putCacheEntry (toplevel, id, constituent);
 	  }
 	catch (Exception e)
 	  {
@@ -576,6 +1166,202 @@ public final class EmacsSafThread extends HandlerThread
     cursor.moveToPosition (-1);
   }
 
+  /* Remove the status of DOCUMENTID from TOPLEVEL's file status
+     cache, and discard any prefetch underway in the meantime.  */
+
+  private static void
+  invalidateStatus (CacheToplevel toplevel, String documentId)
+  {
+    toplevel.statCache.remove (documentId);
+    toplevel.statGeneration++;
+  }
+
+  /* Note that the status of DOCUMENTID within the tree URI was
+     absent from TOPLEVEL's file status cache.  If a sufficient number
+     of such misses have been recorded for the children of its parent
+     within PREFETCH_WINDOW, begin to prefetch the status of each of
+     its siblings.  */
+
+  private void
+  recordStatMiss (Uri uri, CacheToplevel toplevel, String documentId)
+  {
+    CacheEntry entry;
+    PrefetchState state;
+    long now;
+
+    toplevel.statistics.count (EmacsSafStatistics.STAT_MISSES);
+
+    /* The parent of DOCUMENTID is only known if it was located by
+       `documentIdFromName'.  */
+
+    entry = toplevel.idCache.get (documentId);
+
+    if (entry == null || entry.parent == null)
+      return;
+
+    state = toplevel.prefetchStates.get (entry.parent);
+    now = SystemClock.uptimeMillis ();
+
+    if (state == null)
+      {
+	state = new PrefetchState ();
+	toplevel.prefetchStates.put (entry.parent, state);
+      }
+
+    /* Don't prefetch directories repeatedly; if their children are
+       absent from the cache, they are presumably being modified.  */
+
+    if (state.pending
+	|| now - state.lastPrefetch < CACHE_INVALID_TIME * 1000)
+      return;
+
+    if (now - state.windowStart >= PREFETCH_WINDOW)
+      {
+	state.windowStart = now;
+	state.misses = 0;
+      }
+
+    if (++state.misses < PREFETCH_THRESHOLD)
+      return;
+
+    state.pending = true;
+    state.lastPrefetch = now;
+    state.misses = 0;
+    toplevel.statistics.count (EmacsSafStatistics.PREFETCHES);
+    prefetchDirectory (uri, toplevel, entry.parent, state);
+  }
+
+  /* Retrieve the status of each child of the directory designated by
+     DOCUMENTID within the tree URI from the prefetch thread, and enter
+     it into TOPLEVEL's file status cache, unless an entry within that
+     cache is invalidated in the meantime.  STATE is the prefetch state
+     of that directory.  */
+
+  private void
+  prefetchDirectory (final Uri uri, final CacheToplevel toplevel,
+		     final String documentId, final PrefetchState state)
+  {
+    HandlerThread thread;
+    final int statGeneration;
+
+    statGeneration = toplevel.statGeneration;
+
+    if (prefetchHandler == null)
+      {
+	thread = new HandlerThread ("Document provider prefetch thread");
+	thread.start ();
+	prefetchHandler = new Handler (thread.getLooper ());
+      }
+
+    prefetchHandler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  final ArrayList<String> ids;
+	  final ArrayList<StatCacheEntry> entries;
+	  String[] projection;
+	  Uri childrenUri;
+	  Cursor cursor;
+	  StatCacheEntry entry;
+	  int idColumn;
+	  String id;
+
+	  ids = new ArrayList<String> ();
+	  entries = new ArrayList<StatCacheEntry> ();
+	  projection = new String[] {
+	    Document.COLUMN_DOCUMENT_ID,
+	    Document.COLUMN_FLAGS,
+	    Document.COLUMN_LAST_MODIFIED,
+	    Document.COLUMN_MIME_TYPE,
+	    Document.COLUMN_SIZE,
+	  };
+	  cursor = null;
+
+	  try
+	    {
+	      childrenUri
+		= DocumentsContract.buildChildDocumentsUriUsingTree (uri,
+								     documentId);
+	      cursor = resolver.query (childrenUri, projection, null,
+				       null, null);
+
+	      if (cursor != null)
+		{
+		  idColumn
+		    = cursor.getColumnIndex (Document.COLUMN_DOCUMENT_ID);
+
+		  while (idColumn >= 0 && cursor.moveToNext ())
+		    {
+		      id = cursor.getString (idColumn);
+
+		      if (id == null)
+			continue;
+
+		      /* Since NO_CACHE is set, cacheFileStatus won't
+			 touch the caches from this thread.  */
+		      entry = cacheFileStatus (id, null, cursor, true);
+
+		      if (entry == null)
+			continue;
+
+		      entry.prefetched = true;
+		      ids.add (id);
+		      entries.add (entry);
+		    }
+		}
+	    }
+	  catch (Exception e)
+	    {
+	      /* Prefetching is merely an optimization, so ignore
+		 errors.  */
+	    }
+	  finally
+	    {
+	      if (cursor != null)
+		cursor.close ();
+	    }
+
+	  /* Now enter the file status thus obtained into the cache from
+	     the SAF thread.  */
+
+	  handler.post (new Runnable () {
+	      @Override
+	      public void
+	      run ()
+	      {
+		StatCacheEntry existing;
+		int i;
+
+		state.pending = false;
+
+		/* If a file within this tree was deleted, renamed, or
+		   written to while the query was underway, its results
+		   might be stale; discard them, and if the tree itself
+		   has been removed from the cache, likewise.  */
+
+		if (cacheToplevels.get (uri) != toplevel
+		    || toplevel.statGeneration != statGeneration)
+		  return;
+
+		for (i = 0; i < ids.size (); ++i)
+		  {
+		    /* Entries retrieved in the meantime are more
+		       recent.  */
+		    existing = toplevel.statCache.get (ids.get (i));
+
+		    if (existing != null && existing.isValid ())
+		      continue;
+
+		    toplevel.statCache.put (ids.get (i), entries.get (i));
+		    toplevel.statistics.count (EmacsSafStatistics.PREFETCHED);
+		  }
+	      }
+	    });
+	}
+      });
+  }
+
   /* Post a message to run `pruneCache' every CACHE_PRUNE_TIME
      seconds.  */
 
@@ -609,14 +1395,23 @@ public final class EmacsSafThread extends HandlerThread
 	run ()
 	{
 	  CacheToplevel toplevel;
-	  HashMap<String, DocIdEntry> children;
+	  DocIdTable children;
 	  String[] components;
 	  CacheEntry entry;
 	  DocIdEntry idEntry;
 
 	  toplevel = getCache (uri);
 	  toplevel.idCache.remove (documentId);
-	  toplevel.statCache.remove (documentId);
+	  invalidateStatus (toplevel, documentId);
+	  toplevel.generation++;
+	  spool.remove (getDocumentKey (uri.toString (), documentId));
+
+	  if (persistentCache != null)
+	    {
+	      persistentCache.remove (uri.toString (),
+				      EmacsSafCacheFile.normalizeName (cacheName));
+	      persistentCache.removeDocument (uri.toString (), documentId);
+	    }
 
 	  /* If the parent of CACHENAME is cached, remove it.  */
 
@@ -680,15 +1475,20 @@ public final class EmacsSafThread extends HandlerThread
 	run ()
 	{
 	  CacheToplevel toplevel;
-	  HashMap<String, DocIdEntry> children;
+	  DocIdTable children;
 	  String[] components;
 	  CacheEntry entry;
 	  DocIdEntry idEntry;
-	  Iterator<DocIdEntry> iter;
 
 	  toplevel = getCache (uri);
 	  toplevel.idCache.remove (documentId);
-	  toplevel.statCache.remove (documentId);
+	  invalidateStatus (toplevel, documentId);
+	  toplevel.generation++;
+
+	  /* DOCUMENTID has moved elsewhere, so forget each file name
+	     under which it was recorded.  */
+	  if (persistentCache != null)
+	    persistentCache.removeDocument (uri.toString (), documentId);
 
 	  /* Now remove DOCUMENTID from CACHENAME's cache entry, if
 	     any.  */
@@ -723,17 +1523,7 @@ public final class EmacsSafThread extends HandlerThread
 	      children = entry.children;
 	    }
 
-	  iter = children.values ().iterator ();
-	  while (iter.hasNext ())
-	    {
-	      idEntry = iter.next ();
-
-	      if (idEntry.documentId.equals (documentId))
-		{
-		  iter.remove ();
-		  break;
-		}
-	    }
+	  children.removeDocument (documentId);
 	}
       });
   }
@@ -754,48 +1544,168 @@ Call this when the contents of a file (i.e. the constituents of a
 	  CacheToplevel toplevel;
 
 	  toplevel = getCache (uri);
-	  toplevel.statCache.remove (documentId);
+	  invalidateStatus (toplevel, documentId);
 	}
       });
   }
 
-
-
-  /* ``Prototypes'' for nested functions that are run within the SAF
-     thread and accepts a cancellation signal.  They differ in their
-     return types.  */
+  /* Discard every cache entry within the document tree URI, both in
+     memory and on disk.  Call this after relinquishing access to that
+     tree.  */
 
-  private abstract class SafIntFunction
+  public void
+  postDiscardTree (final Uri uri)
   {
-    /* The ``throws Throwable'' here is a Java idiosyncrasy that tells
-       the compiler to allow arbitrary error objects to be signaled
-       from within this function.
+    handler.post (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  cacheToplevels.remove (uri);
 
-       Later, runIntFunction will try to re-throw any error object
-       generated by this function in the Emacs thread, using a trick
-       to avoid the compiler requirement to expressly declare that an
-       error (and which types of errors) will be signaled.  */
+	  if (persistentCache != null)
+	    {
+	      persistentCache.discard (uri.toString ());
+	      persistentCache.flush ();
+	    }
+	}
+      });
+  }
 
-    public abstract int runInt (CancellationSignal signal)
-      throws Throwable;
-  };
+
 
-  private abstract class SafObjectFunction
+  /* Operations performed by SafRequests.  Their durations are
+     recorded under the same numbers.  */
+  private static final int OP_DOCUMENT_ID_FROM_NAME
+    = EmacsSafStatistics.DOCUMENT_ID_FROM_NAME;
+  private static final int OP_STAT_DOCUMENT
+    = EmacsSafStatistics.STAT_DOCUMENT;
+  private static final int OP_ACCESS_DOCUMENT
+    = EmacsSafStatistics.ACCESS_DOCUMENT;
+  private static final int OP_OPEN_DOCUMENT_DIRECTORY
+    = EmacsSafStatistics.OPEN_DOCUMENT_DIRECTORY;
+  private static final int OP_OPEN_DOCUMENT
+    = EmacsSafStatistics.OPEN_DOCUMENT;
+
+  /* Waiting for uploads to complete is not an operation on a document
+     provider, and its duration is not recorded.  */
+  private static final int OP_AWAIT_UPLOADS = -1;
+
+  /* A request to perform an operation within the SAF thread, which
+     accepts a cancellation signal.
+
+     Requests are issued frequently enough (such as by
+     `directory-files-recursively', which retrieves the status of
+     every file it encounters) that allocating a closure, a result
+     holder and a cancellation signal for each of them burdens the
+     garbage collector.  Instead, the Emacs thread fills in the
+     arguments to a request that is retained for subsequent calls, and
+     reads typed results from it after it completes.  */
+
+  private final class SafRequest implements Runnable
   {
-    /* The ``throws Throwable'' here is a Java idiosyncrasy that tells
-       the compiler to allow arbitrary error objects to be signaled
-       from within this function.
+    /* The operation to perform.  */
+    int operation;
+
+    /* Arguments to that operation.  Not every operation uses all of
+       these fields.  */
+    String uri, documentId, name;
+    String[] idReturn;
+    boolean read, write, truncate, noCache, spool, writeBehind;
+
+    /* The results of the operation.  */
+    int intResult;
+    Object objectResult;
+
+    /* Any error signaled by the operation.  */
+    Throwable error;
+
+    /* Statistics for the provider of the tree operated on, once
+       known.  */
+    EmacsSafStatistics.Authority statistics;
+
+    /* The cancellation signal supplied to the operation.  It is
+       reused until it is canceled.  */
+    CancellationSignal signal;
+
+    /* Array into which file status is returned by OP_STAT_DOCUMENT.  */
+    final long[] stat;
+
+    /* Whether this request is presently being run.  */
+    boolean busy;
+
+    public
+    SafRequest ()
+    {
+      stat = new long[3];
+    }
+
+    @Override
+    public void
+    run ()
+    {
+      long start;
+
+      start = System.nanoTime ();
+
+      try
+	{
+	  if (operation != OP_AWAIT_UPLOADS)
+	    {
+	      statistics = getCache (parseTreeUri (uri)).statistics;
+
+	      /* Report the failure of any upload to this document.  */
+	      if (documentId != null && uploader.hasErrors ())
+		uploader.checkError (getDocumentKey (uri, documentId));
+	    }
+
+	  switch (operation)
+	    {
+	    case OP_DOCUMENT_ID_FROM_NAME:
+	      intResult = documentIdFromName1 (uri, name, idReturn,
+						signal);
+	      break;
+
+	    case OP_STAT_DOCUMENT:
+	      objectResult = statDocument1 (uri, documentId, signal,
+					    noCache, stat);
+	      break;
+
+	    case OP_ACCESS_DOCUMENT:
+	      intResult = accessDocument1 (uri, documentId, write,
+					   signal);
+	      break;
+
+	    case OP_OPEN_DOCUMENT_DIRECTORY:
+	      objectResult = openDocumentDirectory1 (uri, documentId,
+						     signal);
+	      break;
+
+	    case OP_OPEN_DOCUMENT:
+	      objectResult = openDocument1 (uri, documentId, read, write,
+					    truncate, spool, writeBehind,
+					    signal);
+	      break;
+
+	    case OP_AWAIT_UPLOADS:
+	      awaitUploads1 (uri, documentId, signal);
+	      break;
+	    }
+	}
+      catch (Throwable throwable)
+	{
+	  error = throwable;
+	}
 
-       Later, runObjectFunction will try to re-throw any error object
-       generated by this function in the Emacs thread, using a trick
-       to avoid the compiler requirement to expressly declare that an
-       error (and which types of errors) will be signaled.  */
+      if (statistics != null)
+	statistics.record (operation, start);
 
-    public abstract Object runObject (CancellationSignal signal)
-      throws Throwable;
+      EmacsNative.safPostRequest ();
+    }
   };
 
-
+  /* The request reused by the Emacs thread.  */
+  private final SafRequest request = new SafRequest ();
 
   /* Functions that run cancel-able queries.  These functions are
      internally run within the SAF thread.  */
@@ -815,121 +1725,222 @@ public abstract Object runObject (CancellationSignal signal)
     throw (T) exception;
   }
 
-  /* Run the given function (or rather, its `runInt' field) within the
-     SAF thread, waiting for it to complete.
+  /* Return a request for an operation OPERATION whose arguments are
+     yet to be filled in.  Value is normally `request', but a new
+     request is created if it is already in use.  */
+
+  private SafRequest
+  obtainRequest (int operation)
+  {
+    SafRequest tem;
+
+    /* Only one thread can call into Lisp at any given time, and SAF
+       requests are not made while one is already in progress, so this
+       should never happen; but create a new request if it does.  */
+    tem = request.busy ? new SafRequest () : request;
+
+    tem.busy = true;
+    tem.operation = operation;
+
+    if (tem.signal == null || tem.signal.isCanceled ())
+      tem.signal = new CancellationSignal ();
+
+    return tem;
+  }
+
+  /* Run the given REQUEST within the SAF thread, waiting for it to
+     complete.
 
      If async input arrives in the meantime and sets Vquit_flag,
-     signal the cancellation signal supplied to that function.
+     signal the cancellation signal supplied to that request.
 
-     Rethrow any exception thrown from that function, and return its
-     value otherwise.  */
+     Rethrow any exception thrown by the operation.  Its results are
+     otherwise left in REQUEST, which must be released with
+     `releaseRequest' once they are read.  */
 
-  private int
-  runIntFunction (final SafIntFunction function)
+  private void
+  runRequest (SafRequest request)
   {
-    final EmacsHolder<Object> result;
-    final CancellationSignal signal;
     Throwable throwable;
 
-    result = new EmacsHolder<Object> ();
-    signal = new CancellationSignal ();
+    handler.post (request);
 
-    handler.post (new Runnable () {
-	@Override
-	public void
-	run ()
-	{
-	  try
-	    {
-	      result.thing
-		= Integer.valueOf (function.runInt (signal));
-	    }
-	  catch (Throwable throwable)
-	    {
-	      result.thing = throwable;
-	    }
+    if (EmacsNative.safSyncAndReadInput () != 0)
+      {
+	request.signal.cancel ();
+
+	/* Now wait for the function to finish.  Either the signal has
+	   arrived after the query took place, in which case it will
+	   finish normally, or an OperationCanceledException will be
+	   thrown.  */
+
+	EmacsNative.safSync ();
+
+	if (request.statistics != null)
+	  request.statistics.count (EmacsSafStatistics.QUITS);
+      }
+
+    if (request.error != null)
+      {
+	throwable = request.error;
+	releaseRequest (request);
+	EmacsSafThread.<RuntimeException>throwException (throwable);
+      }
+  }
+
+  /* Release REQUEST for subsequent operations, and clear references
+     to its arguments and results.  */
+
+  private void
+  releaseRequest (SafRequest request)
+  {
+    request.uri = null;
+    request.documentId = null;
+    request.name = null;
+    request.idReturn = null;
+    request.objectResult = null;
+    request.error = null;
+    request.statistics = null;
+    request.busy = false;
+  }
+
+  /* Return the URI designated by STRING.  As only a handful of trees
+     are generally accessed at any one time, and the same tree is
+     often accessed repeatedly, the last URI to be parsed is
+     retained.  */
+
+  private Uri
+  parseTreeUri (String string)
+  {
+    if (!string.equals (lastTreeUriString))
+      {
+	lastTreeUri = Uri.parse (string);
+	lastTreeUriString = string;
+      }
+
+    return lastTreeUri;
+  }
+
+  /* Search the persistent cache for the file NAME within the tree
+     URI, whose last component is COMPONENT and whose parent directory
+     is PARENTID.  If it is present, verify that the document it
+     records still exists under that name, and enter it into the
+     cache list CHILDREN and TOPLEVEL's caches.
+
+     Value is the cache entry thus created, or NULL if the file is
+     absent from the persistent cache or the entry has become
+     obsolete.  Place the document ID of the file in ID_RETURN[0] if
+     successful.  */
+
+  private CacheEntry
+  resolvePersistentEntry (Uri uri, String name, String component,
+			  String parentId, CacheToplevel toplevel,
+			  DocIdTable children, String[] id_return,
+			  CancellationSignal signal)
+  {
+    EmacsSafCacheFile.Entry entry;
+    String tree, displayName, type;
+    String[] projection;
+    Cursor cursor;
+    int nameColumn, typeColumn, mtimeColumn;
+    long mtime;
+
+    tree = uri.toString ();
+    entry = persistentCache.get (tree, name);
+
+    if (entry == null)
+      return null;
+
+    /* If the directory that once held this document has been
+       replaced, the document cannot be the file being sought.  */
+
+    if (!entry.parentId.equals (parentId))
+      {
+	persistentCache.remove (tree, name);
+	return null;
+      }
+
+    projection = new String[] {
+      Document.COLUMN_DISPLAY_NAME,
+      Document.COLUMN_FLAGS,
+      Document.COLUMN_LAST_MODIFIED,
+      Document.COLUMN_MIME_TYPE,
+      Document.COLUMN_SIZE,
+    };
 
-	  EmacsNative.safPostRequest ();
-	}
-      });
+    cursor = null;
 
-    if (EmacsNative.safSyncAndReadInput () != 0)
+    try
       {
-	signal.cancel ();
+	cursor = resolver.query (DocumentsContract.buildDocumentUriUsingTree (uri,
+									      entry.documentId),
+				 projection, null, null, null, signal);
 
-	/* Now wait for the function to finish.  Either the signal has
-	   arrived after the query took place, in which case it will
-	   finish normally, or an OperationCanceledException will be
-	   thrown.  */
+	if (cursor == null || !cursor.moveToFirst ())
+	  {
+	    persistentCache.remove (tree, name);
+	    return null;
+	  }
 
-	EmacsNative.safSync ();
-      }
+	nameColumn = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
+	typeColumn = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
+	mtimeColumn = cursor.getColumnIndex (Document.COLUMN_LAST_MODIFIED);
 
-    if (result.thing instanceof Throwable)
-      {
-	throwable = (Throwable) result.thing;
-	EmacsSafThread.<RuntimeException>throwException (throwable);
-      }
+	if (nameColumn < 0 || typeColumn < 0)
+	  return null;
 
-    return (Integer) result.thing;
-  }
+	displayName = cursor.getString (nameColumn);
+	type = cursor.getString (typeColumn);
 
-  /* Run the given function (or rather, its `runObject' field) within
-     the SAF thread, waiting for it to complete.
+	/* The document might have been renamed.  */
 
-     If async input arrives in the meantime and sets Vquit_flag,
-     signal the cancellation signal supplied to that function.
+	if (type == null || !component.equals (displayName))
+	  {
+	    persistentCache.remove (tree, name);
+	    return null;
+	  }
 
-     Rethrow any exception thrown from that function, and return its
-     value otherwise.  */
+	mtime = -1;
 
-  private Object
-  runObjectFunction (final SafObjectFunction function)
-  {
-    final EmacsHolder<Object> result;
-    final CancellationSignal signal;
-    Throwable throwable;
+	if (mtimeColumn >= 0 && !cursor.isNull (mtimeColumn))
+	  mtime = cursor.getLong (mtimeColumn);
 
-    result = new EmacsHolder<Object> ();
-    signal = new CancellationSignal ();
+	if (mtime != entry.mtime || !type.equals (entry.type))
+	  {
+	    /* If a directory has been modified, files might have been
+	       removed from or renamed within it, so its children must
+	       be verified against the directory itself.  */
 
-    handler.post (new Runnable () {
-	@Override
-	public void
-	run ()
-	{
-	  try
-	    {
-	      result.thing = function.runObject (signal);
-	    }
-	  catch (Throwable throwable)
-	    {
-	      result.thing = throwable;
-	    }
+	    if (entry.type.equals (Document.MIME_TYPE_DIR))
+	      persistentCache.removeChildren (tree, name);
 
-	  EmacsNative.safPostRequest ();
-	}
-      });
+	    entry.type = type;
+	    entry.mtime = mtime;
+	    persistentCache.put (tree, name, entry);
+	  }
 
-    if (EmacsNative.safSyncAndReadInput () != 0)
+	/* The file status is available here, so save it too.  */
+	cacheFileStatus (entry.documentId, toplevel, cursor, false);
+	id_return[0] = entry.documentId;
+	return cacheChild (toplevel, children, component,
+			   entry.documentId, type, parentId, false);
+      }
+    catch (OperationCanceledException e)
       {
-	signal.cancel ();
-
-	/* Now wait for the function to finish.  Either the signal has
-	   arrived after the query took place, in which case it will
-	   finish normally, or an OperationCanceledException will be
-	   thrown.  */
-
-	EmacsNative.safSync ();
+	throw e;
       }
-
-    if (result.thing instanceof Throwable)
+    catch (Exception e)
       {
-	throwable = (Throwable) result.thing;
-	EmacsSafThread.<RuntimeException>throwException (throwable);
+	/* Document providers signal a variety of exceptions when asked
+	   for a document that no longer exists.  */
+	persistentCache.remove (tree, name);
+	return null;
+      }
+    finally
+      {
+	if (cursor != null)
+	  cursor.close ();
       }
-
-    return result.thing;
   }
 
   /* The crux of `documentIdFromName1', run within the SAF thread.
@@ -940,52 +1951,85 @@ public abstract Object runObject (CancellationSignal signal)
 		       String[] id_return, CancellationSignal signal)
   {
     Uri uri, treeUri;
-    String id, type, newId, newType;
-    String[] components, projection;
+    String id, type, newId, newType, parentId, component;
+    String displayName, prefix;
+    String[] persistentId;
     Cursor cursor;
-    int nameColumn, idColumn, typeColumn;
+    int nameColumn, idColumn, typeColumn, mtimeColumn;
+    int start, end, nameEnd, depth;
+    boolean last;
     CacheToplevel toplevel;
     DocIdEntry idEntry;
-    HashMap<String, DocIdEntry> children, next;
-    CacheEntry cache;
-
-    projection = new String[] {
-      Document.COLUMN_DISPLAY_NAME,
-      Document.COLUMN_DOCUMENT_ID,
-      Document.COLUMN_MIME_TYPE,
-    };
+    DocIdTable children, next;
+    CacheEntry cache, nextCache;
+    ResolvedPath resolved;
+    EmacsSafCacheFile.Entry persistentEntry;
 
     /* Parse the URI identifying the tree first.  */
-    uri = Uri.parse (tree_uri);
-
-    /* Now, split NAME into its individual components.  */
-    components = name.split ("/");
-
-    /* Set id and type to the value at the root of the tree.  */
-    type = id = null;
-    cursor = null;
+    uri = parseTreeUri (tree_uri);
 
     /* Obtain the top level of this cache.  */
     toplevel = getCache (uri);
+    resolved = toplevel.resolved;
+
+    /* Find the end of the last component of NAME, disregarding
+       trailing directory separators.  */
+
+    nameEnd = name.length ();
+
+    while (nameEnd > 0 && name.charAt (nameEnd - 1) == '/')
+      --nameEnd;
+
+    /* Begin from the last of the components shared with the file name
+       previously located, if any.  */
 
-    /* Set the current map of children to this top level.  */
-    children = toplevel.children;
+    depth = resolved.match (name, toplevel.generation);
+    resolved.reset (name, depth);
+    toplevel.statistics.count (EmacsSafStatistics.NAME_HITS, depth);
+
+    if (depth > 0)
+      {
+	start = resolved.ends[depth - 1];
+	id = resolved.ids[depth - 1];
+	type = resolved.entries[depth - 1].type;
+	children = resolved.entries[depth - 1].children;
+      }
+    else
+      {
+	/* Set id and type to the value at the root of the tree, and
+	   the current map of children to this top level.  */
+	start = 0;
+	type = id = null;
+	children = toplevel.children;
+      }
+
+    cursor = null;
+    persistentId = null;
 
     /* For each component... */
 
     try
       {
-	for (String component : components)
+	while (true)
 	  {
-	    /* Java split doesn't behave very much like strtok when it
-	       comes to trailing and leading delimiters...  */
-	    if (component.isEmpty ())
-	      continue;
+	    /* Skip past leading and repeated separators.  */
+	    while (start < nameEnd && name.charAt (start) == '/')
+	      ++start;
+
+	    if (start >= nameEnd)
+	      break;
+
+	    end = name.indexOf ('/', start);
+
+	    if (end < 0 || end > nameEnd)
+	      end = nameEnd;
+
+	    last = (end == nameEnd);
 
 	    /* Search for component within the currently cached list
 	       of children.  */
 
-	    idEntry = children.get (component);
+	    idEntry = children.get (name, start, end);
 
 	    if (idEntry != null)
 	      {
@@ -1006,10 +2050,11 @@ public abstract Object runObject (CancellationSignal signal)
 		       obtained.  Treat this as if the file does not
 		       exist.  */
 
-		    children.remove (component);
+		    children.remove (name, start, end);
+		    toplevel.generation++;
 
 		    if (id == null)
-		      id = DocumentsContract.getTreeDocumentId (uri);
+		      id = toplevel.treeDocumentId;
 
 		    id_return[0] = id;
 
@@ -1017,24 +2062,60 @@ public abstract Object runObject (CancellationSignal signal)
 			 || type.equals (Document.MIME_TYPE_DIR))
 			/* ... and type and id currently represent the
 			   penultimate component.  */
-			&& component == components[components.length  - 1])
+			&& last)
 		      return -2;
 
 		    return -1;
 		  }
 
 		/* Otherwise, use the cached information.  */
+		toplevel.statistics.count (EmacsSafStatistics.NAME_HITS);
 		id = idEntry.documentId;
 		type = cache.type;
 		children = cache.children;
+		resolved.record (depth++, end, id, cache,
+				 Math.min (idEntry.time, cache.time),
+				 toplevel.generation);
+		start = end;
 		continue;
 	      }
 
+	    toplevel.statistics.count (EmacsSafStatistics.NAME_MISSES);
+	    component = name.substring (start, end);
+
 	    /* Create the tree URI for URI from ID if it exists, or
 	       the root otherwise.  */
 
 	    if (id == null)
-	      id = DocumentsContract.getTreeDocumentId (uri);
+	      id = toplevel.treeDocumentId;
+
+	    /* See if this file was located in a previous session.  */
+
+	    prefix = null;
+
+	    if (persistentCache != null)
+	      {
+		prefix = EmacsSafCacheFile.normalizeName (name.substring (0,
+									  end));
+
+		if (persistentId == null)
+		  persistentId = new String[1];
+
+		cache = resolvePersistentEntry (uri, prefix, component,
+						id, toplevel, children,
+						persistentId, signal);
+
+		if (cache != null)
+		  {
+		    id = persistentId[0];
+		    type = cache.type;
+		    children = cache.children;
+		    resolved.record (depth++, end, id, cache, cache.time,
+				     toplevel.generation);
+		    start = end;
+		    continue;
+		  }
+	      }
 
 	    treeUri
 	      = DocumentsContract.buildChildDocumentsUriUsingTree (uri, id);
@@ -1042,7 +2123,7 @@ public abstract Object runObject (CancellationSignal signal)
 	    /* Look for a file in this directory by the name of
 	       component.  */
 
-	    cursor = resolver.query (treeUri, projection,
+	    cursor = resolver.query (treeUri, CHILD_PROJECTION,
 				     (Document.COLUMN_DISPLAY_NAME
 				      + " = ?"),
 				     new String[] { component, },
@@ -1060,11 +2141,16 @@ public abstract Object runObject (CancellationSignal signal)
 	      = cursor.getColumnIndex (Document.COLUMN_DOCUMENT_ID);
 	    typeColumn
 	      = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
+	    mtimeColumn
+	      = cursor.getColumnIndex (Document.COLUMN_LAST_MODIFIED);
 
 	    if (nameColumn < 0 || idColumn < 0 || typeColumn < 0)
 	      return -1;
 
 	    next = null;
+	    nextCache = null;
+	    persistentEntry = null;
+	    parentId = id;
 
 	    while (true)
 	      {
@@ -1086,7 +2172,7 @@ public abstract Object runObject (CancellationSignal signal)
 			 || type.equals (Document.MIME_TYPE_DIR))
 			/* ... and type and id currently represent the
 			   penultimate component.  */
-			&& component == components[components.length  - 1])
+			&& last)
 		      {
 			/* The cursor is empty.  In this case, return
 			   -2 and the current document ID (belonging
@@ -1112,7 +2198,7 @@ public abstract Object runObject (CancellationSignal signal)
 		/* So move CURSOR to a row with the right display
 		   name.  */
 
-		name = cursor.getString (nameColumn);
+		displayName = cursor.getString (nameColumn);
 		newId = cursor.getString (idColumn);
 		newType = cursor.getString (typeColumn);
 
@@ -1120,30 +2206,48 @@ public abstract Object runObject (CancellationSignal signal)
 		   column data is of the wrong type depending on how
 		   the Cursor returned is implemented.  */
 
-		if (name == null || newId == null || newType == null)
+		if (displayName == null || newId == null
+		    || newType == null)
 		  return -1;
 
 		/* Cache this name, even if it isn't the document
 		   that's being searched for.  */
 
-		cache = cacheChild (toplevel, children, name,
-				    newId, newType,
-				    idEntry != null);
+		cache = cacheChild (toplevel, children, displayName,
+				    newId, newType, parentId, false);
 
 		/* Record the desired component once it is located,
 		   but continue reading and caching items from the
 		   cursor.  */
 
-		if (name.equals (component))
+		if (displayName.equals (component))
 		  {
+		    if (prefix != null)
+		      {
+			/* Record this document for future sessions.  */
+			persistentEntry = new EmacsSafCacheFile.Entry ();
+			persistentEntry.documentId = newId;
+			persistentEntry.parentId = parentId;
+			persistentEntry.type = newType;
+			persistentEntry.mtime = -1;
+
+			if (mtimeColumn >= 0 && !cursor.isNull (mtimeColumn))
+			  persistentEntry.mtime = cursor.getLong (mtimeColumn);
+		      }
+
 		    id = newId;
 		    next = cache.children;
+		    nextCache = cache;
 		    type = newType;
 		  }
 	      }
 
 	    children = next;
 
+	    if (persistentEntry != null)
+	      persistentCache.put (uri.toString (), prefix,
+				   persistentEntry);
+
 	    /* Now close the cursor.  */
 	    cursor.close ();
 	    cursor = null;
@@ -1152,6 +2256,10 @@ public abstract Object runObject (CancellationSignal signal)
 	       format.  */
 	    if (id == null)
 	      return -1;
+
+	    resolved.record (depth++, end, id, nextCache, nextCache.time,
+			     toplevel.generation);
+	    start = end;
 	  }
       }
     finally
@@ -1171,7 +2279,7 @@ type is either NULL (in which case id should also be NULL) or
     /* First return the ID.  */
 
     if (id == null)
-      id_return[0] = DocumentsContract.getTreeDocumentId (uri);
+      id_return[0] = toplevel.treeDocumentId;
     else
       id_return[0] = id;
 
@@ -1205,15 +2313,17 @@ type is either NULL (in which case id should also be NULL) or
   documentIdFromName (final String tree_uri, final String name,
 		      final String[] id_return)
   {
-    return runIntFunction (new SafIntFunction () {
-	@Override
-	public int
-	runInt (CancellationSignal signal)
-	{
-	  return documentIdFromName1 (tree_uri, name, id_return,
-				      signal);
-	}
-      });
+    SafRequest request;
+    int rc;
+
+    request = obtainRequest (OP_DOCUMENT_ID_FROM_NAME);
+    request.uri = tree_uri;
+    request.name = name;
+    request.idReturn = id_return;
+    runRequest (request);
+    rc = request.intResult;
+    releaseRequest (request);
+    return rc;
   }
 
   /* The bulk of `statDocument'.  SIGNAL should be a cancellation
@@ -1221,45 +2331,65 @@ type is either NULL (in which case id should also be NULL) or
 
   private long[]
   statDocument1 (String uri, String documentId,
-		 CancellationSignal signal, boolean noCache)
+		 CancellationSignal signal, boolean noCache,
+		 long[] stat)
   {
     Uri uriObject, tree;
-    String[] projection;
-    long[] stat;
     Cursor cursor;
     CacheToplevel toplevel;
     StatCacheEntry cache;
 
-    tree = Uri.parse (uri);
+    tree = parseTreeUri (uri);
+    toplevel = getCache (tree);
 
     if (documentId == null)
-      documentId = DocumentsContract.getTreeDocumentId (tree);
-
-    /* Create a document URI representing DOCUMENTID within URI's
-       authority.  */
-
-    uriObject
-      = DocumentsContract.buildDocumentUriUsingTree (tree, documentId);
+      documentId = toplevel.treeDocumentId;
+
+    /* If this document is being written through a local file, return
+       the status of that file rather than that of the document's
+       former contents.  Waiting for the upload would delay each save,
+       since Emacs obtains the status of a file just after writing it.
+       The status of the document itself is not cached till the
+       upload completes.  */
+
+    if (uploader.hasUploads ()
+	&& uploader.statLocalFile (getDocumentKey (uri, documentId),
+				   stat))
+      {
+	stat[0] = S_IRUSR | S_IWUSR | S_IFREG;
+	return stat;
+      }
 
     /* See if the file status cache currently contains this
        document.  */
 
-    toplevel = getCache (tree);
     cache = toplevel.statCache.get (documentId);
 
-    if (cache == null || !cache.isValid ())
+    if (cache != null && cache.isValid ())
+      {
+	toplevel.statistics.count (EmacsSafStatistics.STAT_HITS);
+
+	if (cache.prefetched)
+	  {
+	    toplevel.statistics.count (EmacsSafStatistics.PREFETCH_HITS);
+	    cache.prefetched = false;
+	  }
+      }
+    else
       {
+	if (!noCache)
+	  recordStatMiss (tree, toplevel, documentId);
+
+	/* Create a document URI representing DOCUMENTID within URI's
+	   authority.  */
+
+	uriObject
+	  = DocumentsContract.buildDocumentUriUsingTree (tree, documentId);
+
 	/* Stat this document and enter its information into the
 	   cache.  */
 
-	projection = new String[] {
-	  Document.COLUMN_FLAGS,
-	  Document.COLUMN_LAST_MODIFIED,
-	  Document.COLUMN_MIME_TYPE,
-	  Document.COLUMN_SIZE,
-	};
-
-	cursor = resolver.query (uriObject, projection, null,
+	cursor = resolver.query (uriObject, STAT_PROJECTION, null,
 				 null, null, signal);
 
 	if (cursor == null)
@@ -1284,11 +2414,9 @@ type is either NULL (in which case id should also be NULL) or
 	  return null;
       }
 
-    /* Create the array of file status and populate it with the
-       information within cache.  */
-    stat = new long[3];
-
-    stat[0] |= S_IRUSR;
+    /* Populate the array of file status with the information within
+       cache.  */
+    stat[0] = S_IRUSR;
     if ((cache.flags & Document.FLAG_SUPPORTS_WRITE) != 0)
       stat[0] |= S_IWUSR;
 
@@ -1340,21 +2468,26 @@ type is either NULL (in which case id should also be NULL) or
      If NOCACHE, refrain from placing the file status within the
      status cache.
 
+     The array returned is reused by subsequent calls, so its contents
+     must be read before this function is called again.
+
      OperationCanceledException and other typical exceptions may be
      signaled upon receiving async input or other errors.  */
 
   public long[]
-  statDocument (final String uri, final String documentId,
-		final boolean noCache)
+  statDocument (String uri, String documentId, boolean noCache)
   {
-    return (long[]) runObjectFunction (new SafObjectFunction () {
-	@Override
-	public Object
-	runObject (CancellationSignal signal)
-	{
-	  return statDocument1 (uri, documentId, signal, noCache);
-	}
-      });
+    SafRequest request;
+    long[] stat;
+
+    request = obtainRequest (OP_STAT_DOCUMENT);
+    request.uri = uri;
+    request.documentId = documentId;
+    request.noCache = noCache;
+    runRequest (request);
+    stat = (long[]) request.objectResult;
+    releaseRequest (request);
+    return stat;
   }
 
   /* The bulk of `accessDocument'.  SIGNAL should be a cancellation
@@ -1365,17 +2498,17 @@ type is either NULL (in which case id should also be NULL) or
 		   CancellationSignal signal)
   {
     Uri uriObject;
-    String[] projection;
     int tem, index;
     String tem1;
     Cursor cursor;
     CacheToplevel toplevel;
     CacheEntry entry;
 
-    uriObject = Uri.parse (uri);
+    uriObject = parseTreeUri (uri);
+    toplevel = getCache (uriObject);
 
     if (documentId == null)
-      documentId = DocumentsContract.getTreeDocumentId (uriObject);
+      documentId = toplevel.treeDocumentId;
 
     /* If WRITABLE is false and the document ID is cached, use its
        cached value instead.  This speeds up
@@ -1383,7 +2516,6 @@ type is either NULL (in which case id should also be NULL) or
 
     if (!writable)
       {
-	toplevel = getCache (uriObject);
 	entry = toplevel.idCache.get (documentId);
 
 	if (entry != null)
@@ -1398,12 +2530,7 @@ type is either NULL (in which case id should also be NULL) or
 
     /* Now stat this document.  */
 
-    projection = new String[] {
-      Document.COLUMN_FLAGS,
-      Document.COLUMN_MIME_TYPE,
-    };
-
-    cursor = resolver.query (uriObject, projection, null,
+    cursor = resolver.query (uriObject, ACCESS_PROJECTION, null,
 			     null, null, signal);
 
     if (cursor == null)
@@ -1478,18 +2605,19 @@ In addition, arbitrary runtime exceptions (such as
      thrown.  */
 
   public int
-  accessDocument (final String uri, final String documentId,
-		  final boolean writable)
+  accessDocument (String uri, String documentId, boolean writable)
   {
-    return runIntFunction (new SafIntFunction () {
-	@Override
-	public int
-	runInt (CancellationSignal signal)
-	{
-	  return accessDocument1 (uri, documentId, writable,
-				  signal);
-	}
-      });
+    SafRequest request;
+    int rc;
+
+    request = obtainRequest (OP_ACCESS_DOCUMENT);
+    request.uri = uri;
+    request.documentId = documentId;
+    request.write = writable;
+    runRequest (request);
+    rc = request.intResult;
+    releaseRequest (request);
+    return rc;
   }
 
   /* The crux of openDocumentDirectory.  SIGNAL must be a cancellation
@@ -1555,39 +2683,91 @@ In addition, arbitrary runtime exceptions (such as
      thrown.  */
 
   public Cursor
-  openDocumentDirectory (final String uri, final String documentId)
+  openDocumentDirectory (String uri, String documentId)
   {
-    return (Cursor) runObjectFunction (new SafObjectFunction () {
-	@Override
-	public Object
-	runObject (CancellationSignal signal)
-	{
-	  return openDocumentDirectory1 (uri, documentId, signal);
-	}
-      });
+    SafRequest request;
+    Cursor cursor;
+
+    request = obtainRequest (OP_OPEN_DOCUMENT_DIRECTORY);
+    request.uri = uri;
+    request.documentId = documentId;
+    runRequest (request);
+    cursor = (Cursor) request.objectResult;
+    releaseRequest (request);
+    return cursor;
   }
 
   /* The crux of `openDocument'.  SIGNAL must be a cancellation
      signal.  */
 
   public ParcelFileDescriptor
-  openDocument1 (String uri, String documentId, boolean read,
-		 boolean write, boolean truncate,
-		 CancellationSignal signal)
+  openDocument1 (String uri, final String documentId, boolean read,
+		 boolean write, boolean truncate, boolean spool,
+		 boolean writeBehind, CancellationSignal signal)
     throws Throwable
   {
-    Uri treeUri, documentUri;
-    String mode;
+    final Uri treeUri;
+    Uri documentUri;
+    String mode, key;
     ParcelFileDescriptor fileDescriptor;
     CacheToplevel toplevel;
+    long mtime;
 
-    treeUri = Uri.parse (uri);
+    treeUri = parseTreeUri (uri);
 
     /* documentId must be set for this request, since it doesn't make
        sense to ``open'' the root of the directory tree.  */
 
     documentUri
       = DocumentsContract.buildDocumentUriUsingTree (treeUri, documentId);
+    key = getDocumentKey (uri, documentId);
+    mtime = -1;
+
+    /* If this document was last written through a local file, wait
+       for its contents to be uploaded, lest they be read or
+       overwritten before they arrive.  If it is being opened for
+       writing, discard the contents of any such file that is still
+       open.  */
+    uploader.await (key, signal, write);
+
+    if (write)
+      {
+	/* Any copy of this document is about to become obsolete.  */
+	this.spool.remove (key);
+
+	/* If requested, return a local file whose contents will be
+	   copied into the document once it is closed.  This is only
+	   possible when the document is truncated, as its existing
+	   contents are otherwise absent from that file.  */
+
+	if (writeBehind && truncate)
+	  {
+	    invalidateStatus (getCache (treeUri), documentId);
+	    return uploader.open (documentUri, key, new Runnable () {
+		@Override
+		public void
+		run ()
+		{
+		  postInvalidateStat (treeUri, documentId);
+		}
+	      });
+	  }
+      }
+    else if (spool)
+      {
+	/* If this document has been copied before and has not been
+	   modified since, return the copy.  */
+
+	mtime = getLastModified (documentUri, signal);
+
+	if (mtime != -1)
+	  {
+	    fileDescriptor = this.spool.open (key, mtime);
+
+	    if (fileDescriptor != null)
+	      return fileDescriptor;
+	  }
+      }
 
     /* Select the mode used to open the file.  */
 
@@ -1659,11 +2839,71 @@ else if (!read && write && truncate && fileDescriptor != null)
     /* Every time a document is opened, remove it from the file status
        cache.  */
     toplevel = getCache (treeUri);
-    toplevel.statCache.remove (documentId);
+    invalidateStatus (toplevel, documentId);
+
+    /* If the file descriptor returned is not that of a regular file,
+       copy the document into one if requested.  */
+
+    if (spool && !write && fileDescriptor != null
+	&& fileDescriptor.getStatSize () < 0)
+      fileDescriptor = this.spool.spool (key, mtime, fileDescriptor,
+					 signal);
 
     return fileDescriptor;
   }
 
+  /* Return a string identifying the document DOCUMENTID within the
+     tree URI to the spool.  */
+
+  private static String
+  getDocumentKey (String uri, String documentId)
+  {
+    return uri + '\0' + documentId;
+  }
+
+  /* Return the last modification time of the document DOCUMENTURI, or
+     -1 if it cannot be established.  SIGNAL is a cancellation signal
+     for the query.  */
+
+  private long
+  getLastModified (Uri documentUri, CancellationSignal signal)
+  {
+    Cursor cursor;
+    int column;
+
+    cursor = null;
+
+    try
+      {
+	cursor = resolver.query (documentUri, MTIME_PROJECTION, null,
+				 null, null, signal);
+
+	if (cursor == null || !cursor.moveToFirst ())
+	  return -1;
+
+	column = cursor.getColumnIndex (Document.COLUMN_LAST_MODIFIED);
+
+	if (column < 0 || cursor.isNull (column))
+	  return -1;
+
+	return cursor.getLong (column);
+      }
+    catch (OperationCanceledException e)
+      {
+	throw e;
+      }
+    catch (Exception e)
+      {
+	/* Let openFileDescriptor report errors.  */
+	return -1;
+      }
+    finally
+      {
+	if (cursor != null)
+	  cursor.close ();
+      }
+  }
+
   /* Open a file descriptor for a file document designated by
      DOCUMENTID within the document tree identified by URI.  If
      TRUNCATE and the document already exists, truncate its contents
@@ -1675,7 +2915,14 @@ else if (!read && write && truncate && fileDescriptor != null)
      the file after it is opened.
 
      If only READ or WRITE is set, value may be a non-seekable FIFO or
-     one end of a socket pair.
+     one end of a socket pair, unless READ and SPOOL are set, in which
+     case such a file descriptor is replaced by one referring to a
+     copy of the document within the cache directory.
+
+     If WRITE, TRUNCATE and WRITEBEHIND are set, value refers to a
+     local file whose contents are copied into the document after it
+     is closed.  Should that fail, the next operation on the document
+     will throw an IOException.
 
      Value is NULL upon failure or a parcel file descriptor upon
      success.  Call `ParcelFileDescriptor.close' on this file
@@ -1686,23 +2933,129 @@ else if (!read && write && truncate && fileDescriptor != null)
      may be thrown upon failure.  */
 
   public ParcelFileDescriptor
-  openDocument (final String uri, final String documentId,
-		final boolean read, final boolean write,
-		final boolean truncate)
+  openDocument (String uri, String documentId, boolean read,
+		boolean write, boolean truncate, boolean spool,
+		boolean writeBehind)
   {
-    Object tem;
+    SafRequest request;
+    ParcelFileDescriptor fd;
+
+    request = obtainRequest (OP_OPEN_DOCUMENT);
+    request.uri = uri;
+    request.documentId = documentId;
+    request.read = read;
+    request.write = write;
+    request.truncate = truncate;
+    request.spool = spool;
+    request.writeBehind = writeBehind;
+    runRequest (request);
+    fd = (ParcelFileDescriptor) request.objectResult;
+    releaseRequest (request);
+    return fd;
+  }
 
-    tem = runObjectFunction (new SafObjectFunction () {
-	@Override
-	public Object
-	runObject (CancellationSignal signal)
-	  throws Throwable
-	{
-	  return openDocument1 (uri, documentId, read,
-				write, truncate, signal);
-	}
-      });
+  /* Return whether the document DOCUMENTID within TOPLEVEL might be
+     ANCESTOR or lie within it.  Value is true unless the parent of
+     each directory between DOCUMENTID and the root of the tree is
+     known, and none of them is ANCESTOR.  */
+
+  private static boolean
+  mightBeWithin (CacheToplevel toplevel, String documentId,
+		 String ancestor)
+  {
+    CacheEntry entry;
+    int depth;
+
+    /* Limit the number of links followed, lest a document provider
+       report a cycle.  */
+
+    for (depth = 0; depth <= toplevel.idCache.size (); ++depth)
+      {
+	if (documentId.equals (ancestor))
+	  return true;
+
+	if (documentId.equals (toplevel.treeDocumentId))
+	  return false;
+
+	entry = toplevel.idCache.get (documentId);
+
+	if (entry == null || entry.parent == null)
+	  return true;
+
+	documentId = entry.parent;
+      }
+
+    return true;
+  }
+
+  /* The crux of `awaitUpload' and `syncDocuments'.  SIGNAL must be a
+     cancellation signal.  */
+
+  private void
+  awaitUploads1 (String uri, String documentId,
+		 CancellationSignal signal)
+    throws Throwable
+  {
+    CacheToplevel toplevel;
+    String prefix;
+
+    if (documentId != null)
+      {
+	/* DOCUMENTID might be a directory containing documents being
+	   uploaded, which would be written under their former names if
+	   the directory were renamed or moved beforehand.  Wait for
+	   uploads to any document within it, or to any document whose
+	   ancestry is unknown.  */
+
+	toplevel = getCache (parseTreeUri (uri));
+	prefix = getDocumentKey (uri, "");
+
+	for (String key : uploader.getClosedUploads (prefix))
+	  {
+	    if (mightBeWithin (toplevel,
+			       key.substring (prefix.length ()),
+			       documentId))
+	      uploader.await (key, signal, false);
+	  }
+      }
+    else
+      {
+	uploader.awaitAll (signal);
+	uploader.checkErrors ();
+      }
+  }
+
+  /* Wait for the contents of any local file written in place of the
+     document DOCUMENTID, or any document within it, to be copied into
+     that document.  URI is the document tree containing DOCUMENTID.
+     Call this before deleting, renaming or moving the document.
+
+     OperationCanceledException may be thrown if the wait is
+     interrupted.  */
+
+  public void
+  awaitUpload (String uri, String documentId)
+  {
+    SafRequest request;
+
+    request = obtainRequest (OP_AWAIT_UPLOADS);
+    request.uri = uri;
+    request.documentId = documentId;
+    runRequest (request);
+    releaseRequest (request);
+  }
+
+  /* Wait for the contents of every local file written in place of a
+     document to be copied into that document.  If any such copy has
+     failed, throw an IOException describing its failure.  */
+
+  public void
+  syncDocuments ()
+  {
+    SafRequest request;
 
-    return (ParcelFileDescriptor) tem;
+    request = obtainRequest (OP_AWAIT_UPLOADS);
+    runRequest (request);
+    releaseRequest (request);
   }
 };
@@ -0,0 +1,775 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.content.ContentResolver;
+
+import android.net.Uri;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+
+import android.util.Log;
+
+
+
+/* Writing to a document provider is frequently much slower than
+   writing to a local file, particularly if the provider transmits
+   each document to a remote server as it is written.
+
+   This class supplies file descriptors referring to files within the
+   cache directory in place of documents opened for writing, and
+   copies the contents of each such file into its document on a
+   separate thread once Emacs closes it.  Subsequent attempts to open
+   the same document wait for that copy to complete, and errors
+   encountered while copying are recorded and reported by the next
+   operation on the document.
+
+   Beside each local file is a record of the document into which it
+   is to be copied, whose name is suffixed with PENDING_SUFFIX while
+   Emacs is writing to the file, and READY_SUFFIX once it has been
+   closed.  Should Emacs exit before a copy completes, the copy is
+   resumed in the next session; and should it exit while still
+   writing to a file, the file is preserved and its existence
+   reported as an error, as its contents might be incomplete.
+
+   Files are opened from the SAF thread, copied on the upload thread,
+   and waited for from either the SAF thread or the Emacs thread, so
+   the record of pending uploads is synchronized on this object.  */
+
+public final class EmacsSafUploader
+{
+  private static final String TAG = "EmacsSafUploader";
+
+  /* Number of milliseconds in between each test of the cancellation
+     signal while waiting for an upload to complete.  */
+  private static final int WAIT_INTERVAL = 100;
+
+  /* Suffixes of the records of the documents to which local files
+     are to be copied, while Emacs is writing to those files and once
+     they have been closed.  */
+  private static final String PENDING_SUFFIX = ".pending";
+  private static final String READY_SUFFIX = ".ready";
+
+  /* Interface through which the completion of uploads resumed from
+     previous sessions is reported.  */
+
+  public interface Callback
+  {
+    /* Called on the upload thread once the contents of a local file
+       have been copied into the document KEY.  */
+    void uploaded (String key);
+  };
+
+  private static final class Upload
+  {
+    /* The key identifying the document being written, and the URI of
+       the document itself.  */
+    String key;
+    Uri uri;
+
+    /* The local file to which Emacs is writing, and the record of
+       the document into which it will be copied.  */
+    File file, record;
+
+    /* The file descriptor returned for that file, or NULL if the file
+       was written in a previous session.  */
+    ParcelFileDescriptor descriptor;
+
+    /* Function run on the upload thread once the document has been
+       written or the upload has failed.  */
+    Runnable completion;
+
+    /* Whether Emacs has closed the local file, and its contents are
+       being copied into the document.  */
+    boolean closed;
+
+    /* Whether the document has since been opened for writing again,
+       so that the contents of this file must be discarded.  */
+    boolean superseded;
+  };
+
+  /* The content resolver through which documents are written.  */
+  private final ContentResolver resolver;
+
+  /* The directory holding files being written.  */
+  private final File directory;
+
+  /* Map between keys identifying documents and the uploads to them
+     that have yet to complete.  */
+  private final HashMap<String, Upload> uploads;
+
+  /* Map between keys identifying documents and the errors with which
+     uploads to them failed.  */
+  private final HashMap<String, Exception> errors;
+
+  /* Map between keys identifying documents and local files that could
+     not be copied into them and have been preserved, which are
+     deleted once those documents are written again.  */
+  private final HashMap<String, Upload> stranded;
+
+  /* Handler for the upload thread, or NULL if it has not been
+     started.  */
+  private Handler handler;
+
+  public
+  EmacsSafUploader (ContentResolver resolver, File directory)
+  {
+    this.resolver = resolver;
+    this.directory = directory;
+    this.uploads = new HashMap<String, Upload> ();
+    this.errors = new HashMap<String, Exception> ();
+    this.stranded = new HashMap<String, Upload> ();
+  }
+
+  /* Start the upload thread if it is not yet running, and create
+     `directory' if it does not exist.  */
+
+  private void
+  initialize ()
+  {
+    HandlerThread thread;
+
+    if (handler != null)
+      return;
+
+    thread = new HandlerThread ("Document upload thread");
+    thread.start ();
+    handler = new Handler (thread.getLooper ());
+
+    if (!directory.isDirectory () && !directory.mkdirs ())
+      Log.w (TAG, "Failed to create " + directory);
+  }
+
+  /* Save the key and URI of UPLOAD's document in its record.  */
+
+  private static void
+  writeRecord (Upload upload)
+    throws IOException
+  {
+    FileOutputStream output;
+    DataOutputStream stream;
+
+    output = new FileOutputStream (upload.record);
+    stream = new DataOutputStream (output);
+
+    try
+      {
+	stream.writeUTF (upload.key);
+	stream.writeUTF (upload.uri.toString ());
+	stream.flush ();
+	output.getFD ().sync ();
+      }
+    finally
+      {
+	stream.close ();
+      }
+  }
+
+  /* Load the key and URI of UPLOAD's document from its record.  */
+
+  private static void
+  readRecord (Upload upload)
+    throws IOException
+  {
+    DataInputStream stream;
+
+    stream = new DataInputStream (new FileInputStream (upload.record));
+
+    try
+      {
+	upload.key = stream.readUTF ();
+	upload.uri = Uri.parse (stream.readUTF ());
+      }
+    finally
+      {
+	stream.close ();
+      }
+  }
+
+  /* Delete UPLOAD's local file and its record.  */
+
+  private static void
+  discard (Upload upload)
+  {
+    upload.file.delete ();
+    upload.record.delete ();
+  }
+
+  /* Return a file descriptor referring to a new local file whose
+     contents will be copied into the document DOCUMENTURI, identified
+     by KEY, once it is closed.  Run COMPLETION on the upload thread
+     after the copy completes or fails.
+
+     The document must not be read or written until then; call
+     `await' before accessing it.  */
+
+  public ParcelFileDescriptor
+  open (Uri documentUri, String key, Runnable completion)
+    throws IOException
+  {
+    final Upload upload;
+    ParcelFileDescriptor fd;
+    ParcelFileDescriptor.OnCloseListener listener;
+    int mode;
+
+    initialize ();
+
+    upload = new Upload ();
+    upload.key = key;
+    upload.uri = documentUri;
+    upload.completion = completion;
+    upload.file = File.createTempFile ("upload", null, directory);
+    upload.record = new File (directory, (upload.file.getName ()
+					  + PENDING_SUFFIX));
+
+    try
+      {
+	writeRecord (upload);
+      }
+    catch (IOException e)
+      {
+	discard (upload);
+	throw e;
+      }
+
+    listener = new ParcelFileDescriptor.OnCloseListener () {
+	@Override
+	public void
+	onClose (IOException e)
+	{
+	  finish (upload, e);
+	}
+      };
+    mode = (ParcelFileDescriptor.MODE_READ_WRITE
+	    | ParcelFileDescriptor.MODE_CREATE
+	    | ParcelFileDescriptor.MODE_TRUNCATE);
+
+    try
+      {
+	fd = ParcelFileDescriptor.open (upload.file, mode, handler,
+					listener);
+      }
+    catch (IOException e)
+      {
+	discard (upload);
+	throw e;
+      }
+
+    upload.descriptor = fd;
+
+    synchronized (this)
+      {
+	uploads.put (key, upload);
+      }
+
+    return fd;
+  }
+
+  /* Return whether UPLOAD's local file is still open.  Emacs might
+     have closed it before the upload thread is notified.  */
+
+  private static boolean
+  isOpen (Upload upload)
+  {
+    return (!upload.closed
+	    && upload.descriptor.getFileDescriptor ().valid ());
+  }
+
+  /* If the document KEY is being written through a local file, or
+     that file is being copied into it, save the size and last
+     modification time of that file into STAT[1] and STAT[2], and
+     return true.  Else, return false.  */
+
+  public synchronized boolean
+  statLocalFile (String key, long[] stat)
+  {
+    Upload upload;
+
+    upload = uploads.get (key);
+
+    if (upload == null)
+      return false;
+
+    stat[1] = upload.file.length ();
+    stat[2] = upload.file.lastModified ();
+    return true;
+  }
+
+  /* Return whether any document is being written through a local
+     file.  */
+
+  public synchronized boolean
+  hasUploads ()
+  {
+    return !uploads.isEmpty ();
+  }
+
+  /* Wait for any upload to the document KEY that has begun to
+     complete.  If SUPERSEDE, arrange that the contents of any local
+     file Emacs is still writing to this document are discarded once
+     it is closed, and delete any file preserved from a failed upload
+     to this document.  SIGNAL is a cancellation signal, which may be
+     NULL, tested periodically while waiting.  */
+
+  public synchronized void
+  await (String key, CancellationSignal signal, boolean supersede)
+    throws InterruptedException
+  {
+    Upload upload;
+
+    if (supersede && !stranded.isEmpty ()
+	&& (upload = stranded.remove (key)) != null)
+      discard (upload);
+
+    while ((upload = uploads.get (key)) != null)
+      {
+	if (isOpen (upload))
+	  {
+	    if (supersede)
+	      {
+		upload.superseded = true;
+		uploads.remove (key);
+	      }
+
+	    return;
+	  }
+
+	wait (WAIT_INTERVAL);
+
+	if (signal != null)
+	  signal.throwIfCanceled ();
+      }
+  }
+
+  /* Wait for every upload that has begun to complete.  SIGNAL is as
+     in `await'.  */
+
+  public synchronized void
+  awaitAll (CancellationSignal signal)
+    throws InterruptedException
+  {
+    while (hasClosedUploads ())
+      {
+	wait (WAIT_INTERVAL);
+
+	if (signal != null)
+	  signal.throwIfCanceled ();
+      }
+  }
+
+  /* Return the keys of the documents whose keys start with PREFIX to
+     which uploads have begun but not yet completed.  */
+
+  public synchronized String[]
+  getClosedUploads (String prefix)
+  {
+    ArrayList<String> keys;
+
+    keys = new ArrayList<String> ();
+
+    for (Upload upload : uploads.values ())
+      {
+	if (!isOpen (upload) && upload.key.startsWith (prefix))
+	  keys.add (upload.key);
+      }
+
+    return keys.toArray (new String[keys.size ()]);
+  }
+
+  /* Return whether any upload has begun, but not yet completed.  */
+
+  private boolean
+  hasClosedUploads ()
+  {
+    for (Upload upload : uploads.values ())
+      {
+	if (!isOpen (upload))
+	  return true;
+      }
+
+    return false;
+  }
+
+  /* Return whether any upload has failed without the failure being
+     reported.  */
+
+  public synchronized boolean
+  hasErrors ()
+  {
+    return !errors.isEmpty ();
+  }
+
+  /* If the last upload to the document KEY failed, throw an
+     IOException describing its failure, which is reported only
+     once.  */
+
+  public synchronized void
+  checkError (String key)
+    throws IOException
+  {
+    Exception error;
+
+    error = errors.remove (key);
+
+    if (error != null)
+      throw new IOException ("Failed to write document: " + error,
+			     error);
+  }
+
+  /* Throw an IOException describing the failure of any upload that
+     has not yet been reported, as in `checkError'.  */
+
+  public synchronized void
+  checkErrors ()
+    throws IOException
+  {
+    Iterator<Map.Entry<String, Exception>> iter;
+    Exception error;
+
+    iter = errors.entrySet ().iterator ();
+
+    if (!iter.hasNext ())
+      return;
+
+    error = iter.next ().getValue ();
+    iter.remove ();
+    throw new IOException ("Failed to write document: " + error,
+			   error);
+  }
+
+  /* Copy the contents of UPLOAD's local file into its document.
+     Called on the upload thread once Emacs closes that file, with
+     EXCEPTION set if it was not closed normally.  */
+
+  private void
+  finish (Upload upload, IOException exception)
+  {
+    Exception error;
+    File ready;
+
+    synchronized (this)
+      {
+	if (upload.superseded)
+	  {
+	    discard (upload);
+	    return;
+	  }
+
+	upload.closed = true;
+      }
+
+    error = exception;
+
+    if (error == null)
+      {
+	/* Record that the file is complete, so that its upload is
+	   resumed if Emacs exits before it finishes.  */
+
+	ready = new File (directory, (upload.file.getName ()
+				      + READY_SUFFIX));
+
+	if (upload.record.renameTo (ready))
+	  upload.record = ready;
+	else
+	  Log.w (TAG, "Failed to rename " + upload.record);
+
+	try
+	  {
+	    upload (upload);
+	  }
+	catch (Exception e)
+	  {
+	    error = e;
+	  }
+      }
+
+    if (error != null)
+      Log.w (TAG, "Failed to write " + upload.uri + ": " + error);
+
+    /* Run the completion function first, so that the status of the
+       document is invalidated before it ceases to be answered from
+       the local file.  */
+    upload.completion.run ();
+
+    synchronized (this)
+      {
+	if (uploads.get (upload.key) == upload)
+	  uploads.remove (upload.key);
+
+	if (error != null)
+	  errors.put (upload.key, error);
+
+	notifyAll ();
+      }
+
+    /* This failure is reported to Emacs, so the file need not be
+       preserved.  */
+    discard (upload);
+  }
+
+  /* Copy the contents of UPLOAD's local file, which was closed in a
+     previous session, into its document.  If this fails, preserve
+     the file and report the failure.  Called on the upload
+     thread.  */
+
+  private void
+  resumeUpload (Upload upload)
+  {
+    Exception error;
+
+    error = null;
+
+    try
+      {
+	upload (upload);
+      }
+    catch (Exception e)
+      {
+	error = e;
+      }
+
+    upload.completion.run ();
+
+    synchronized (this)
+      {
+	if (uploads.get (upload.key) == upload)
+	  uploads.remove (upload.key);
+
+	if (error == null)
+	  discard (upload);
+	else
+	  {
+	    Log.w (TAG, ("Failed to write " + upload.uri + ", preserving "
+			 + upload.file + ": " + error));
+	    errors.put (upload.key, error);
+	    stranded.put (upload.key, upload);
+	  }
+
+	notifyAll ();
+      }
+  }
+
+  /* Resume copying local files closed in previous sessions into their
+     documents, and report those which Emacs was still writing to when
+     it exited.  Call CALLBACK with the key of each document once its
+     upload finishes, whether or not it succeeds.  */
+
+  public void
+  resume (final Callback callback)
+  {
+    File[] files;
+    String name;
+    HashMap<String, Upload> latest;
+    Upload upload, previous;
+    boolean ready;
+
+    initialize ();
+    files = directory.listFiles ();
+
+    if (files == null)
+      return;
+
+    /* If a document was written more than once, only the most recent
+       contents are relevant.  */
+
+    Arrays.sort (files, new Comparator<File> () {
+	@Override
+	public int
+	compare (File a, File b)
+	{
+	  long x, y;
+
+	  x = a.lastModified ();
+	  y = b.lastModified ();
+	  return x < y ? -1 : (x == y ? 0 : 1);
+	}
+      });
+
+    latest = new HashMap<String, Upload> ();
+
+    for (File file : files)
+      {
+	name = file.getName ();
+
+	if (name.endsWith (READY_SUFFIX))
+	  ready = true;
+	else if (name.endsWith (PENDING_SUFFIX))
+	  ready = false;
+	else
+	  continue;
+
+	upload = new Upload ();
+	upload.record = file;
+	upload.file = new File (directory,
+				name.substring (0, name.lastIndexOf ('.')));
+	upload.closed = ready;
+
+	if (!upload.file.exists ())
+	  {
+	    file.delete ();
+	    continue;
+	  }
+
+	try
+	  {
+	    readRecord (upload);
+	  }
+	catch (IOException e)
+	  {
+	    /* Leave the file be, for lack of any knowledge of its
+	       document.  */
+	    Log.w (TAG, "Failed to read " + file + ": " + e);
+	    continue;
+	  }
+
+	previous = latest.put (upload.key, upload);
+
+	if (previous != null)
+	  discard (previous);
+      }
+
+    for (final Upload item : latest.values ())
+      {
+	item.completion = new Runnable () {
+	    @Override
+	    public void
+	    run ()
+	    {
+	      callback.uploaded (item.key);
+	    }
+	  };
+
+	if (!item.closed)
+	  {
+	    /* Emacs exited while writing to this file, so its contents
+	       might be incomplete.  Preserve it till the document is
+	       written again.  */
+	    Log.w (TAG, ("Emacs exited while writing " + item.uri
+			 + ", preserving " + item.file));
+
+	    synchronized (this)
+	      {
+		errors.put (item.key,
+			    new IOException ("Emacs exited while writing "
+					     + "this document; its contents"
+					     + " are preserved in "
+					     + item.file));
+		stranded.put (item.key, item);
+	      }
+
+	    continue;
+	  }
+
+	synchronized (this)
+	  {
+	    uploads.put (item.key, item);
+	  }
+
+	handler.post (new Runnable () {
+	    @Override
+	    public void
+	    run ()
+	    {
+	      resumeUpload (item);
+	    }
+	  });
+      }
+  }
+
+  /* Open UPLOAD's document for writing and copy the contents of its
+     local file into it.  */
+
+  private void
+  upload (Upload upload)
+    throws IOException
+  {
+    ParcelFileDescriptor fd;
+    FileInputStream input;
+    FileChannel channel;
+    WritableByteChannel target;
+    long position, size;
+    boolean regular;
+
+    fd = resolver.openFileDescriptor (upload.uri, "w");
+
+    if (fd == null)
+      throw new FileNotFoundException ("Document could not be opened: "
+				       + upload.uri);
+
+    input = null;
+
+    try
+      {
+	/* Document providers that return actual seekable files
+	   characteristically neglect to truncate them when the access
+	   mode is merely w, as in `openDocument1'.  */
+	regular = fd.getStatSize () >= 0;
+
+	if (regular)
+	  EmacsNative.ftruncate (fd.getFd ());
+
+	input = new FileInputStream (upload.file);
+	channel = input.getChannel ();
+
+	/* The document might be a pipe, so FD must not be supplied to
+	   transferTo as a FileChannel.  */
+	target
+	  = Channels.newChannel (new FileOutputStream (fd.getFileDescriptor ()));
+	size = channel.size ();
+	position = 0;
+
+	while (position < size)
+	  position += channel.transferTo (position, size - position,
+					  target);
+
+	if (regular)
+	  fd.getFileDescriptor ().sync ();
+      }
+    finally
+      {
+	if (input != null)
+	  input.close ();
+
+	fd.close ();
+      }
+  }
+};
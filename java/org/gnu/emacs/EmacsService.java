@@ -20,6 +20,7 @@
 package org.gnu.emacs;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -27,7 +28,9 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -37,14 +40,10 @@
 
 import android.database.Cursor;
 
-import android.graphics.Matrix;
 import android.graphics.Point;
 
-import android.webkit.MimeTypeMap;
-
 import android.view.InputDevice;
 import android.view.KeyEvent;
-import android.view.inputmethod.CursorAnchorInfo;
 import android.view.inputmethod.ExtractedText;
 
 import android.app.AlarmManager;
@@ -80,6 +79,7 @@
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
 import android.os.VibratorManager;
@@ -152,9 +152,58 @@ public final class EmacsService extends Service
   /* "Resources" object required by GContext bookkeeping.  */
   public static Resources resources;
 
+  /* Maximum number of content names retained by
+     `buildContentName'.  */
+  private static final int MAX_CONTENT_NAMES = 64;
+
+  /* Number of seconds for which a content name is retained, after
+     which its provider is asked for the display name again, as it
+     might since have been renamed.  */
+  private static final int CONTENT_NAME_TIMEOUT = 5;
+
+  /* A content name and the time at which it was built.  */
+
+  private static final class ContentName
+  {
+    final String name;
+    final long time;
+
+    public
+    ContentName (String name)
+    {
+      this.name = name;
+      this.time = SystemClock.uptimeMillis ();
+    }
+
+    public boolean
+    isValid ()
+    {
+      return ((SystemClock.uptimeMillis () - time)
+	      < CONTENT_NAME_TIMEOUT * 1000);
+    }
+  };
+
+  /* Map between URIs and the content names built for them, in order
+     of their last use.  Synchronized on itself.  */
+  private static final LinkedHashMap<String, ContentName> contentNames;
+
+  /* Buffer into which display names are encoded by
+     `getDisplayNameHash'.  Synchronized on `contentNames'.  */
+  private static byte[] displayNameBuffer;
+
   static
   {
     servicingQuery = new AtomicInteger ();
+    contentNames
+      = new LinkedHashMap<String, ContentName> (16, 0.75f, true) {
+	@Override
+	protected boolean
+	removeEldestEntry (Map.Entry<String, ContentName> eldest)
+	{
+	  return size () > MAX_CONTENT_NAMES;
+	}
+      };
+    displayNameBuffer = new byte[256];
   };
 
   /* Return the directory leading to the directory in which native
@@ -819,13 +868,13 @@ invocation of app_process (through android-emacs) can
 
 
 
-  /* IMM functions such as `updateSelection' holds an internal lock
-     that is also taken before `onCreateInputConnection' (in
+  /* IMM functions such as `updateExtractedText' holds an internal
+     lock that is also taken before `onCreateInputConnection' (in
      EmacsView.java) is called; when that then asks the UI thread for
      the current selection, a dead lock results.  To remedy this,
      reply to any synchronous queries now -- and prohibit more queries
-     for the duration of `updateSelection' -- if EmacsView may have
-     been asking for the value of the region.  */
+     for the duration of `updateExtractedText' -- if EmacsView may
+     have been asking for the value of the region.  */
 
   public static void
   icBeginSynchronous ()
@@ -872,34 +921,84 @@ invocation of app_process (through android-emacs) can
 
 
 
+  /* Selection updates and input method resets are posted to the UI
+     thread rather than being made from the Emacs thread, which would
+     otherwise wait for the IMM's internal lock each time point moves.
+     Each is labeled with the value of the view's
+     `icUpdateGeneration' after it is incremented, and a selection
+     update is discarded if another update or reset has been posted
+     by the time it runs, so that only the newest selection is
+     reported.
+
+     The IMM's lock is taken on the UI thread, where
+     `onCreateInputConnection' is also called, so these need not be
+     bracketed by icBeginSynchronous and icEndSynchronous, which must
+     only be called from the Emacs thread.  */
+
   public void
   updateIC (EmacsWindow window, int newSelectionStart,
 	    int newSelectionEnd, int composingRegionStart,
 	    int composingRegionEnd)
   {
+    final EmacsView view;
+    final long generation;
+
     if (DEBUG_IC)
       Log.d (TAG, ("updateIC: " + window + " " + newSelectionStart
 		   + " " + newSelectionEnd + " "
 		   + composingRegionStart + " "
 		   + composingRegionEnd));
 
-    icBeginSynchronous ();
-    window.view.imManager.updateSelection (window.view,
-					   newSelectionStart,
-					   newSelectionEnd,
-					   composingRegionStart,
-					   composingRegionEnd);
-    icEndSynchronous ();
+    view = window.view;
+
+    synchronized (view.pendingSelection)
+      {
+	view.pendingSelection[0] = newSelectionStart;
+	view.pendingSelection[1] = newSelectionEnd;
+	view.pendingSelection[2] = composingRegionStart;
+	view.pendingSelection[3] = composingRegionEnd;
+	generation = ++view.icUpdateGeneration;
+      }
+
+    runOnUiThread (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  int start, end, composingStart, composingEnd;
+
+	  synchronized (view.pendingSelection)
+	    {
+	      /* Discard this update if it has been superseded.  */
+	      if (generation != view.icUpdateGeneration)
+		return;
+
+	      start = view.pendingSelection[0];
+	      end = view.pendingSelection[1];
+	      composingStart = view.pendingSelection[2];
+	      composingEnd = view.pendingSelection[3];
+	    }
+
+	  view.imManager.updateSelection (view, start, end,
+					  composingStart,
+					  composingEnd);
+	}
+      });
   }
 
   public void
   resetIC (EmacsWindow window, int icMode)
   {
+    final EmacsView view;
     int oldMode;
 
     if (DEBUG_IC)
       Log.d (TAG, "resetIC: " + window + ", " + icMode);
 
+    /* The text mirrored for the input method is no longer
+       valid.  */
+    window.view.textMirror.invalidate ();
+
     oldMode = window.view.getICMode ();
 
     /* If it's not necessary to reset the input connection for ICMODE to
@@ -911,6 +1010,17 @@ invocation of app_process (through android-emacs) can
 	return;
       }
 
+    view = window.view;
+
+    /* Discard selection updates that have yet to be made, as the
+       input method will obtain the selection afresh once it is
+       reset.  */
+
+    synchronized (view.pendingSelection)
+      {
+	view.icUpdateGeneration++;
+      }
+
     if (oldMode == icMode
 	&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
       {
@@ -922,56 +1032,46 @@ invocation of app_process (through android-emacs) can
 	   faster, as it does not involve resetting the input
 	   connection.  */
 
-	icBeginSynchronous ();
-	window.view.imManager.invalidateInput (window.view);
-	icEndSynchronous ();
+	runOnUiThread (new Runnable () {
+	    @Override
+	    public void
+	    run ()
+	    {
+	      view.imManager.invalidateInput (view);
+	    }
+	  });
 
 	return;
       }
 
-    window.view.setICMode (icMode);
+    view.setICMode (icMode);
+    view.icGeneration++;
 
-    icBeginSynchronous ();
-    window.view.icGeneration++;
-    window.view.imManager.restartInput (window.view);
-    icEndSynchronous ();
+    runOnUiThread (new Runnable () {
+	@Override
+	public void
+	run ()
+	{
+	  view.imManager.restartInput (view);
+	}
+      });
   }
 
   public void
-  updateCursorAnchorInfo (final EmacsWindow window, float x,
+  updateCursorAnchorInfo (EmacsWindow window, float x,
 			  float y, float yBaseline,
 			  float yBottom)
   {
-    final CursorAnchorInfo info;
-    CursorAnchorInfo.Builder builder;
-    Matrix matrix;
-    int[] offsets;
-
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
       return;
 
-    offsets = new int[2];
-    builder = new CursorAnchorInfo.Builder ();
-    matrix = new Matrix (window.view.getMatrix ());
-    window.view.getLocationOnScreen (offsets);
-    matrix.postTranslate (offsets[0], offsets[1]);
-    builder.setMatrix (matrix);
-    builder.setInsertionMarkerLocation (x, y, yBaseline, yBottom,
-					0);
-    info = builder.build ();
-
     if (DEBUG_IC)
       Log.d (TAG, ("updateCursorAnchorInfo: " + x + " " + y
 		   + " " + yBaseline + "-" + yBottom));
 
-    EmacsService.SERVICE.runOnUiThread (new Runnable () {
-	@Override
-	public void
-	run ()
-	{
-	  window.view.imManager.updateCursorAnchorInfo (window.view, info);
-	}
-    });
+    /* The position is reported at the start of the next frame, and
+       only if it has changed.  */
+    window.view.cursorAnchor.update (x, y, yBaseline, yBottom);
   }
 
 
@@ -1069,28 +1169,23 @@ class where they reside, return the process credentials against
     return rc == PackageManager.PERMISSION_GRANTED;
   }
 
-  /* Return a 8 character checksum for the string STRING, after encoding
-     as UTF-8 data.  */
+  /* Write STRING to STREAM, encoded as modified UTF-8 data.
 
-  private static String
-  getDisplayNameHash (String string)
+     Much of the VFS code expects file names to be encoded as modified
+     UTF-8 data, but Android's JNI implementation produces (while not
+     accepting!) regular UTF-8 sequences for all characters, even
+     non-Emoji ones.  With no documentation to this effect, save for
+     two comments nestled in the source code of the Java virtual
+     machine, it is not sound to assume that this behavior will not be
+     revised in future or modified releases of Android, and as such,
+     encode STRING into modified UTF-8 by hand, to protect against
+     future changes in this respect.  */
+
+  private static void
+  encodeModifiedUtf8 (ByteArrayOutputStream stream, String string)
   {
-    byte[] encoded;
-    ByteArrayOutputStream stream;
     int i, ch;
 
-    /* Much of the VFS code expects file names to be encoded as modified
-       UTF-8 data, but Android's JNI implementation produces (while not
-       accepting!) regular UTF-8 sequences for all characters, even
-       non-Emoji ones.  With no documentation to this effect, save for
-       two comments nestled in the source code of the Java virtual
-       machine, it is not sound to assume that this behavior will not be
-       revised in future or modified releases of Android, and as such,
-       encode STRING into modified UTF-8 by hand, to protect against
-       future changes in this respect.  */
-
-    stream = new ByteArrayOutputStream ();
-
     for (i = 0; i < string.length (); ++i)
       {
 	ch = string.charAt (i);
@@ -1109,13 +1204,59 @@ else if (ch <= 2047)
 	    stream.write (0x80 | (0x3f & ch));
 	  }
       }
+  }
 
-    encoded = stream.toByteArray ();
+  /* Write STRING into BUFFER, encoded as modified UTF-8 data as in
+     the preceding function, and return the number of bytes written.
+     BUFFER must be at least three times as long as STRING.  */
 
-    /* Closing a ByteArrayOutputStream has no effect.
-       encoded.close ();  */
+  private static int
+  encodeModifiedUtf8 (byte[] buffer, String string)
+  {
+    int i, ch, length;
+
+    length = 0;
+
+    for (i = 0; i < string.length (); ++i)
+      {
+	ch = string.charAt (i);
 
-    return EmacsNative.displayNameHash (encoded);
+	if (ch != 0 && ch <= 127)
+	  buffer[length++] = (byte) ch;
+	else if (ch <= 2047)
+	  {
+	    buffer[length++] = (byte) (0xc0 | (0x1f & (ch >> 6)));
+	    buffer[length++] = (byte) (0x80 | (0x3f & ch));
+	  }
+	else
+	  {
+	    buffer[length++] = (byte) (0xe0 | (0x0f & (ch >> 12)));
+	    buffer[length++] = (byte) (0x80 | (0x3f & (ch >> 6)));
+	    buffer[length++] = (byte) (0x80 | (0x3f & ch));
+	  }
+      }
+
+    return length;
+  }
+
+  /* Return a 8 character checksum for the string STRING, after encoding
+     as UTF-8 data.  */
+
+  private static String
+  getDisplayNameHash (String string)
+  {
+    int length;
+
+    synchronized (contentNames)
+      {
+	/* Enlarge the buffer if STRING might not fit, but otherwise
+	   reuse it for every display name.  */
+	if (displayNameBuffer.length < string.length () * 3)
+	  displayNameBuffer = new byte[string.length () * 3];
+
+	length = encodeModifiedUtf8 (displayNameBuffer, string);
+	return EmacsNative.displayNameHash (displayNameBuffer, length);
+      }
   }
 
   /* Build a content file name for URI.
@@ -1129,26 +1270,43 @@ If a display name can be requested from URI (using the resolver
 
      A content name consists of any number of unencoded path segments
      separated by `/' characters, possibly followed by a question mark
-     and an encoded query string.  */
+     and an encoded query string.
+
+     Content names incorporating display names are retained for
+     CONTENT_NAME_TIMEOUT seconds, and returned when a name is
+     subsequently requested for the same URI in the meantime, without
+     querying its provider again.  */
 
   public static String
   buildContentName (Uri uri, ContentResolver resolver)
   {
     StringBuilder builder;
-    String displayName;
+    String displayName, key, name;
+    ContentName cached;
     Cursor cursor;
     int column;
 
+    key = uri.toString ();
+
+    synchronized (contentNames)
+      {
+	cached = contentNames.get (key);
+      }
+
+    if (cached != null && cached.isValid ())
+      return cached.name;
+
     displayName = null;
     cursor      = null;
 
     try
       {
-	cursor = resolver.query (uri, null, null, null, null);
+	cursor = resolver.query (uri, new String[] {
+	    OpenableColumns.DISPLAY_NAME,
+	  }, null, null, null);
 
-	if (cursor != null)
+	if (cursor != null && cursor.moveToFirst ())
 	  {
-	    cursor.moveToFirst ();
 	    column
 	      = cursor.getColumnIndexOrThrow (OpenableColumns.DISPLAY_NAME);
 	    displayName
@@ -1203,7 +1361,21 @@ If a display name can be requested from URI (using the resolver
 	builder.append (displayName);
       }
 
-    return builder.toString ();
+    name = builder.toString ();
+
+    /* Content names without display names are not retained, as the
+       provider might be able to supply one later, once the URI has
+       been granted to Emacs, for instance.  */
+
+    if (displayName != null)
+      {
+	synchronized (contentNames)
+	  {
+	    contentNames.put (key, new ContentName (name));
+	  }
+      }
+
+    return name;
   }
 
 
@@ -1315,6 +1487,19 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
 			temp, };
   }
 
+  public void
+  updateTextMirror (EmacsWindow window, String text, int offset,
+		    int start, int end, int flags, long counter,
+		    long serial)
+  {
+    if (DEBUG_IC)
+      Log.d (TAG, ("updateTextMirror: " + offset + ", " + start
+		   + ", " + end + " @" + counter + ", " + serial));
+
+    window.view.textMirror.update (text, offset, start, end, flags,
+				   counter, serial);
+  }
+
   public void
   updateExtractedText (EmacsWindow window, ExtractedText text,
 		       int token)
@@ -1461,6 +1646,30 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
     return treeList.toArray (new String[0]);
   }
 
+  /* Start the thread used to run SAF requests if it isn't already
+     running.  If `android-persistent-document-cache' is set, direct it
+     to save document IDs within the cache directory.  */
+
+  private void
+  startStorageThread ()
+  {
+    File cacheFile;
+
+    if (storageThread != null)
+      return;
+
+    cacheFile = null;
+
+    if (EmacsNative.shouldPersistDocumentCache ())
+      cacheFile = new File (getCacheDir (), "document-cache");
+
+    storageThread
+      = new EmacsSafThread (resolver, cacheFile,
+			    new File (getCacheDir (), "document-spool"),
+			    new File (getCacheDir (), "document-uploads"));
+    storageThread.start ();
+  }
+
   /* Find the document ID of the file within TREE_URI designated by
      NAME.
 
@@ -1483,14 +1692,7 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
   public int
   documentIdFromName (String tree_uri, String name, String[] id_return)
   {
-    /* Start the thread used to run SAF requests if it isn't already
-       running.  */
-
-    if (storageThread == null)
-      {
-	storageThread = new EmacsSafThread (resolver);
-	storageThread.start ();
-      }
+    startStorageThread ();
 
     return storageThread.documentIdFromName (tree_uri, name,
 					     id_return);
@@ -1554,14 +1756,7 @@ else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
   public long[]
   statDocument (String uri, String documentId, boolean noCache)
   {
-    /* Start the thread used to run SAF requests if it isn't already
-       running.  */
-
-    if (storageThread == null)
-      {
-	storageThread = new EmacsSafThread (resolver);
-	storageThread.start ();
-      }
+    startStorageThread ();
 
     return storageThread.statDocument (uri, documentId, noCache);
   }
@@ -1588,14 +1783,7 @@ In addition, arbitrary runtime exceptions (such as
   public int
   accessDocument (String uri, String documentId, boolean writable)
   {
-    /* Start the thread used to run SAF requests if it isn't already
-       running.  */
-
-    if (storageThread == null)
-      {
-	storageThread = new EmacsSafThread (resolver);
-	storageThread.start ();
-      }
+    startStorageThread ();
 
     return storageThread.accessDocument (uri, documentId, writable);
   }
@@ -1613,50 +1801,62 @@ In addition, arbitrary runtime exceptions (such as
   public Cursor
   openDocumentDirectory (String uri, String documentId)
   {
-    /* Start the thread used to run SAF requests if it isn't already
-       running.  */
-
-    if (storageThread == null)
-      {
-	storageThread = new EmacsSafThread (resolver);
-	storageThread.start ();
-      }
+    startStorageThread ();
 
     return storageThread.openDocumentDirectory (uri, documentId);
   }
 
-  /* Read a single directory entry from the specified CURSOR.  Return
-     NULL if at the end of the directory stream, and a directory entry
-     with `d_name' set to NULL if an error occurs.  */
+  /* Read up to MAX directory entries from the specified CURSOR, and
+     return them packed into an array of bytes, where each entry is
+     represented by one byte that is 1 if it is a directory and 0
+     otherwise, followed by its name in modified UTF-8 and a NULL
+     terminator.
+
+     Return NULL if at the end of the directory stream, and an empty
+     array if an error occurs before any entry is read.  An error that
+     occurs after entries have been read is reported by the next
+     call.  */
 
-  public EmacsDirectoryEntry
-  readDirectoryEntry (Cursor cursor)
+  public byte[]
+  readDirectoryEntries (Cursor cursor, int max)
   {
-    EmacsDirectoryEntry entry;
-    int index;
+    ByteArrayOutputStream stream;
+    int nameIndex, typeIndex, count;
     String name, type;
 
-    entry = new EmacsDirectoryEntry ();
+    stream = new ByteArrayOutputStream ();
+    count = 0;
+
+    /* Retrieve the indices of the display name and type columns just
+       once for the whole batch.  */
+    nameIndex = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
+    typeIndex = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
 
-    while (true)
+    while (count < max)
       {
 	if (!cursor.moveToNext ())
-	  return null;
+	  break;
 
-	/* First, retrieve the display name.  */
-	index = cursor.getColumnIndex (Document.COLUMN_DISPLAY_NAME);
-
-	if (index < 0)
-	  /* Return an invalid directory entry upon failure.  */
-	  return entry;
+	/* Return an empty array, which signifies an error, if the
+	   cursor lacks either column.  As the indices are the same for
+	   each row, no entry can have been read yet.  */
+	if (nameIndex < 0 || typeIndex < 0)
+	  return new byte[0];
 
 	try
 	  {
-	    name = cursor.getString (index);
+	    name = cursor.getString (nameIndex);
+	    type = cursor.getString (typeIndex);
 	  }
 	catch (Exception exception)
 	  {
-	    return entry;
+	    if (count == 0)
+	      return new byte[0];
+
+	    /* Return the entries read so far, and arrange for the next
+	       call to encounter this entry again.  */
+	    cursor.moveToPrevious ();
+	    break;
 	  }
 
 	/* Skip this entry if its name cannot be represented.  NAME
@@ -1668,31 +1868,17 @@ In addition, arbitrary runtime exceptions (such as
 	    || name.contains ("\0"))
 	  continue;
 
-	/* Now, look for its type.  */
-
-	index = cursor.getColumnIndex (Document.COLUMN_MIME_TYPE);
-
-	if (index < 0)
-	  /* Return an invalid directory entry upon failure.  */
-	  return entry;
-
-	try
-	  {
-	    type = cursor.getString (index);
-	  }
-	catch (Exception exception)
-	  {
-	    return entry;
-	  }
-
-	if (type != null
-	    && type.equals (Document.MIME_TYPE_DIR))
-	  entry.d_type = 1;
-	entry.d_name = name;
-	return entry;
+	stream.write (type != null && type.equals (Document.MIME_TYPE_DIR)
+		      ? 1 : 0);
+	encodeModifiedUtf8 (stream, name);
+	stream.write (0);
+	count++;
       }
 
-    /* Not reached.  */
+    if (count == 0)
+      return null;
+
+    return stream.toByteArray ();
   }
 
   /* Open a file descriptor for a file document designated by
@@ -1706,7 +1892,13 @@ In addition, arbitrary runtime exceptions (such as
      is opened.
 
      If only READ or WRITE is set, value may be a non-seekable FIFO or
-     one end of a socket pair.
+     one end of a socket pair, unless READ is set and
+     `android-spool-documents' is enabled, in which case the contents
+     of such a document are copied into the cache directory.
+
+     If WRITE and TRUNCATE are set and `android-write-behind-documents'
+     is enabled, value refers to a file within the cache directory
+     whose contents are copied into the document once it is closed.
 
      Value is NULL upon failure or a parcel file descriptor upon
      success.  Call `ParcelFileDescriptor.close' on this file
@@ -1719,17 +1911,12 @@ In addition, arbitrary runtime exceptions (such as
   openDocument (String uri, String documentId,
 		boolean read, boolean write, boolean truncate)
   {
-    /* Start the thread used to run SAF requests if it isn't already
-       running.  */
-
-    if (storageThread == null)
-      {
-	storageThread = new EmacsSafThread (resolver);
-	storageThread.start ();
-      }
+    startStorageThread ();
 
     return storageThread.openDocument (uri, documentId, read, write,
-				       truncate);
+				       truncate,
+				       EmacsNative.shouldSpoolDocuments (),
+				       EmacsNative.shouldWriteBehindDocuments ());
   }
 
   /* Create a new document with the given display NAME within the
@@ -1749,29 +1936,13 @@ In addition, arbitrary runtime exceptions (such as
   createDocument (String uri, String documentId, String name)
     throws FileNotFoundException
   {
-    String mimeType, separator, mime, extension;
-    int index;
-    MimeTypeMap singleton;
+    String mimeType;
     Uri treeUri, directoryUri, docUri;
+    long start;
 
     /* Try to get the MIME type for this document.
        Default to ``application/octet-stream''.  */
-
-    mimeType = "application/octet-stream";
-
-    /* Abuse WebView stuff to get the file's MIME type.  */
-
-    index = name.lastIndexOf ('.');
-
-    if (index > 0)
-      {
-	singleton = MimeTypeMap.getSingleton ();
-	extension = name.substring (index + 1);
-	mime = singleton.getMimeTypeFromExtension (extension);
-
-	if (mime != null)
-	  mimeType = mime;
-      }
+    mimeType = EmacsMimeTypes.getMimeType (name);
 
     /* Now parse URI.  */
     treeUri = Uri.parse (uri);
@@ -1785,9 +1956,13 @@ In addition, arbitrary runtime exceptions (such as
       = DocumentsContract.buildChildDocumentsUriUsingTree (treeUri,
 							   documentId);
 
+    start = System.nanoTime ();
     docUri = DocumentsContract.createDocument (resolver,
 					       directoryUri,
 					       mimeType, name);
+    EmacsSafStatistics.record (treeUri,
+			       EmacsSafStatistics.CREATE_DOCUMENT,
+			       start);
 
     if (docUri == null)
       return null;
@@ -1810,6 +1985,7 @@ In addition, arbitrary runtime exceptions (such as
   {
     int index;
     Uri treeUri, directoryUri, docUri;
+    long start;
 
     /* Now parse URI.  */
     treeUri = Uri.parse (uri);
@@ -1832,10 +2008,14 @@ In addition, arbitrary runtime exceptions (such as
     /* From Android's perspective, directories are just ordinary
        documents with the `MIME_TYPE_DIR' type.  */
 
+    start = System.nanoTime ();
     docUri = DocumentsContract.createDocument (resolver,
 					       directoryUri,
 					       Document.MIME_TYPE_DIR,
 					       name);
+    EmacsSafStatistics.record (treeUri,
+			       EmacsSafStatistics.CREATE_DOCUMENT,
+			       start);
 
     if (docUri == null)
       return null;
@@ -1861,11 +2041,21 @@ In addition, arbitrary runtime exceptions (such as
     throws FileNotFoundException
   {
     Uri uriObject, tree;
+    long start;
+    boolean deleted;
 
     tree = Uri.parse (uri);
     uriObject = DocumentsContract.buildDocumentUriUsingTree (tree, id);
 
-    if (DocumentsContract.deleteDocument (resolver, uriObject))
+    if (storageThread != null)
+      storageThread.awaitUpload (uri, id);
+
+    start = System.nanoTime ();
+    deleted = DocumentsContract.deleteDocument (resolver, uriObject);
+    EmacsSafStatistics.record (tree, EmacsSafStatistics.DELETE_DOCUMENT,
+			       start);
+
+    if (deleted)
       {
 	if (storageThread != null)
 	  storageThread.postInvalidateCache (tree, id, name);
@@ -1885,14 +2075,22 @@ In addition, arbitrary runtime exceptions (such as
   renameDocument (String uri, String docId, String dir, String name)
     throws FileNotFoundException
   {
-    Uri tree, uriObject;
+    Uri tree, uriObject, renamed;
+    long start;
 
     tree = Uri.parse (uri);
     uriObject = DocumentsContract.buildDocumentUriUsingTree (tree, docId);
 
-    if (DocumentsContract.renameDocument (resolver, uriObject,
-					  name)
-	!= null)
+    if (storageThread != null)
+      storageThread.awaitUpload (uri, docId);
+
+    start = System.nanoTime ();
+    renamed = DocumentsContract.renameDocument (resolver, uriObject,
+						name);
+    EmacsSafStatistics.record (tree, EmacsSafStatistics.RENAME_DOCUMENT,
+			       start);
+
+    if (renamed != null)
       {
 	/* Invalidate the cache.  */
 	if (storageThread != null)
@@ -1920,6 +2118,7 @@ In addition, arbitrary runtime exceptions (such as
   {
     Uri uri1, docId1, dstId1, srcId1;
     Uri name;
+    long start;
 
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
       throw new UnsupportedOperationException ("Documents aren't capable"
@@ -1931,10 +2130,16 @@ In addition, arbitrary runtime exceptions (such as
     dstId1 = DocumentsContract.buildDocumentUriUsingTree (uri1, dstId);
     srcId1 = DocumentsContract.buildDocumentUriUsingTree (uri1, srcId);
 
+    if (storageThread != null)
+      storageThread.awaitUpload (uri, docId);
+
     /* Move the document; this function returns the new ID of the
        document should it change.  */
+    start = System.nanoTime ();
     name = DocumentsContract.moveDocument (resolver, docId1,
 					   srcId1, dstId1);
+    EmacsSafStatistics.record (uri1, EmacsSafStatistics.MOVE_DOCUMENT,
+			       start);
 
     /* Now invalidate the caches for both DIRNAME and DOCID.  */
 
@@ -1979,6 +2184,45 @@ In addition, arbitrary runtime exceptions (such as
     return false;
   }
 
+  /* Return statistics describing operations on document trees, in the
+     format described above `EmacsSafStatistics.getStatistics'.  */
+
+  public Object[]
+  getStorageStatistics ()
+  {
+    return EmacsSafStatistics.getStatistics ();
+  }
+
+  /* Return the histogram of input latencies, in the format described
+     above `EmacsLatencyTracer.getHistogram'.  Clear it afterwards if
+     RESET.  */
+
+  public long[]
+  getInputLatencyHistogram (boolean reset)
+  {
+    return EmacsLatencyTracer.getHistogram (reset);
+  }
+
+  /* Set the keycode repeated activation of which should signal quit
+     to KEYCODE.  Called when `android-quit-keycode' is changed.  */
+
+  public void
+  setQuitKeycode (int keycode)
+  {
+    EmacsWindow.quitKeycode = keycode;
+  }
+
+  /* Wait for documents written through files within the cache
+     directory to be copied into their document providers.  Throw an
+     IOException if any such copy has failed.  */
+
+  public void
+  syncDocuments ()
+  {
+    if (storageThread != null)
+      storageThread.syncDocuments ();
+  }
+
   /* Relinquish authorization for read and write access to the provided
      URI, which is generally a reference to a directory tree.  */
 
@@ -1992,6 +2236,11 @@ In addition, arbitrary runtime exceptions (such as
     flags = (Intent.FLAG_GRANT_READ_URI_PERMISSION
 	     | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
     resolver.releasePersistableUriPermission (uri1, flags);
+
+    /* Forget everything cached about this tree, lest it should be
+       reused if access is subsequently granted again.  */
+    if (storageThread != null)
+      storageThread.postDiscardTree (uri1);
   }
 
 
@@ -0,0 +1,213 @@
+/* Communication module for Android terminals.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2023-2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+package org.gnu.emacs;
+
+import android.view.inputmethod.SurroundingText;
+
+
+
+/* Copy of the text surrounding point in a window's selected buffer,
+   with which input method requests for that text are answered on the
+   UI thread, without waiting for the Emacs thread.
+
+   Emacs provides a copy of the text around point and the mark each
+   time it redisplays a change to that text or reports a new
+   selection to the input method (see `android_refresh_text_mirror'
+   in androidterm.c.)  Each copy is labeled with the number of edits
+   from the input method and the serial of the last key event that
+   had been processed when it was made.  Once the input method
+   performs another edit, or another key event is sent to Emacs, the
+   copy is no longer used until Emacs replaces it, and requests are
+   answered by the Emacs thread as before.
+
+   The copy is updated from the Emacs thread and read from the UI
+   thread, so it is synchronized on this object.  */
+
+public final class EmacsTextMirror
+{
+  /* Flags describing the text mirrored.  Keep these in synch with
+     `enum android_text_mirror_flags' in androidgui.h.  */
+
+  /* The mark is active.  */
+  public static final int MARK_ACTIVE = 1;
+
+  /* The text extends to the start of the field being edited.  */
+  public static final int FIELD_START = 2;
+
+  /* The text extends to the end of the field being edited.  */
+  public static final int FIELD_END = 4;
+
+  /* The text mirrored, or NULL if none is available.  */
+  private String text;
+
+  /* The position of the text within the field, counting from 0.  */
+  private int offset;
+
+  /* The positions of the mark and point within that text.  */
+  private int start, end;
+
+  /* Flags describing the text.  */
+  private int flags;
+
+  /* The number of edits by the input method that had been performed
+     when the text was copied.  */
+  private long counter;
+
+  /* The serial of the last key event to have been processed when the
+     text was copied, and that of the last key event sent to
+     Emacs.  */
+  private long serial, keySerial;
+
+  /* Replace the text mirrored with TEXT, which is OFFSET characters
+     into the field being edited and holds the mark and point at START
+     and END.  FLAGS is a mask of the flags defined above.  COUNTER
+     and SERIAL are the number of edits and the serial of the last key
+     event processed as of the text's being copied.  TEXT may be NULL
+     if no text is available, as when the region is too large to
+     mirror.  */
+
+  public synchronized void
+  update (String text, int offset, int start, int end, int flags,
+	  long counter, long serial)
+  {
+    this.text = text;
+    this.offset = offset;
+    this.start = start;
+    this.end = end;
+    this.flags = flags;
+    this.counter = counter;
+    this.serial = serial;
+  }
+
+  /* Discard the text mirrored, till Emacs provides another copy.  */
+
+  public synchronized void
+  invalidate ()
+  {
+    text = null;
+  }
+
+  /* Record that a key event with the serial SERIAL has been sent to
+     Emacs.  */
+
+  public synchronized void
+  noteKeyEvent (long serial)
+  {
+    keySerial = serial;
+  }
+
+  /* Return whether the text mirrored reflects every edit and key
+     event sent to Emacs.  */
+
+  private boolean
+  isCurrent ()
+  {
+    return (text != null && serial >= keySerial
+	    && counter == EmacsNative.getEditCounter ());
+  }
+
+  /* Return LENGTH characters before the start of the region or point,
+     or NULL if they are not available.  */
+
+  public synchronized String
+  getTextBeforeCursor (int length)
+  {
+    int position;
+
+    if (length < 0 || !isCurrent ())
+      return null;
+
+    position = Math.min (start, end);
+
+    if (position >= length)
+      return text.substring (position - length, position);
+    else if ((flags & FIELD_START) != 0)
+      return text.substring (0, position);
+
+    return null;
+  }
+
+  /* Return LENGTH characters after the end of the region or point, or
+     NULL if they are not available.  */
+
+  public synchronized String
+  getTextAfterCursor (int length)
+  {
+    int position;
+
+    if (length < 0 || !isCurrent ())
+      return null;
+
+    position = Math.max (start, end);
+
+    if (text.length () - position >= length)
+      return text.substring (position, position + length);
+    else if ((flags & FIELD_END) != 0)
+      return text.substring (position);
+
+    return null;
+  }
+
+  /* Return the text within the region, or the empty string if the
+     mark is inactive.  Value is NULL if it is not available.  */
+
+  public synchronized String
+  getSelectedText ()
+  {
+    if (!isCurrent ())
+      return null;
+
+    if ((flags & MARK_ACTIVE) == 0)
+      return "";
+
+    return text.substring (Math.min (start, end),
+			   Math.max (start, end));
+  }
+
+  /* Return BEFORELENGTH characters before the region and AFTERLENGTH
+     characters after, as in `getSurroundingText', or NULL if they are
+     not available.  */
+
+  public synchronized SurroundingText
+  getSurroundingText (int beforeLength, int afterLength)
+  {
+    int low, high, textStart, textEnd;
+
+    if (beforeLength < 0 || afterLength < 0 || !isCurrent ())
+      return null;
+
+    low = Math.min (start, end);
+    high = Math.max (start, end);
+
+    if (low < beforeLength && (flags & FIELD_START) == 0)
+      return null;
+
+    if (text.length () - high < afterLength
+	&& (flags & FIELD_END) == 0)
+      return null;
+
+    textStart = Math.max (0, low - beforeLength);
+    textEnd = high + Math.min (text.length () - high, afterLength);
+
+    return new SurroundingText (text.substring (textStart, textEnd),
+				low - textStart, high - textStart,
+				offset + textStart);
+  }
+};
@@ -125,6 +125,23 @@ public final class EmacsView extends ViewGroup
   /* The number of calls to `recetIC' that have taken place.  */
   public volatile long icGeneration;
 
+  /* Copy of the text around point with which the input connection
+     answers requests.  */
+  public final EmacsTextMirror textMirror;
+
+  /* The selection and composing region last reported by `updateIC',
+     which have yet to be given to the input method.  */
+  public final int[] pendingSelection;
+
+  /* The number of selection updates and input method resets to have
+     been posted to the UI thread.  Both this and `pendingSelection'
+     are synchronized on the latter.  */
+  public long icUpdateGeneration;
+
+  /* Reporter of the cursor position to the input method, or NULL
+     before Android 5.0.  */
+  public final EmacsCursorAnchor cursorAnchor;
+
   public
   EmacsView (EmacsWindow window)
   {
@@ -138,6 +155,13 @@ public final class EmacsView extends ViewGroup
 
       this.window = window;
       this.damageRegion = new Region ();
+      this.textMirror = new EmacsTextMirror ();
+      this.pendingSelection = new int[4];
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+	this.cursorAnchor = new EmacsCursorAnchor (this);
+      else
+	this.cursorAnchor = null;
 
       setFocusable (true);
       setFocusableInTouchMode (true);
@@ -507,6 +531,8 @@ else if (child.getVisibility () != GONE)
 	surfaceView.setBitmap (bitmap, damageRect);
 	postSwapBuffers ();
       }
+
+    EmacsLatencyTracer.noteSwap ();
   }
 
   @Override
@@ -956,6 +982,12 @@ else if (child.getVisibility () != GONE)
     getLocationInWindow (locations);
     window.notifyContentRectPosition (locations[0],
 				      locations[1]);
+
+    /* The position of this view on screen might also have changed,
+       so recompute the transformation reported to the input
+       method.  */
+    if (cursorAnchor != null)
+      cursorAnchor.invalidateMatrix ();
   }
 
   @Override
@@ -22,10 +22,8 @@
 import java.lang.IllegalStateException;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
@@ -54,7 +52,6 @@
 import android.view.ViewManager;
 import android.view.WindowManager;
 
-import android.util.SparseArray;
 import android.util.Log;
 
 import android.os.Build;
@@ -78,28 +75,6 @@ public final class EmacsWindow extends EmacsHandleObject
   /* Whether any windows have yet been created in this session.  */
   private static boolean initialWindowCreated;
 
-  private static class Coordinate
-  {
-    /* Integral coordinate.  */
-    int x, y;
-
-    /* Button associated with the coordinate, or 0 if it is a touch
-       event.  */
-    int button;
-
-    /* Pointer ID associated with the coordinate.  */
-    int id;
-
-    public
-    Coordinate (int x, int y, int button, int id)
-    {
-      this.x = x;
-      this.y = y;
-      this.button = button;
-      this.id = id;
-    }
-  };
-
   /* The view associated with the window.  */
   public EmacsView view;
 
@@ -115,9 +90,30 @@ public final class EmacsWindow extends EmacsHandleObject
      Synchronize access to this list with itself.  */
   public ArrayList<EmacsWindow> children;
 
-  /* Map between pointer identifiers and last known position.  Used to
-     compute which pointer changed upon a touch event.  */
-  private SparseArray<Coordinate> pointerMap;
+  /* Number of pointer identifiers that are tracked.  Android never
+     assigns identifiers greater than 31.  */
+  private static final int MAX_POINTERS = 32;
+
+  /* Last known positions of each pointer, indexed by pointer
+     identifier.  Used to compute which pointer changed upon a touch
+     event.  */
+  private final int[] pointerX, pointerY;
+
+  /* Buttons associated with each pointer, or 0 if it is a touch
+     event.  */
+  private final int[] pointerButton;
+
+  /* Mask of the identifiers of pointers that are down, whose
+     positions in the arrays above are valid.  */
+  private int pointersDown;
+
+  /* Number of elements within `motionSamples' that describe each
+     pointer position reported by `sendMotionSamples'.  */
+  private static final int MOTION_SAMPLE_SIZE = 5;
+
+  /* Array of pointer positions reported to Emacs by
+     `sendMotionSamples', which is reused by each call.  */
+  private long[] motionSamples;
 
   /* The window consumer currently attached, if it exists.  */
   private EmacsWindowManager.WindowConsumer attached;
@@ -149,9 +145,31 @@ public final class EmacsWindow extends EmacsHandleObject
      presses of such key.  */
   private long lastQuitKeyRelease;
 
-  /* Linked list of character strings which were recently sent as
+  /* The keycode repeated activation of which should signal quit, as
+     provided by `android_set_quit_keycode'.  */
+  public static volatile int quitKeycode = KeyEvent.KEYCODE_VOLUME_DOWN;
+
+  /* Whether KeyEvent.normalizeMetaState is available.  */
+  private static final boolean NORMALIZE_META_STATE
+    = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2;
+
+  /* Modifier bits removed from the meta state with which the
+     character of a key event is computed, as they are understood by
+     Emacs.  Meta isn't supported by systems older than Android
+     3.0.  */
+  private static final int CHARACTER_IGNORED_MODIFIERS
+    = (KeyEvent.META_ALT_MASK | KeyEvent.META_CTRL_MASK
+       | KeyEvent.META_SYM_ON
+       | (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+	  ? KeyEvent.META_META_MASK : 0));
+
+  /* The modifier mask and character of the last key event given to
+     `translateKeyEvent'.  Only accessed from the UI thread.  */
+  private int keyState, keyCharacter;
+
+  /* Record of character strings which were recently sent as
      events.  */
-  public LinkedHashMap<Integer, String> eventStrings;
+  public final EmacsEventStrings eventStrings;
 
   /* Whether or not this window is fullscreen.  */
   public boolean fullscreen;
@@ -187,7 +205,9 @@ public final class EmacsWindow extends EmacsHandleObject
 	       int width, int height, boolean overrideRedirect)
   {
     rect = new Rect (x, y, x + width, y + height);
-    pointerMap = new SparseArray<Coordinate> ();
+    pointerX = new int[MAX_POINTERS];
+    pointerY = new int[MAX_POINTERS];
+    pointerButton = new int[MAX_POINTERS];
 
     /* Create the view from the context's UI thread.  The window is
        unmapped, so the view is GONE.  */
@@ -226,18 +246,8 @@ public final class EmacsWindow extends EmacsHandleObject
 
     scratchGC = new EmacsGC ();
 
-    /* Create the map of input method-committed strings.  Keep at most
-       ten strings in the map.  */
-
-    eventStrings
-      = new LinkedHashMap<Integer, String> () {
-	  @Override
-	  protected boolean
-	  removeEldestEntry (Map.Entry<Integer, String> entry)
-	  {
-	    return size () > 10;
-	  }
-	};
+    /* Create the record of input method-committed strings.  */
+    eventStrings = new EmacsEventStrings ();
 
     dndXPosition = -1;
     dndYPosition = -1;
@@ -658,9 +668,12 @@ else if (parent == null)
   getEventUnicodeChar (KeyEvent event, int state)
   {
     String characters;
+    int character;
 
-    if (event.getUnicodeChar (state) != 0)
-      return event.getUnicodeChar (state);
+    character = event.getUnicodeChar (state);
+
+    if (character != 0)
+      return character;
 
     characters = event.getCharacters ();
 
@@ -673,7 +686,7 @@ else if (parent == null)
   public void
   saveUnicodeString (int serial, String string)
   {
-    eventStrings.put (serial, string);
+    eventStrings.save (serial, string);
   }
 
 
@@ -687,7 +700,7 @@ else if (parent == null)
   {
     int state;
 
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2)
+    if (NORMALIZE_META_STATE)
       state = KeyEvent.normalizeMetaState (event.getMetaState ());
     else
       {
@@ -710,13 +723,47 @@ else if (parent == null)
     return state;
   }
 
+  /* Compute the modifier mask to be reported to Emacs for the key
+     EVENT and the character it produces, and save them in keyState
+     and keyCharacter.  */
+
+  private void
+  translateKeyEvent (KeyEvent event)
+  {
+    int state, state_1;
+
+    state = eventModifiers (event);
+
+    /* Ignore meta-state understood by Emacs for now, or key presses
+       such as Ctrl+C and Meta+C will not be recognized as ASCII key
+       press events.  */
+    state_1 = state & ~CHARACTER_IGNORED_MODIFIERS;
+
+    /* There's no distinction between Right Alt and Alt Gr on Android,
+       so restore META_ALT_RIGHT_ON if set in state to enable composing
+       characters.  (bug#69321) */
+
+    if ((state & KeyEvent.META_ALT_RIGHT_ON) != 0)
+      {
+	state_1 |= KeyEvent.META_ALT_ON | KeyEvent.META_ALT_RIGHT_ON;
+
+	/* If Alt is also not depressed, remove its bit from the mask
+	   reported to Emacs.  */
+	if ((state & KeyEvent.META_ALT_LEFT_ON) == 0)
+	  state &= ~KeyEvent.META_ALT_MASK;
+      }
+
+    keyState = state;
+    keyCharacter = getEventUnicodeChar (event, state_1);
+  }
+
   /* event.getCharacters is used because older input methods still
      require it.  */
   @SuppressWarnings ("deprecation")
   public boolean
   onKeyDown (int keyCode, KeyEvent event)
   {
-    int state, state_1, extra_ignored, unicode_char;
+    int state, unicode_char;
     long serial;
     String characters;
 
@@ -735,38 +782,9 @@ else if (parent == null)
 	return true;
       }
 
-    state = eventModifiers (event);
-
-    /* Meta isn't supported by systems older than Android 3.0.  */
-
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
-      extra_ignored = KeyEvent.META_META_MASK;
-    else
-      extra_ignored = 0;
-
-    /* Ignore meta-state understood by Emacs for now, or key presses
-       such as Ctrl+C and Meta+C will not be recognized as ASCII key
-       press events.  */
-
-    state_1
-      = state & ~(KeyEvent.META_ALT_MASK | KeyEvent.META_CTRL_MASK
-		  | KeyEvent.META_SYM_ON | extra_ignored);
-
-    /* There's no distinction between Right Alt and Alt Gr on Android,
-       so restore META_ALT_RIGHT_ON if set in state to enable composing
-       characters.  (bug#69321) */
-
-    if ((state & KeyEvent.META_ALT_RIGHT_ON) != 0)
-      {
-	state_1 |= KeyEvent.META_ALT_ON | KeyEvent.META_ALT_RIGHT_ON;
-
-	/* If Alt is also not depressed, remove its bit from the mask
-	   reported to Emacs.  */
-	if ((state & KeyEvent.META_ALT_LEFT_ON) == 0)
-	  state &= ~KeyEvent.META_ALT_MASK;
-      }
-
-    unicode_char = getEventUnicodeChar (event, state_1);
+    translateKeyEvent (event);
+    state = keyState;
+    unicode_char = keyCharacter;
 
     /* If a NUMPAD_ key is detected for which no character is returned,
        return false without sending the key event, as this will prompt
@@ -778,19 +796,37 @@ else if (parent == null)
 	&& unicode_char == 0)
       return false;
 
-    synchronized (eventStrings)
-      {
-	serial
-	  = EmacsNative.sendKeyPress (this.handle,
-				      event.getEventTime (),
-				      state, keyCode,
-				      unicode_char);
+    characters = event.getCharacters ();
 
-	characters = event.getCharacters ();
+    if (characters != null && characters.length () > 1)
+      {
+	/* Emacs might read this event before its string is saved, so
+	   make it wait for the string.  */
+	eventStrings.beginSave ();
 
-	if (characters != null && characters.length () > 1)
-	  saveUnicodeString ((int) serial, characters);
+	try
+	  {
+	    serial
+	      = EmacsNative.sendKeyPress (this.handle,
+					  event.getEventTime (),
+					  state, keyCode,
+					  unicode_char);
+	    saveUnicodeString ((int) serial, characters);
+	  }
+	finally
+	  {
+	    eventStrings.endSave ();
+	  }
       }
+    else
+      serial = EmacsNative.sendKeyPress (this.handle,
+					 event.getEventTime (),
+					 state, keyCode,
+					 unicode_char);
+
+    EmacsLatencyTracer.noteEvent (serial, event.getEventTime ());
+
+    view.textMirror.noteKeyEvent (serial);
 
     return true;
   }
@@ -798,42 +834,13 @@ else if (parent == null)
   public boolean
   onKeyUp (int keyCode, KeyEvent event)
   {
-    int state, state_1, unicode_char, extra_ignored;
-    long time;
-
-    /* Compute the event's modifier mask.  */
-    state = eventModifiers (event);
+    int state, unicode_char;
+    long time, serial;
 
-    /* Meta isn't supported by systems older than Android 3.0.  */
-
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
-      extra_ignored = KeyEvent.META_META_MASK;
-    else
-      extra_ignored = 0;
-
-    /* Ignore meta-state understood by Emacs for now, or key presses
-       such as Ctrl+C and Meta+C will not be recognized as ASCII key
-       press events.  */
-
-    state_1
-      = state & ~(KeyEvent.META_ALT_MASK | KeyEvent.META_CTRL_MASK
-		  | KeyEvent.META_SYM_ON | extra_ignored);
-
-    /* There's no distinction between Right Alt and Alt Gr on Android,
-       so restore META_ALT_RIGHT_ON if set in state to enable composing
-       characters.  */
-
-    if ((state & KeyEvent.META_ALT_RIGHT_ON) != 0)
-      {
-	state_1 |= KeyEvent.META_ALT_ON | KeyEvent.META_ALT_RIGHT_ON;
-
-	/* If Alt is also not depressed, remove its bit from the mask
-	   reported to Emacs.  */
-	if ((state & KeyEvent.META_ALT_LEFT_ON) == 0)
-	  state &= ~KeyEvent.META_ALT_MASK;
-      }
-
-    unicode_char = getEventUnicodeChar (event, state_1);
+    /* Compute the event's modifier mask and character.  */
+    translateKeyEvent (event);
+    state = keyState;
+    unicode_char = keyCharacter;
 
     if (keyCode == KeyEvent.KEYCODE_BACK)
       {
@@ -843,8 +850,10 @@ else if (parent == null)
 	  return true;
 
 	/* Dispatch the key press event that was deferred till now.  */
-	EmacsNative.sendKeyPress (this.handle, event.getEventTime (),
-				  state, keyCode, unicode_char);
+	serial = EmacsNative.sendKeyPress (this.handle,
+					   event.getEventTime (),
+					   state, keyCode, unicode_char);
+	view.textMirror.noteKeyEvent (serial);
       }
     /* If a NUMPAD_ key is detected for which no character is returned,
        return false without sending the key event, as this will prompt
@@ -858,7 +867,7 @@ else if (keyCode >= KeyEvent.KEYCODE_NUMPAD_0
     EmacsNative.sendKeyRelease (this.handle, event.getEventTime (),
 				state, keyCode, unicode_char);
 
-    if (keyCode == EmacsNative.getQuitKeycode ())
+    if (keyCode == quitKeycode)
       {
 	/* Check if this volume down press should quit Emacs.
 	   Most Android devices have no physical keyboard, so it
@@ -1037,99 +1046,137 @@ else if (keyCode >= KeyEvent.KEYCODE_NUMPAD_0
     return whatButtonWasIt (event, true);
   }
 
-  /* Return the coordinate object associated with the specified
-     EVENT, or null if it is not known.  */
+  /* Return the identifier of the pointer that changed within the
+     specified EVENT, after recording its position if it was pressed,
+     or -1 if it is not known.  EVENT must not be an ACTION_MOVE
+     event, which is processed by `sendMotionSamples'.  */
 
-  private Coordinate
+  private int
   figureChange (MotionEvent event)
   {
-    int i, truncatedX, truncatedY, pointerIndex, pointerID, count;
-    Coordinate coordinate;
-
-    /* Initialize this variable now.  */
-    coordinate = null;
+    int pointerIndex, pointerID;
 
     switch (event.getActionMasked ())
       {
       case MotionEvent.ACTION_DOWN:
-	/* Primary pointer pressed with index 0.  */
-
-	pointerID = event.getPointerId (0);
-	coordinate = new Coordinate ((int) event.getX (0),
-				     (int) event.getY (0),
-				     buttonForEvent (event),
-				     pointerID);
-	pointerMap.put (pointerID, coordinate);
-	break;
-
       case MotionEvent.ACTION_UP:
       case MotionEvent.ACTION_CANCEL:
-	/* Primary pointer released with index 0.  */
-	pointerID = event.getPointerId (0);
-	coordinate = pointerMap.get (pointerID);
-	pointerMap.delete (pointerID);
+	/* Primary pointer pressed or released with index 0.  */
+	pointerIndex = 0;
 	break;
 
       case MotionEvent.ACTION_POINTER_DOWN:
-	/* New pointer.  Find the pointer ID from the index and place
-	   it in the map.  */
-	pointerIndex = event.getActionIndex ();
-	pointerID = event.getPointerId (pointerIndex);
-	coordinate = new Coordinate ((int) event.getX (pointerIndex),
-				     (int) event.getY (pointerIndex),
-				     buttonForEvent (event),
-				     pointerID);
-	pointerMap.put (pointerID, coordinate);
-	break;
-
       case MotionEvent.ACTION_POINTER_UP:
-	/* Pointer removed.  Remove it from the map.  */
+	/* Other pointer pressed or released.  Find the pointer ID
+	   from the index.  */
 	pointerIndex = event.getActionIndex ();
-	pointerID = event.getPointerId (pointerIndex);
-	coordinate = pointerMap.get (pointerID);
-	pointerMap.delete (pointerID);
 	break;
 
       default:
+	return -1;
+      }
+
+    pointerID = event.getPointerId (pointerIndex);
+
+    if (pointerID < 0 || pointerID >= MAX_POINTERS)
+      return -1;
+
+    switch (event.getActionMasked ())
+      {
+      case MotionEvent.ACTION_DOWN:
+      case MotionEvent.ACTION_POINTER_DOWN:
+	/* New pointer.  Record its position and button.  */
+	pointerX[pointerID] = (int) event.getX (pointerIndex);
+	pointerY[pointerID] = (int) event.getY (pointerIndex);
+	pointerButton[pointerID] = buttonForEvent (event);
+	pointersDown |= 1 << pointerID;
+	return pointerID;
+
+      default:
+	/* Pointer removed.  Its last known position remains in the
+	   arrays for the caller's use.  */
+
+	if ((pointersDown & 1 << pointerID) == 0)
+	  return -1;
 
-	/* Loop through each pointer in the event.  */
+	pointersDown &= ~(1 << pointerID);
+	return pointerID;
+      }
+  }
+
+  /* Report the motion of every pointer that moved within the
+     ACTION_MOVE event EVENT, together with each of the historical
+     positions of those pointers batched into EVENT, unless Emacs has
+     asked that pointer motion be coalesced.  Send all such positions
+     to Emacs at once.  */
+
+  private void
+  sendMotionSamples (MotionEvent event)
+  {
+    int i, h, count, history, x, y, samples, size, id;
+    long time, serial;
+
+    count = event.getPointerCount ();
+    history = (EmacsNative.shouldCoalescePointerMotion ()
+	       ? 0 : event.getHistorySize ());
+    size = (history + 1) * count * MOTION_SAMPLE_SIZE;
+
+    if (motionSamples == null || motionSamples.length < size)
+      motionSamples = new long[size];
+
+    samples = 0;
+
+    /* Historical positions precede the current position of each
+       pointer, which is reported in the final iteration.  */
+
+    for (h = 0; h <= history; ++h)
+      {
+	time = (h < history
+		? event.getHistoricalEventTime (h)
+		: event.getEventTime ());
 
-	count = event.getPointerCount ();
 	for (i = 0; i < count; ++i)
 	  {
-	    pointerID = event.getPointerId (i);
+	    /* Disregard this pointer if it is not known.  */
+	    id = event.getPointerId (i);
 
-	    /* Look up that pointer in the map.  */
-	    coordinate = pointerMap.get (pointerID);
+	    if (id < 0 || id >= MAX_POINTERS
+		|| (pointersDown & 1 << id) == 0)
+	      continue;
 
-	    if (coordinate != null)
+	    if (h < history)
+	      {
+		x = (int) event.getHistoricalX (i, h);
+		y = (int) event.getHistoricalY (i, h);
+	      }
+	    else
 	      {
-		/* See if coordinates have changed.  */
-		truncatedX = (int) event.getX (i);
-		truncatedY = (int) event.getY (i);
+		x = (int) event.getX (i);
+		y = (int) event.getY (i);
+	      }
 
-		if (truncatedX != coordinate.x
-		    || truncatedY != coordinate.y)
-		  {
-		    /* The pointer changed.  Update the coordinate and
-		       break out of the loop.  */
-		    coordinate.x = truncatedX;
-		    coordinate.y = truncatedY;
+	    /* See if its coordinates have changed.  */
 
-		    break;
-		  }
-	      }
-	  }
+	    if (x == pointerX[id] && y == pointerY[id])
+	      continue;
 
-	/* Set coordinate to NULL if the loop failed to find any
-	   matching pointer.  */
+	    pointerX[id] = x;
+	    pointerY[id] = y;
 
-	if (i == count)
-	  coordinate = null;
+	    motionSamples[samples++] = x;
+	    motionSamples[samples++] = y;
+	    motionSamples[samples++] = time;
+	    motionSamples[samples++] = id;
+	    motionSamples[samples++] = pointerButton[id];
+	  }
       }
 
-    /* Return the pointer ID.  */
-    return coordinate;
+    if (samples > 0)
+      {
+	serial = EmacsNative.sendMotionBatch (this.handle, motionSamples,
+					      samples / MOTION_SAMPLE_SIZE);
+	EmacsLatencyTracer.noteEvent (serial, event.getEventTime ());
+      }
   }
 
   /* Return the modifier mask associated with the specified motion
@@ -1166,22 +1213,39 @@ else if (keyCode >= KeyEvent.KEYCODE_NUMPAD_0
   private void
   motionEvent (MotionEvent event)
   {
-    Coordinate coordinate;
-    int modifiers;
-    long time;
+    int id, x, y, button, modifiers;
+    long time, serial;
+
+    /* Motion events can describe the movement of several pointers
+       at once, and are reported separately.  */
+
+    if (event.getActionMasked () == MotionEvent.ACTION_MOVE)
+      {
+	sendMotionSamples (event);
+
+	if (Build.VERSION.SDK_INT
+	    >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	  lastButtonState = event.getButtonState ();
+
+	return;
+      }
 
     /* Find data associated with this event's pointer.  Namely, its
        current location, whether or not a change has taken place, and
        whether or not it is a button event.  */
 
-    coordinate = figureChange (event);
+    id = figureChange (event);
 
-    if (coordinate == null)
+    if (id < 0)
       return;
 
+    x = pointerX[id];
+    y = pointerY[id];
+    button = pointerButton[id];
     time = event.getEventTime ();
+    serial = 0;
 
-    if (coordinate.button != 0)
+    if (button != 0)
       {
 	/* This event is tied to a mouse click, so report mouse motion
 	   and button events.  */
@@ -1192,22 +1256,16 @@ else if (keyCode >= KeyEvent.KEYCODE_NUMPAD_0
 	  {
 	  case MotionEvent.ACTION_POINTER_DOWN:
 	  case MotionEvent.ACTION_DOWN:
-	    EmacsNative.sendButtonPress (this.handle, coordinate.x,
-					 coordinate.y, time, modifiers,
-					 coordinate.button);
+	    serial = EmacsNative.sendButtonPress (this.handle, x, y, time,
+						  modifiers, button);
 	    break;
 
 	  case MotionEvent.ACTION_POINTER_UP:
 	  case MotionEvent.ACTION_UP:
 	  case MotionEvent.ACTION_CANCEL:
-	    EmacsNative.sendButtonRelease (this.handle, coordinate.x,
-					   coordinate.y, time, modifiers,
-					   coordinate.button);
-	    break;
-
-	  case MotionEvent.ACTION_MOVE:
-	    EmacsNative.sendMotionNotify (this.handle, coordinate.x,
-					  coordinate.y, time);
+	    serial = EmacsNative.sendButtonRelease (this.handle, x, y,
+						    time, modifiers,
+						    button);
 	    break;
 	  }
       }
@@ -1221,36 +1279,28 @@ else if (keyCode >= KeyEvent.KEYCODE_NUMPAD_0
 	  case MotionEvent.ACTION_DOWN:
 	  case MotionEvent.ACTION_POINTER_DOWN:
 	    /* Touch down event.  */
-	    EmacsNative.sendTouchDown (this.handle, coordinate.x,
-				       coordinate.y, time,
-				       coordinate.id, 0);
+	    serial = EmacsNative.sendTouchDown (this.handle, x, y, time,
+						id, 0);
 	    break;
 
 	  case MotionEvent.ACTION_UP:
 	  case MotionEvent.ACTION_POINTER_UP:
 	    /* Touch up event.  */
-	    EmacsNative.sendTouchUp (this.handle, coordinate.x,
-				     coordinate.y, time,
-				     coordinate.id, 0);
+	    serial = EmacsNative.sendTouchUp (this.handle, x, y, time,
+					      id, 0);
 	    break;
 
 	  case MotionEvent.ACTION_CANCEL:
 	    /* Touch sequence cancellation event.  */
-	    EmacsNative.sendTouchUp (this.handle, coordinate.x,
-				     coordinate.y, time,
-				     coordinate.id,
-				     1 /* ANDROID_TOUCH_SEQUENCE_CANCELED */);
-	    break;
-
-	  case MotionEvent.ACTION_MOVE:
-	    /* Pointer motion event.  */
-	    EmacsNative.sendTouchMove (this.handle, coordinate.x,
-				       coordinate.y, time,
-				       coordinate.id, 0);
+	    serial
+	      = EmacsNative.sendTouchUp (this.handle, x, y, time, id,
+					 1 /* ANDROID_TOUCH_SEQUENCE_CANCELED */);
 	    break;
 	  }
       }
 
+    EmacsLatencyTracer.noteEvent (serial, time);
+
     if (Build.VERSION.SDK_INT
 	< Build.VERSION_CODES.ICE_CREAM_SANDWICH)
       return;
@@ -1715,14 +1765,7 @@ else if (EmacsWindow.this.isMapped)
   public String
   lookupString (int eventSerial)
   {
-    String any;
-
-    synchronized (eventStrings)
-      {
-	any = eventStrings.remove (eventSerial);
-      }
-
-    return any;
+    return eventStrings.lookup (eventSerial);
   }
 
   public void
@@ -529,6 +529,30 @@ accessible to other programs."
     (setq url replacement-url))
   (android-browse-url-internal url send))
 
+(declare-function android-sync-documents "androidvfs.c")
+
+(defun android-sync-documents-before-exit ()
+  "Wait for documents written in the background to be saved.
+This function is run from `kill-emacs-hook', so that the contents of
+files saved while `android-write-behind-documents' was non-nil are not
+lost.  Display errors rather than signal them."
+  (condition-case err
+      (android-sync-documents)
+    (file-error (message "%s" (error-message-string err)))))
+
+(add-hook 'kill-emacs-hook #'android-sync-documents-before-exit)
+
+(defun android-open-file (file)
+  "Visit FILE in the selected frame on behalf of another program.
+This function is called when a program asks Emacs to open FILE
+while Emacs is running, much as `emacsclient --reuse-frame' would.
+Display errors rather than signal them."
+  (condition-case err
+      (progn
+        (find-file file)
+        (select-frame-set-input-focus (selected-frame)))
+    (error (message "%s" (error-message-string err)))))
+
 
 ;; Coding systems used by androidvfs.c.
 
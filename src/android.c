@@ -904,6 +904,43 @@ android_write_event (union android_event *event)
     }
 }
 
+/* Write the COUNT events in EVENTS to the event queue, in order,
+   acquiring its lock and waking the Emacs thread only once.  None of
+   these events may be important enough to interrupt ongoing reads, in
+   the sense of `android_write_event'.  */
+
+void
+android_write_events (union android_event *events, size_t count)
+{
+  struct android_event_container *container;
+  size_t i;
+
+  /* If the event queue hasn't been initialized yet, return.  */
+  if (!event_queue.events.next)
+    return;
+
+  pthread_mutex_lock (&event_queue.mutex);
+
+  for (i = 0; i < count; ++i)
+    {
+      container = malloc (sizeof *container);
+
+      if (!container)
+	break;
+
+      container->next = event_queue.events.next;
+      container->last = &event_queue.events;
+      container->next->last = container;
+      container->last->next = container;
+      container->event = events[i];
+      event_queue.num_events++;
+    }
+
+  pthread_cond_broadcast (&event_queue.read_var);
+  pthread_mutex_unlock (&event_queue.mutex);
+  pending_signals = true;
+}
+
 
 
 /* Whether or not the UI thread has been waiting for a significant
@@ -1774,6 +1811,8 @@ android_init_emacs_service (void)
   FIND_METHOD (update_extracted_text, "updateExtractedText",
 	       "(Lorg/gnu/emacs/EmacsWindow;"
 	       "Landroid/view/inputmethod/ExtractedText;I)V");
+  FIND_METHOD (update_text_mirror, "updateTextMirror",
+	       "(Lorg/gnu/emacs/EmacsWindow;Ljava/lang/String;IIIIJJ)V");
   FIND_METHOD (update_cursor_anchor_info, "updateCursorAnchorInfo",
 	       "(Lorg/gnu/emacs/EmacsWindow;FFFF)V");
   FIND_METHOD (get_document_authorities, "getDocumentAuthorities",
@@ -1795,9 +1834,8 @@ android_init_emacs_service (void)
   FIND_METHOD (open_document_directory, "openDocumentDirectory",
 	       "(Ljava/lang/String;Ljava/lang/String;)"
 	       "Landroid/database/Cursor;");
-  FIND_METHOD (read_directory_entry, "readDirectoryEntry",
-	       "(Landroid/database/Cursor;)Lorg/gnu/emacs/"
-	       "EmacsDirectoryEntry;");
+  FIND_METHOD (read_directory_entries, "readDirectoryEntries",
+	       "(Landroid/database/Cursor;I)[B");
   FIND_METHOD (open_document, "openDocument",
 	       "(Ljava/lang/String;Ljava/lang/String;ZZZ)"
 	       "Landroid/os/ParcelFileDescriptor;");
@@ -1827,6 +1865,12 @@ android_init_emacs_service (void)
 	       "cancelNotification", "(Ljava/lang/String;)V");
   FIND_METHOD (relinquish_uri_rights,
 	       "relinquishUriRights", "(Ljava/lang/String;)V");
+  FIND_METHOD (get_storage_statistics,
+	       "getStorageStatistics", "()[Ljava/lang/Object;");
+  FIND_METHOD (sync_documents, "syncDocuments", "()V");
+  FIND_METHOD (get_input_latency_histogram,
+	       "getInputLatencyHistogram", "(Z)[J");
+  FIND_METHOD (set_quit_keycode, "setQuitKeycode", "(I)V");
 #undef FIND_METHOD
 }
 
@@ -2540,6 +2584,77 @@ NATIVE_NAME (sendTouchMove) (JNIEnv *env, jobject object,
   return event_serial;
 }
 
+JNIEXPORT jlong JNICALL
+NATIVE_NAME (sendMotionBatch) (JNIEnv *env, jobject object,
+			       jlong window, jlongArray samples,
+			       jint count)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  union android_event *events;
+  jlong *data, *sample;
+  jint i;
+
+  if (count <= 0
+      || (*env)->GetArrayLength (env, samples) < count * 5)
+    return 0;
+
+  events = malloc (count * sizeof *events);
+
+  /* Out of memory.  */
+  if (!events)
+    return 0;
+
+  data = (*env)->GetLongArrayElements (env, samples, NULL);
+
+  if (!data)
+    {
+      free (events);
+      return 0;
+    }
+
+  /* Each sample consists of the X and Y coordinates of a pointer,
+     the time at which it was recorded, the pointer's ID, and the
+     button with which it is associated, or 0 if it is a touch
+     sequence.  Mouse pointers give rise to motion events, and touch
+     sequences to touch motion events.  */
+
+  for (i = 0; i < count; ++i)
+    {
+      sample = data + i * 5;
+
+      if (sample[4])
+	{
+	  events[i].xmotion.type = ANDROID_MOTION_NOTIFY;
+	  events[i].xmotion.serial = ++event_serial;
+	  events[i].xmotion.window = window;
+	  events[i].xmotion.x = sample[0];
+	  events[i].xmotion.y = sample[1];
+	  events[i].xmotion.time = sample[2];
+	}
+      else
+	{
+	  events[i].touch.type = ANDROID_TOUCH_MOVE;
+	  events[i].touch.serial = ++event_serial;
+	  events[i].touch.window = window;
+	  events[i].touch.x = sample[0];
+	  events[i].touch.y = sample[1];
+	  events[i].touch.time = sample[2];
+	  events[i].touch.pointer_id = sample[3];
+	  events[i].touch.flags = 0;
+	}
+    }
+
+  (*env)->ReleaseLongArrayElements (env, samples, data, JNI_ABORT);
+  android_write_events (events, count);
+  free (events);
+  return event_serial;
+}
+
+/* Number of milliseconds after a wheel event is generated during which
+   subsequent wheel events are merged into it.  */
+#define ANDROID_WHEEL_MERGE_INTERVAL 16
+
 JNIEXPORT jlong JNICALL
 NATIVE_NAME (sendWheel) (JNIEnv *env, jobject object,
 			 jlong window, jint x, jint y,
@@ -2549,6 +2664,41 @@ NATIVE_NAME (sendWheel) (JNIEnv *env, jobject object,
   JNI_STACK_ALIGNMENT_PROLOGUE;
 
   union android_event event;
+  struct android_event_container *container;
+  struct android_wheel_event *last;
+
+  /* High resolution touchpads and mice generate wheel events with
+     minuscule deltas at a rate far exceeding that at which Emacs
+     redisplays.  If the event most recently written to the queue is
+     a wheel event for the same window and modifier state that has yet
+     to be read, and it was generated less than a frame's duration
+     before this one, add these deltas to it instead.  */
+
+  if (event_queue.events.next)
+    {
+      pthread_mutex_lock (&event_queue.mutex);
+      container = event_queue.events.next;
+
+      if (container != &event_queue.events
+	  && container->event.type == ANDROID_WHEEL)
+	{
+	  last = &container->event.wheel;
+
+	  if (last->window == window && last->state == state
+	      && time - last->time < ANDROID_WHEEL_MERGE_INTERVAL)
+	    {
+	      last->x = x;
+	      last->y = y;
+	      last->x_delta += x_delta;
+	      last->y_delta += y_delta;
+	      last->count++;
+	      pthread_mutex_unlock (&event_queue.mutex);
+	      return last->serial;
+	    }
+	}
+
+      pthread_mutex_unlock (&event_queue.mutex);
+    }
 
   event.wheel.type = ANDROID_WHEEL;
   event.wheel.serial = ++event_serial;
@@ -2559,6 +2709,7 @@ NATIVE_NAME (sendWheel) (JNIEnv *env, jobject object,
   event.wheel.state = state;
   event.wheel.x_delta = x_delta;
   event.wheel.y_delta = y_delta;
+  event.wheel.count = 1;
 
   android_write_event (&event);
   return event_serial;
@@ -2740,6 +2891,48 @@ NATIVE_NAME (sendDndText) (JNIEnv *env, jobject object,
   return event_serial;
 }
 
+JNIEXPORT jlong JNICALL
+NATIVE_NAME (sendOpenFile) (JNIEnv *env, jobject object,
+			    jstring name)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  union android_event event;
+  const jchar *characters;
+  jsize length;
+  uint16_t *buffer;
+
+  event.open_file.type = ANDROID_OPEN_FILE;
+  event.open_file.serial = ++event_serial;
+  event.open_file.window = ANDROID_NONE;
+
+  length = (*env)->GetStringLength (env, name);
+  buffer = malloc (length * sizeof *buffer);
+
+  /* Out of memory.  */
+  if (!buffer)
+    return 0;
+
+  characters = (*env)->GetStringChars (env, name, NULL);
+
+  if (!characters)
+    {
+      /* The JVM has run out of memory; return and let the out of
+	 memory error take its course.  */
+      free (buffer);
+      return 0;
+    }
+
+  memcpy (buffer, characters, length * sizeof *buffer);
+  (*env)->ReleaseStringChars (env, name, characters);
+
+  event.open_file.name = buffer;
+  event.open_file.length = length;
+
+  android_write_event (&event);
+  return event_serial;
+}
+
 JNIEXPORT jlong JNICALL
 NATIVE_NAME (sendNotificationDeleted) (JNIEnv *env, jobject object,
 				       jstring tag)
@@ -2830,19 +3023,60 @@ NATIVE_NAME (shouldForwardMultimediaButtons) (JNIEnv *env,
   return !android_pass_multimedia_buttons_to_system;
 }
 
-JNIEXPORT jint JNICALL
-NATIVE_NAME (getQuitKeycode) (JNIEnv *env, jobject object)
+JNIEXPORT jboolean JNICALL
+NATIVE_NAME (shouldForwardCtrlSpace) (JNIEnv *env, jobject object)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  return !android_intercept_control_space;
+}
+
+JNIEXPORT jboolean JNICALL
+NATIVE_NAME (shouldPersistDocumentCache) (JNIEnv *env, jobject object)
 {
-  /* Likewise.  */
-  return (jint) android_quit_keycode;
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  return android_persistent_document_cache;
 }
 
 JNIEXPORT jboolean JNICALL
-NATIVE_NAME (shouldForwardCtrlSpace) (JNIEnv *env, jobject object)
+NATIVE_NAME (shouldSpoolDocuments) (JNIEnv *env, jobject object)
 {
   JNI_STACK_ALIGNMENT_PROLOGUE;
 
-  return !android_intercept_control_space;
+  return android_spool_documents;
+}
+
+JNIEXPORT jboolean JNICALL
+NATIVE_NAME (shouldWriteBehindDocuments) (JNIEnv *env, jobject object)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  return android_write_behind_documents;
+}
+
+JNIEXPORT jboolean JNICALL
+NATIVE_NAME (shouldIndexDocumentContents) (JNIEnv *env, jobject object)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  return android_index_document_contents;
+}
+
+JNIEXPORT jboolean JNICALL
+NATIVE_NAME (shouldCoalescePointerMotion) (JNIEnv *env, jobject object)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  return android_coalesce_pointer_motion;
+}
+
+JNIEXPORT jboolean JNICALL
+NATIVE_NAME (shouldTraceInputLatency) (JNIEnv *env, jobject object)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  return android_trace_input_latency;
 }
 
 JNIEXPORT void JNICALL
@@ -6736,6 +6970,22 @@ android_query_battery (struct android_battery_state *status)
   return 0;
 }
 
+/* Inform the UI thread that KEYCODE is the keycode repeated
+   activation of which should signal quit.  */
+
+void
+android_set_quit_keycode (int keycode)
+{
+  jmethodID method;
+
+  method = service_class.set_quit_keycode;
+  (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						 emacs_service,
+						 service_class.class,
+						 method, (jint) keycode);
+  android_exception_check ();
+}
+
 /* Display a file panel and grant Emacs access to the SAF directory
    within it.  Value is 1 upon failure and 0 upon success (which only
    indicates that the panel has been displayed successfully; the panel
@@ -7276,6 +7526,44 @@ android_update_extracted_text (android_window window, void *text,
   android_exception_check_1 (text);
 }
 
+/* Replace the copy of the text around point retained for the input
+   method connection on WINDOW with TEXT, a local reference to a
+   string, or NULL to discard the copy.
+
+   OFFSET is the position of the first character of TEXT within the
+   text conversion field, START and END are the positions of the mark
+   and point relative to TEXT, and FLAGS is a mask of
+   ANDROID_TEXT_MIRROR_* flags describing TEXT.  COUNTER is the
+   counter of the last text conversion request processed, and SERIAL
+   the serial of the last key event processed, before TEXT was
+   retrieved.  */
+
+void
+android_update_text_mirror (android_window window, void *text,
+			    ptrdiff_t offset, ptrdiff_t start,
+			    ptrdiff_t end, int flags,
+			    unsigned long counter, unsigned long serial)
+{
+  jobject object;
+  jmethodID method;
+
+  object = android_resolve_handle (window);
+  method = service_class.update_text_mirror;
+
+  (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						 emacs_service,
+						 service_class.class,
+						 method, object,
+						 (jstring) text,
+						 (jint) min (offset,
+							     TYPE_MAXIMUM (jint)),
+						 (jint) start, (jint) end,
+						 (jint) flags,
+						 (jlong) counter,
+						 (jlong) serial);
+  android_exception_check_1 (text);
+}
+
 /* Report the position of the cursor to the input method connection on
    WINDOW.
 
@@ -239,6 +239,7 @@ struct android_battery_state
 extern Lisp_Object android_browse_url (Lisp_Object, Lisp_Object);
 extern int android_query_battery (struct android_battery_state *);
 extern void android_display_toast (const char *);
+extern void android_set_quit_keycode (int);
 
 
 
@@ -249,6 +250,7 @@ extern void android_check_query (void);
 extern void android_check_query_urgent (void);
 extern int android_run_in_emacs_thread (void (*) (void *), void *);
 extern void android_write_event (union android_event *);
+extern void android_write_events (union android_event *, size_t);
 
 extern unsigned int event_serial;
 
@@ -294,6 +296,7 @@ struct android_emacs_service
   jmethodID check_content_uri;
   jmethodID query_battery;
   jmethodID update_extracted_text;
+  jmethodID update_text_mirror;
   jmethodID update_cursor_anchor_info;
   jmethodID get_document_authorities;
   jmethodID request_directory_access;
@@ -303,7 +306,7 @@ struct android_emacs_service
   jmethodID stat_document;
   jmethodID access_document;
   jmethodID open_document_directory;
-  jmethodID read_directory_entry;
+  jmethodID read_directory_entries;
   jmethodID open_document;
   jmethodID create_document;
   jmethodID create_directory;
@@ -315,6 +318,10 @@ struct android_emacs_service
   jmethodID request_storage_access;
   jmethodID cancel_notification;
   jmethodID relinquish_uri_rights;
+  jmethodID get_storage_statistics;
+  jmethodID sync_documents;
+  jmethodID get_input_latency_histogram;
+  jmethodID set_quit_keycode;
 };
 
 extern JNIEnv *android_java_env;
@@ -3330,6 +3330,56 @@ android_set_preeditarea (struct window *w, int x, int y)
 
 
 
+/* Input latency measurement.  */
+
+DEFUN ("android-input-latency-histogram", Fandroid_input_latency_histogram,
+       Sandroid_input_latency_histogram, 0, 1, 0,
+       doc: /* Return the latencies of input events recorded till now.
+Value is a list of elements (MILLISECONDS . COUNT), each stating that
+COUNT input events were displayed at least MILLISECONDS after they
+were generated, but sooner than the time given by the next element.
+Latencies are only recorded while `android-trace-input-latency' is
+set.  If RESET is non-nil, discard the latencies recorded after
+returning them.  */)
+  (Lisp_Object reset)
+{
+  jlongArray array;
+  jlong *longs;
+  jsize length, i;
+  Lisp_Object value;
+
+  if (!android_init_gui)
+    return Qnil;
+
+  array
+    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+						       emacs_service,
+						       service_class.class,
+						       service_class.get_input_latency_histogram,
+						       (jboolean) !NILP (reset));
+  android_exception_check ();
+
+  length = (*android_java_env)->GetArrayLength (android_java_env,
+						array);
+  longs = (*android_java_env)->GetLongArrayElements (android_java_env,
+						     array, NULL);
+  android_exception_check_nonnull (longs, array);
+  value = Qnil;
+
+  for (i = length - 2; i >= 0; i -= 2)
+    value = Fcons (Fcons (make_int (longs[i]),
+			  make_int (longs[i + 1])),
+		   value);
+
+  (*android_java_env)->ReleaseLongArrayElements (android_java_env,
+						 array, longs,
+						 JNI_ABORT);
+  ANDROID_DELETE_LOCAL_REF (array);
+  return value;
+}
+
+
+
 /* Debugging.  */
 
 DEFUN ("android-recreate-activity", Fandroid_recreate_activity,
@@ -3690,6 +3740,28 @@ afterwards, which is an impediment to typing key sequences
 incorporating such keys.  */);
   android_intercept_control_space = true;
 
+  DEFVAR_BOOL ("android-coalesce-pointer-motion",
+	       android_coalesce_pointer_motion,
+    doc: /* Whether Emacs should only report the latest position of each pointer.
+Touch screens and other pointing devices frequently sample the
+positions of pointers more often than the display is refreshed, and
+these intermediate positions are generally reported to Emacs
+alongside the latest ones.  When this variable is set, intermediate
+positions are discarded, which reduces the number of events delivered
+during gestures at the expense of their precision.  */);
+  android_coalesce_pointer_motion = false;
+
+  DEFVAR_BOOL ("android-trace-input-latency",
+	       android_trace_input_latency,
+    doc: /* Whether Emacs should measure the latency of input events.
+When this variable is set, the time elapsed between the generation of
+each key or pointer event and the display of the first change to the
+contents of a frame after Emacs processes that event is recorded, and can
+be retrieved with `android-input-latency-histogram'.  Asynchronous
+trace sections spanning the same interval are also emitted on Android
+10 and later, and can be examined with the system's tracing tools.  */);
+  android_trace_input_latency = false;
+
   DEFVAR_BOOL ("android-use-exec-loader", android_use_exec_loader,
     doc: /* Whether or not to bypass system restrictions on program execution.
 
@@ -3767,6 +3839,7 @@ language to be US English if LANGUAGE is empty.  */);
   defsubr (&Sandroid_request_directory_access);
   defsubr (&Sandroid_external_storage_available_p);
   defsubr (&Sandroid_request_storage_access);
+  defsubr (&Sandroid_input_latency_histogram);
   defsubr (&Sandroid_recreate_activity);
 
   tip_timer = Qnil;
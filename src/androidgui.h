@@ -288,6 +288,7 @@ enum android_event_type
     ANDROID_DND_TEXT_EVENT,
     ANDROID_NOTIFICATION_DELETED,
     ANDROID_NOTIFICATION_ACTION,
+    ANDROID_OPEN_FILE,
   };
 
 struct android_any_event
@@ -459,6 +460,10 @@ struct android_wheel_event
 
   /* Motion alongside the X and Y axes.  */
   double x_delta, y_delta;
+
+  /* Number of wheel events whose motion has been merged into this
+     one.  */
+  unsigned int count;
 };
 
 struct android_iconify_event
@@ -595,6 +600,25 @@ struct android_notification_event
   size_t length;
 };
 
+struct android_open_file_event
+{
+  /* Type of the event.  */
+  enum android_event_type type;
+
+  /* The event serial.  */
+  unsigned long serial;
+
+  /* The window that gave rise to the event (None).  */
+  android_window window;
+
+  /* The name of the file to be opened.  Must be deallocated with
+     `free'.  */
+  unsigned short *name;
+
+  /* Length of that name.  */
+  size_t length;
+};
+
 union android_event
 {
   enum android_event_type type;
@@ -635,6 +659,10 @@ union android_event
   /* X provides no equivalent interface for displaying
      notifications.  */
   struct android_notification_event notification;
+
+  /* This is used to visit files opened from other programs, which
+     emacsclient would otherwise be started to visit.  */
+  struct android_open_file_event open_file;
 };
 
 enum
@@ -642,6 +670,16 @@ enum
     ANDROID_CURRENT_TIME = 0L,
   };
 
+/* Flags describing the text supplied to `android_update_text_mirror'.
+   Keep these in synch with EmacsTextMirror.java.  */
+
+enum android_text_mirror_flags
+  {
+    ANDROID_TEXT_MIRROR_MARK_ACTIVE = 1,
+    ANDROID_TEXT_MIRROR_FIELD_START = 2,
+    ANDROID_TEXT_MIRROR_FIELD_END   = 4,
+  };
+
 enum android_lookup_status
   {
     ANDROID_BUFFER_OVERFLOW,
@@ -790,6 +828,9 @@ extern void android_update_ic (android_window, ptrdiff_t, ptrdiff_t,
 extern void android_reset_ic (android_window, enum android_ic_mode);
 extern void android_update_extracted_text (android_window, void *,
 					   int);
+extern void android_update_text_mirror (android_window, void *, ptrdiff_t,
+					ptrdiff_t, ptrdiff_t, int,
+					unsigned long, unsigned long);
 extern void android_update_cursor_anchor_info (android_window, float,
 					       float, float, float);
 extern int android_set_fullscreen (android_window, bool);
@@ -830,8 +830,21 @@ android_handle_ime_event (union android_event *event, struct frame *f)
 
 
 
-/* Forward declaration.  */
+/* Forward declarations.  */
 static void android_notify_conversion (unsigned long);
+static void android_refresh_text_mirror (struct frame *, bool);
+
+/* The serial of the last key event read, and that of the last key
+   event known to have been processed upon the completion of the last
+   redisplay.  */
+static unsigned long android_last_key_serial;
+static unsigned long android_redisplayed_key_serial;
+
+/* The serial of the last event read, and that of the last event
+   known to have been processed upon the completion of the last
+   redisplay.  */
+static unsigned long android_last_event_serial;
+static unsigned long android_processed_event_serial;
 
 static int
 handle_one_android_event (struct android_display_info *dpyinfo,
@@ -862,6 +875,10 @@ handle_one_android_event (struct android_display_info *dpyinfo,
   any = android_window_to_frame (dpyinfo, event->xany.window);
   nchars = 0;
 
+  /* Record this event's serial, so that the latency of input events
+     can be measured once their effects are displayed.  */
+  android_last_event_serial = event->xany.serial;
+
   if (any && any->wait_event_type == event->type)
     any->wait_event_type = 0; /* Indicates we got it.  */
 
@@ -951,6 +968,10 @@ handle_one_android_event (struct android_display_info *dpyinfo,
 
     case ANDROID_KEY_PRESS:
 
+      /* Record this event's serial, so that the input method can
+	 establish when its effects have been mirrored.  */
+      android_last_key_serial = event->xkey.serial;
+
       /* Set f to any.  There are no ``outer windows'' on Android.  */
       f = any;
 
@@ -1682,8 +1703,13 @@ handle_one_android_event (struct android_display_info *dpyinfo,
 	    |= android_android_to_emacs_modifiers (dpyinfo,
 						   event->wheel.state);
 
-	  /* Finally include the scroll deltas.  */
-	  inev.ie.arg = list3 (Qnil,
+	  /* Finally include the scroll deltas.  If several wheel
+	     events were merged into this one and are not being
+	     coalesced, specify that as many lines should be
+	     scrolled.  */
+	  inev.ie.arg = list3 ((event->wheel.count > 1
+				&& !mwheel_coalesce_scroll_events)
+			       ? make_fixnum (event->wheel.count) : Qnil,
 			       make_float (wheel_event_x
 					   * scroll_unit),
 			       make_float (wheel_event_y
@@ -1824,6 +1850,18 @@ handle_one_android_event (struct android_display_info *dpyinfo,
       free (event->notification.action);
       goto OTHER;
 
+    case ANDROID_OPEN_FILE:
+
+      /* Another program has directed Emacs to open a file.  Visit it
+	 as if the event were a notification whose callback is
+	 `android-open-file'.  */
+      inev.ie.kind = NOTIFICATION_EVENT;
+      inev.ie.arg = list2 (Qandroid_open_file,
+			   android_decode_utf16 (event->open_file.name,
+						 event->open_file.length));
+      free (event->open_file.name);
+      goto OTHER;
+
     default:
       goto OTHER;
     }
@@ -1901,6 +1939,19 @@ static void
 android_frame_up_to_date (struct frame *f)
 {
   eassert (FRAME_ANDROID_P (f));
+
+  /* Events are also read during redisplay, as when keys are
+     repeated, and their commands have yet to run.  Unless input is
+     pending, every event read has been processed by now.  This must
+     be established before input is unblocked, which might read
+     further events, and before buffers are swapped, which is when
+     the latency of processed events is measured.  */
+  if (!detect_input_pending ())
+    {
+      android_redisplayed_key_serial = android_last_key_serial;
+      android_processed_event_serial = android_last_event_serial;
+    }
+
   block_input ();
   FRAME_MOUSE_UPDATE (f);
 
@@ -1914,6 +1965,10 @@ android_frame_up_to_date (struct frame *f)
   /* Shrink the scanline buffer used by the font backend.  */
   sfntfont_android_shrink_scanline_buffer ();
   unblock_input ();
+
+  /* Update the text mirrored for the input method if it has been
+     modified by the key events processed.  */
+  android_refresh_text_mirror (f, false);
 }
 
 static void
@@ -5153,6 +5208,127 @@ NATIVE_NAME (deleteSurroundingText) (JNIEnv *env, jobject object,
   android_write_event (&event);
 }
 
+JNIEXPORT void JNICALL
+NATIVE_NAME (applyEdits) (JNIEnv *env, jobject object, jlong window,
+			  jintArray edits, jobjectArray texts,
+			  jint count, jboolean end_batch)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  union android_event *events;
+  jint *data, *edit;
+  jstring string;
+  size_t length;
+  jint i, n;
+
+  if (count < 0
+      || (*env)->GetArrayLength (env, edits) < count * 3
+      || (*env)->GetArrayLength (env, texts) < count)
+    return;
+
+  events = malloc ((count + 1) * sizeof *events);
+
+  /* Out of memory.  */
+  if (!events)
+    return;
+
+  data = (*env)->GetIntArrayElements (env, edits, NULL);
+
+  if (!data)
+    {
+      free (events);
+      return;
+    }
+
+  /* Each edit consists of an operation, as enumerated in
+     EmacsInputConnection.java, and two arguments.  Convert them into
+     the events that would have been sent had each been performed
+     individually.  */
+
+  for (i = 0, n = 0; i < count; ++i)
+    {
+      edit = data + i * 3;
+      events[n].ime.type = ANDROID_INPUT_METHOD;
+      events[n].ime.window = window;
+      events[n].ime.start = 0;
+      events[n].ime.end = 0;
+      events[n].ime.length = 0;
+      events[n].ime.position = 0;
+      events[n].ime.text = NULL;
+
+      switch (edit[0])
+	{
+	case 0: /* EDIT_COMMIT_TEXT */
+	case 1: /* EDIT_SET_COMPOSING_TEXT */
+	  string = (*env)->GetObjectArrayElement (env, texts, i);
+
+	  if (!string)
+	    {
+	      (*env)->ExceptionClear (env);
+	      continue;
+	    }
+
+	  events[n].ime.text = android_copy_java_string (env, string,
+							 &length);
+	  ANDROID_DELETE_LOCAL_REF (string);
+
+	  if (!events[n].ime.text)
+	    continue;
+
+	  events[n].ime.operation = (edit[0] == 0
+				     ? ANDROID_IME_COMMIT_TEXT
+				     : ANDROID_IME_SET_COMPOSING_TEXT);
+	  events[n].ime.length = min (length, PTRDIFF_MAX);
+	  events[n].ime.position = edit[1];
+	  break;
+
+	case 2: /* EDIT_DELETE_SURROUNDING_TEXT */
+	  events[n].ime.operation = ANDROID_IME_DELETE_SURROUNDING_TEXT;
+	  events[n].ime.start = edit[1];
+	  events[n].ime.end = edit[2];
+	  break;
+
+	case 3: /* EDIT_SET_COMPOSING_REGION */
+	  events[n].ime.operation = ANDROID_IME_SET_COMPOSING_REGION;
+	  events[n].ime.start = edit[1] + 1;
+	  events[n].ime.end = edit[2] + 1;
+	  break;
+
+	default:
+	  continue;
+	}
+
+      events[n].ime.serial = ++event_serial;
+      events[n].ime.counter = ++edit_counter;
+      n++;
+    }
+
+  (*env)->ReleaseIntArrayElements (env, edits, data, JNI_ABORT);
+
+  /* Conclude the batch edit if requested.  */
+
+  if (end_batch)
+    {
+      events[n].ime.type = ANDROID_INPUT_METHOD;
+      events[n].ime.serial = ++event_serial;
+      events[n].ime.window = window;
+      events[n].ime.operation = ANDROID_IME_END_BATCH_EDIT;
+      events[n].ime.start = 0;
+      events[n].ime.end = 0;
+      events[n].ime.length = 0;
+      events[n].ime.position = 0;
+      events[n].ime.text = NULL;
+      events[n].ime.counter = ++edit_counter;
+      n++;
+    }
+
+  /* Write every event at once.  Events will always eventually be
+     delivered on Android, so handle_one_android_event can be relied
+     on to free their text.  */
+  android_write_events (events, n);
+  free (events);
+}
+
 JNIEXPORT void JNICALL
 NATIVE_NAME (finishComposingText) (JNIEnv *env, jobject object,
 				   jlong window)
@@ -5564,6 +5740,25 @@ android_get_selection (void *data)
     }
 }
 
+JNIEXPORT jlong JNICALL
+NATIVE_NAME (getEditCounter) (JNIEnv *env, jobject object)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  /* edit_counter is only modified from the UI thread.  */
+  return edit_counter;
+}
+
+JNIEXPORT jlong JNICALL
+NATIVE_NAME (getProcessedEventSerial) (JNIEnv *env, jobject object)
+{
+  JNI_STACK_ALIGNMENT_PROLOGUE;
+
+  /* This is called from the Emacs thread, when buffers are
+     swapped.  */
+  return android_processed_event_serial;
+}
+
 JNIEXPORT jintArray JNICALL
 NATIVE_NAME (getSelection) (JNIEnv *env, jobject object, jlong window)
 {
@@ -6340,6 +6535,107 @@ NATIVE_NAME (takeSnapshot) (JNIEnv *env, jobject object, jlong window)
 
 
 
+/* Number of characters on either side of the selection that are
+   mirrored for the input method.  */
+#define ANDROID_TEXT_MIRROR_LENGTH 1024
+
+/* Maximum number of characters within an active region that is
+   mirrored for the input method.  */
+#define ANDROID_TEXT_MIRROR_REGION_LENGTH 4096
+
+/* Provide the input method connection on F with a copy of the text
+   around point in the selected window as of the last redisplay, so
+   that requests for such text can be answered without waiting for
+   the Emacs thread.  Unless FORCE, do nothing if neither that text
+   nor the key events processed have changed since the copy was last
+   provided.
+
+   The copy must include the active region, if any, so if the region
+   is larger than ANDROID_TEXT_MIRROR_REGION_LENGTH, discard the copy
+   instead, and leave requests for text to the Emacs thread.  */
+
+static void
+android_refresh_text_mirror (struct frame *f, bool force)
+{
+  struct android_output *output;
+  struct window *w;
+  struct buffer *b;
+  char *text;
+  ptrdiff_t length, bytes, offset, start, end, mark;
+  jstring string;
+  int flags;
+  unsigned long counter;
+
+  output = FRAME_ANDROID_OUTPUT (f);
+
+  if (!output->text_mirror_enabled
+      || !WINDOW_LIVE_P (f->old_selected_window))
+    return;
+
+  w = XWINDOW (f->old_selected_window);
+  b = XBUFFER (w->contents);
+
+  if (!force
+      && output->text_mirror_modiff == BUF_CHARS_MODIFF (b)
+      && output->text_mirror_serial == android_redisplayed_key_serial)
+    return;
+
+  counter = __atomic_load_n (&last_edit_counter, __ATOMIC_SEQ_CST);
+
+  if (!NILP (BVAR (b, mark_active))
+      && XMARKER (BVAR (b, mark))->buffer)
+    {
+      mark = marker_position (BVAR (b, mark));
+
+      if (eabs (mark - w->ephemeral_last_point)
+	  > ANDROID_TEXT_MIRROR_REGION_LENGTH)
+	{
+	  android_update_text_mirror (FRAME_ANDROID_WINDOW (f), NULL,
+				      0, 0, 0, 0, counter,
+				      android_redisplayed_key_serial);
+	  output->text_mirror_modiff = BUF_CHARS_MODIFF (b);
+	  output->text_mirror_serial = android_redisplayed_key_serial;
+	  return;
+	}
+    }
+
+  text = get_surrounding_text (f, ANDROID_TEXT_MIRROR_LENGTH,
+			       ANDROID_TEXT_MIRROR_LENGTH, &length,
+			       &bytes, &offset, &start, &end);
+
+  if (!text)
+    return;
+
+  string = android_text_to_string (android_java_env, text, length,
+				   bytes);
+  xfree (text);
+  android_exception_check ();
+
+  /* Say whether the mark is active, and whether the text extends to
+     either end of the field, so that the input method can tell how
+     much text exists beyond it.  */
+
+  flags = 0;
+
+  if (!NILP (BVAR (b, mark_active)))
+    flags |= ANDROID_TEXT_MIRROR_MARK_ACTIVE;
+
+  if (min (start, end) < ANDROID_TEXT_MIRROR_LENGTH)
+    flags |= ANDROID_TEXT_MIRROR_FIELD_START;
+
+  if (length - max (start, end) < ANDROID_TEXT_MIRROR_LENGTH)
+    flags |= ANDROID_TEXT_MIRROR_FIELD_END;
+
+  /* Convert OFFSET to Android's 0-based indexing.  */
+  android_update_text_mirror (FRAME_ANDROID_WINDOW (f), string,
+			      offset - 1, start, end, flags, counter,
+			      android_redisplayed_key_serial);
+  ANDROID_DELETE_LOCAL_REF (string);
+
+  output->text_mirror_modiff = BUF_CHARS_MODIFF (b);
+  output->text_mirror_serial = android_redisplayed_key_serial;
+}
+
 /* Tell the input method where the composing region and selection of
    F's selected window is located.  W should be F's selected window;
    if it is NULL, then F->selected_window is used in its place.  */
@@ -6407,6 +6703,9 @@ android_update_selection (struct frame *f, struct window *w)
   android_update_ic (FRAME_ANDROID_WINDOW (f), min (point, mark),
 		     max (point, mark), start, end);
 
+  /* Update the text mirrored for the input method as well.  */
+  android_refresh_text_mirror (f, true);
+
   /* Update the extracted text as well, if the input method has asked
      for updates.  1 is InputConnection.GET_EXTRACTED_TEXT_MONITOR.  */
 
@@ -6519,6 +6818,11 @@ android_reset_conversion (struct frame *f)
 
   android_reset_ic (FRAME_ANDROID_WINDOW (f), mode);
 
+  /* Mirror the text around point for input methods, unless they
+     have been disabled or are editing a password.  */
+  FRAME_ANDROID_OUTPUT (f)->text_mirror_enabled
+    = (mode == ANDROID_IC_MODE_TEXT || mode == ANDROID_IC_MODE_ACTION);
+
   /* Clear extracted text flags.  Since the IM has been reinitialized,
      it should no longer be displaying extracted text.  */
   FRAME_ANDROID_OUTPUT (f)->extracted_text_flags = 0;
@@ -6775,6 +7079,11 @@ android_term_init (void)
 #ifndef ANDROID_STUBIFY
   sem_init (&edit_sem, false, 0);
   register_textconv_interface (&text_conversion_interface);
+
+  /* Provide the UI thread with the value of `android-quit-keycode'
+     as of startup; `android_watch_quit_keycode' reports subsequent
+     changes.  */
+  android_set_quit_keycode (android_quit_keycode);
 #endif /* !ANDROID_STUBIFY */
 
   /* Binding certain key events in the terminal's `input-decode-map',
@@ -6900,6 +7209,24 @@ android_set_build_fingerprint (void)
 #endif /* ANDROID_STUBIFY */
 }
 
+#ifndef ANDROID_STUBIFY
+
+/* Watch changes to `android-quit-keycode', and relay its new value
+   NEWVAL to the UI thread, which consults it each time a key is
+   released.  */
+
+static Lisp_Object
+android_watch_quit_keycode (Lisp_Object symbol, Lisp_Object newval,
+			    Lisp_Object operation, Lisp_Object where)
+{
+  if (android_init_gui && FIXNUMP (newval))
+    android_set_quit_keycode (XFIXNUM (newval));
+
+  return Qnil;
+}
+
+#endif /* !ANDROID_STUBIFY */
+
 void
 syms_of_androidterm (void)
 {
@@ -6932,6 +7259,19 @@ unavailable, or if another key must otherwise serve this function
   - 4  (KEYCODE_BACK)
   - 24 (KEYCODE_VOLUME_UP)  */);
   android_quit_keycode = 25;
+  DEFSYM (Qandroid_quit_keycode, "android-quit-keycode");
+
+#ifndef ANDROID_STUBIFY
+  /* Relay changes to this variable to the UI thread.  */
+  Lisp_Object watcher;
+
+  static union Aligned_Lisp_Subr Swatch_quit_keycode =
+     {{{ PSEUDOVECTOR_FLAG | (PVEC_SUBR << PSEUDOVECTOR_AREA_BITS) },
+       { .a4 = android_watch_quit_keycode },
+       4, 4, "android_watch_quit_keycode", {0}, lisp_h_Qnil}};
+  XSETSUBR (watcher, &Swatch_quit_keycode.s);
+  Fadd_variable_watcher (Qandroid_quit_keycode, watcher);
+#endif /* !ANDROID_STUBIFY */
 
   DEFVAR_BOOL ("x-use-underline-position-properties",
 	       x_use_underline_position_properties,
@@ -7000,6 +7340,9 @@ for instance, `early-init.el', or they will be of no effect.  */);
   DEFSYM (Quri, "uri");
   DEFSYM (Qtext, "text");
 
+  /* Symbol defined for file opening events.  */
+  DEFSYM (Qandroid_open_file, "android-open-file");
+
   /* Symbols defined for modifier value reassignment.  */
   DEFSYM (Qmodifier_value, "modifier-value");
   DEFSYM (Qctrl, "ctrl");
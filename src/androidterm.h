@@ -272,6 +272,14 @@ struct android_output
 
   /* The number of characters of extracted text wanted by the IM.  */
   int extracted_text_hint;
+
+  /* Whether the text around point is mirrored for the input method,
+     and the serial of the last key event processed and the number of
+     modifications made to the buffer from which that text was taken
+     when it was last mirrored.  */
+  bool_bf text_mirror_enabled : 1;
+  unsigned long text_mirror_serial;
+  modiff_count text_mirror_modiff;
 };
 
 enum
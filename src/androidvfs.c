@@ -284,25 +284,12 @@ struct android_cursor_class
   jmethodID close;
 };
 
-/* Structure describing the EmacsDirectoryEntry class.  */
-
-struct emacs_directory_entry_class
-{
-  jclass class;
-  jfieldID d_type;
-  jfieldID d_name;
-};
-
 /* The java.lang.String class.  */
 jclass java_string_class;
 
 /* Fields and methods associated with the Cursor class.  */
 static struct android_cursor_class cursor_class;
 
-/* Fields and methods associated with the EmacsDirectoryEntry
-   class.  */
-static struct emacs_directory_entry_class entry_class;
-
 /* Fields and methods associated with the ParcelFileDescriptor
    class.  */
 struct android_parcel_file_descriptor_class fd_class;
@@ -342,35 +329,6 @@ android_init_cursor_class (JNIEnv *env)
 #undef FIND_METHOD
 }
 
-/* Initialize `entry_class' using the given JNI environment ENV.
-   Calling this function is not necessary on Android 4.4 and
-   earlier.  */
-
-static void
-android_init_entry_class (JNIEnv *env)
-{
-  jclass old;
-
-  entry_class.class
-    = (*env)->FindClass (env, "org/gnu/emacs/EmacsDirectoryEntry");
-  eassert (entry_class.class);
-
-  old = entry_class.class;
-  entry_class.class
-    = (jclass) (*env)->NewGlobalRef (env, (jobject) old);
-  (*env)->DeleteLocalRef (env, old);
-
-  if (!entry_class.class)
-    emacs_abort ();
-
-  entry_class.d_type = (*env)->GetFieldID (env, entry_class.class,
-					   "d_type", "I");
-  entry_class.d_name = (*env)->GetFieldID (env, entry_class.class,
-					   "d_name",
-					   "Ljava/lang/String;");
-  assert (entry_class.d_type && entry_class.d_name);
-}
-
 
 /* Initialize `fd_class' using the given JNI environment ENV.  Called on
    API 12 (Android 3.1) and later by androidselect.c and on 5.0 and
@@ -2919,18 +2877,22 @@ android_content_initial (char *name, size_t length)
 
 JNIEXPORT jstring JNICALL
 NATIVE_NAME (displayNameHash) (JNIEnv *env, jobject object,
-			       jbyteArray display_name)
+			       jbyteArray display_name, jint length)
 {
   char checksum[9], block[MD5_DIGEST_SIZE];
   jbyte *data;
 
+  /* DISPLAY_NAME is a buffer that is reused between calls, of which
+     only the first LENGTH bytes are significant.  */
+  if (length < 0 || length > (*env)->GetArrayLength (env, display_name))
+    return NULL;
+
   data = (*env)->GetByteArrayElements (env, display_name, NULL);
   if (!data)
     return NULL;
 
   /* Hash the buffer.  */
-  md5_buffer ((char *) data, (*env)->GetArrayLength (env, display_name),
-	      block);
+  md5_buffer ((char *) data, length, block);
   (*env)->ReleaseByteArrayElements (env, display_name, data, JNI_ABORT);
 
   /* Generate the digest string.  */
@@ -4461,6 +4423,15 @@ android_saf_delete_document (const char *tree, const char *doc_id,
   jmethodID method;
   jint rc;
 
+  /* Now guarantee that it is safe to call functions which
+     synchronize with the SAF thread.  */
+
+  if (inside_saf_critical_section)
+    {
+      errno = EIO;
+      return -1;
+    }
+
   /* Build the strings holding the ID, URI and NAME.  */
   id = (*android_java_env)->NewStringUTF (android_java_env,
 					  doc_id);
@@ -4474,11 +4445,13 @@ android_saf_delete_document (const char *tree, const char *doc_id,
 
   /* Now, try to delete the document.  */
   method = service_class.delete_document;
+  inside_saf_critical_section = true;
   rc = (*android_java_env)->CallNonvirtualIntMethod (android_java_env,
 						     emacs_service,
 						     service_class.class,
 						     method, uri, id,
 						     name);
+  inside_saf_critical_section = false;
 
   if (android_saf_exception_check (3, id, uri, name))
     return -1;
@@ -4520,6 +4493,15 @@ android_saf_rename_document (const char *uri, const char *doc_id,
   jstring uri1, doc_id1, dir1, name1;
   jmethodID method;
 
+  /* Now guarantee that it is safe to call functions which
+     synchronize with the SAF thread.  */
+
+  if (inside_saf_critical_section)
+    {
+      errno = EIO;
+      return -1;
+    }
+
   /* Now build the strings for the URI, document ID, directory name
      and directory ID.  */
 
@@ -4533,11 +4515,13 @@ android_saf_rename_document (const char *uri, const char *doc_id,
   android_exception_check_3 (dir1, doc_id1, uri1);
 
   method = service_class.rename_document;
+  inside_saf_critical_section = true;
   rc = (*android_java_env)->CallNonvirtualIntMethod (android_java_env,
 						     emacs_service,
 						     service_class.class,
 						     method, uri1, doc_id1,
 						     dir1, name1);
+  inside_saf_critical_section = false;
 
   /* Check for exceptions.  */
 
@@ -4592,6 +4576,15 @@ android_saf_move_document (const char *uri, char **doc_id,
   int rc;
   const char *new_id;
 
+  /* Now guarantee that it is safe to call functions which
+     synchronize with the SAF thread.  */
+
+  if (inside_saf_critical_section)
+    {
+      errno = EIO;
+      return -1;
+    }
+
   /* Obtain the name of the source directory.  */
   src_id = NULL;
   rc = android_document_id_from_name (uri, dir_name, &src_id);
@@ -4633,6 +4626,7 @@ android_saf_move_document (const char *uri, char **doc_id,
 
   /* Do the rename.  */
   method = service_class.move_document;
+  inside_saf_critical_section = true;
   result
     = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
 						       emacs_service,
@@ -4640,6 +4634,7 @@ android_saf_move_document (const char *uri, char **doc_id,
 						       method, uri1,
 						       doc_id1, dir_name1,
 						       dst_id1, src_id1);
+  inside_saf_critical_section = false;
   if (android_saf_exception_check (5, src_id1, dst_id1, dir_name1,
 				   doc_id1, uri1))
     {
@@ -4726,11 +4721,21 @@ struct android_saf_tree_vdir
      stream.  */
   jobject cursor;
 
+  /* Buffer holding directory entries read from CURSOR in advance, in
+     the format produced by `readDirectoryEntries', the number of bytes
+     within, and the position of the next entry.  */
+  char *entries;
+  size_t entries_size, entries_pos;
+
   /* The ``directory'' file descriptor used to identify this directory
      stream, or -1.  */
   int fd;
 };
 
+/* Number of directory entries read from a directory cursor at a
+   time.  */
+#define SAF_DIRENT_BATCH_SIZE 128
+
 static struct android_vnode *android_saf_tree_name (struct android_vnode *,
 						    char *, size_t);
 static int android_saf_tree_open (struct android_vnode *, int,
@@ -5533,63 +5538,67 @@ android_saf_tree_readdir (struct android_vdir *vdir)
 {
   struct android_saf_tree_vdir *dir;
   static struct dirent *dirent;
-  jobject entry, d_name;
-  jint d_type;
+  jbyteArray array;
   jmethodID method;
   size_t length, size;
   const char *chars;
+  bool d_type;
   struct coding_system coding;
 
   dir = (struct android_saf_tree_vdir *) vdir;
 
-  /* Try to read one entry from the cursor.  */
-  method = service_class.read_directory_entry;
-  entry
-    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
-						       emacs_service,
-						       service_class.class,
-						       method, dir->cursor);
-  android_exception_check ();
+  /* If every entry read previously has been returned, read another
+     batch from the cursor.  */
 
-  /* If ENTRY is NULL, we're at the end of the directory.  */
-
-  if (!entry)
+  if (dir->entries_pos >= dir->entries_size)
     {
-      xfree (entry);
-      entry = NULL;
-      return NULL;
-    }
+      method = service_class.read_directory_entries;
+      array
+	= (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+							   emacs_service,
+							   service_class.class,
+							   method, dir->cursor,
+							   (jint) SAF_DIRENT_BATCH_SIZE);
+      android_exception_check ();
 
-  /* Load both fields from ENTRY.  */
-  d_name = (*android_java_env)->GetObjectField (android_java_env, entry,
-						entry_class.d_name);
-  if (!d_name)
-    {
-      /* If an error transpires, d_name is set to NULL.  */
-      (*android_java_env)->ExceptionClear (android_java_env);
-      ANDROID_DELETE_LOCAL_REF (entry);
+      /* If ARRAY is NULL, we're at the end of the directory.  */
 
-      /* XXX: what would be a better error indication? */
-      errno = EIO;
-      return NULL;
-    }
+      if (!array)
+	return NULL;
 
-  /* d_type is 1 if this is a directory, and 0 if it's a regular
-     file.  */
-  d_type = (*android_java_env)->GetIntField (android_java_env, entry,
-					     entry_class.d_type);
-  ANDROID_DELETE_LOCAL_REF (entry);
+      length = (*android_java_env)->GetArrayLength (android_java_env,
+						    array);
 
-  /* Copy the name of the directory over.  */
-  chars = (*android_java_env)->GetStringUTFChars (android_java_env,
-						  (jstring) d_name,
-						  NULL);
-  android_exception_check_nonnull ((void *) chars, d_name);
+      if (!length)
+	{
+	  /* If an error transpires, ARRAY is empty.  */
+	  ANDROID_DELETE_LOCAL_REF (array);
 
-  /* Decode this JNI string into utf-8-emacs; see
-     android_vfs_convert_name for considerations regarding coding
-     systems.  */
+	  /* XXX: what would be a better error indication? */
+	  errno = EIO;
+	  return NULL;
+	}
+
+      /* Copy the entries into DIR's buffer.  */
+      dir->entries = xrealloc (dir->entries, length);
+      (*android_java_env)->GetByteArrayRegion (android_java_env, array,
+					       0, length,
+					       (jbyte *) dir->entries);
+      ANDROID_DELETE_LOCAL_REF (array);
+      dir->entries_size = length;
+      dir->entries_pos = 0;
+    }
+
+  /* The first byte of each entry is 1 if it is a directory, and 0 if
+     it's a regular file.  The NULL-terminated name follows, in the
+     modified UTF-8 encoding used by JNI strings.  */
+  d_type = dir->entries[dir->entries_pos];
+  chars = dir->entries + dir->entries_pos + 1;
   length = strlen (chars);
+  dir->entries_pos += length + 2;
+
+  /* Decode this name into utf-8-emacs; see android_vfs_convert_name
+     for considerations regarding coding systems.  */
   setup_coding_system (Qandroid_jni, &coding);
   coding.mode |= CODING_MODE_LAST_BLOCK;
   coding.source = (const unsigned char *) chars;
@@ -5597,11 +5606,6 @@ android_saf_tree_readdir (struct android_vdir *vdir)
   coding.destination = NULL;
   decode_coding_object (&coding, Qnil, 0, 0, length, length, Qnil);
 
-  /* Release the string data and the local reference to STRING.  */
-  (*android_java_env)->ReleaseStringUTFChars (android_java_env,
-					      (jstring) d_name,
-					      chars);
-
   /* Resize dirent to accommodate the decoded text.  */
   size   = offsetof (struct dirent, d_name) + 1 + coding.produced;
   dirent = xrealloc (dirent, size);
@@ -5620,8 +5624,6 @@ android_saf_tree_readdir (struct android_vdir *vdir)
 
   /* Free the coding system destination buffer.  */
   xfree (coding.destination);
-
-  ANDROID_DELETE_LOCAL_REF (d_name);
   return dirent;
 }
 
@@ -5635,6 +5637,7 @@ android_saf_tree_closedir (struct android_vdir *vdir)
   /* dir->name is allocated by asprintf, which uses regular
      malloc.  */
   free (dir->name);
+  xfree (dir->entries);
 
   /* Yes, DIR->cursor is a local reference.  */
   (*android_java_env)->CallVoidMethod (android_java_env,
@@ -5752,6 +5755,9 @@ android_saf_tree_opendir (struct android_vnode *vnode)
     }
 
   dir->cursor = cursor;
+  dir->entries = NULL;
+  dir->entries_size = 0;
+  dir->entries_pos = 0;
   dir->fd = -1;
   dir->next = all_saf_tree_vdirs;
   all_saf_tree_vdirs = dir;
@@ -7007,7 +7013,6 @@ android_vfs_init (JNIEnv *env, jobject manager)
     return;
 
   android_init_cursor_class (env);
-  android_init_entry_class (env);
   android_init_fd_class (env);
 
   /* Initialize the semaphore used to wait for SAF operations to
@@ -7941,10 +7946,279 @@ files will be removed.  */)
 
 
 
+/* The names of the counters within the statistics returned by
+   `getStorageStatistics', and those of the operations whose durations
+   are recorded after them, in the order in which they appear.  */
+
+static const char *saf_statistics_counters[] =
+  {
+    ":stat-hits", ":stat-misses", ":name-hits", ":name-misses",
+    ":evictions", ":quits", ":prefetches", ":prefetched",
+    ":prefetch-hits",
+  };
+
+static const char *saf_statistics_operations[] =
+  {
+    "document-id-from-name", "stat", "access", "open-directory",
+    "open", "create", "rename", "move", "delete",
+  };
+
+/* Return a property list of the statistics within ARRAY, an array of
+   LENGTH longs, as returned by `getStorageStatistics'.  */
+
+static Lisp_Object
+android_saf_statistics_plist (jlong *array, jsize length)
+{
+  Lisp_Object plist, latencies, histogram;
+  size_t i;
+  jsize pos;
+  jlong j, n;
+
+  plist = Qnil;
+  pos = 0;
+
+  for (i = 0; i < ARRAYELTS (saf_statistics_counters); ++i)
+    {
+      if (pos >= length)
+	return Fnreverse (plist);
+
+      plist = Fcons (intern_c_string (saf_statistics_counters[i]),
+		     plist);
+      plist = Fcons (make_int (array[pos++]), plist);
+    }
+
+  latencies = Qnil;
+
+  for (i = 0; i < ARRAYELTS (saf_statistics_operations); ++i)
+    {
+      if (pos >= length)
+	break;
+
+      n = array[pos++];
+      histogram = Qnil;
+
+      for (j = 0; j < n && pos + 1 < length; ++j, pos += 2)
+	histogram = Fcons (Fcons (make_int (array[pos]),
+				  make_int (array[pos + 1])),
+			   histogram);
+
+      latencies
+	= Fcons (Fcons (intern_c_string (saf_statistics_operations[i]),
+			Fnreverse (histogram)),
+		 latencies);
+    }
+
+  plist = Fcons (intern_c_string (":latencies"), plist);
+  plist = Fcons (Fnreverse (latencies), plist);
+  return Fnreverse (plist);
+}
+
+DEFUN ("android-storage-statistics", Fandroid_storage_statistics,
+       Sandroid_storage_statistics, 0, 0, 0,
+       doc: /* Return statistics describing accesses to document trees.
+Value is a list of elements of the form (AUTHORITY . PLIST), one for
+each document provider whose directories Emacs has accessed in this
+session, where AUTHORITY is the name of the provider and PLIST is a
+property list with the following properties:
+
+  `:stat-hits', `:stat-misses'
+    Number of requests for file status satisfied and not satisfied
+    from the cache.
+  `:name-hits', `:name-misses'
+    Number of components of file names located with and without
+    searching their directories.
+  `:evictions'
+    Number of cache entries removed after expiring.
+  `:quits'
+    Number of operations canceled by quitting.
+  `:prefetches', `:prefetched', `:prefetch-hits'
+    Number of directories whose children's status was retrieved at
+    once, the number of entries thus entered into the cache, and the
+    number of those subsequently used.
+  `:latencies'
+    An alist of (OPERATION . HISTOGRAM), where OPERATION is one of the
+    symbols `document-id-from-name', `stat', `access', `open-directory',
+    `open', `create', `rename', `move' and `delete', and HISTOGRAM is a
+    list of elements (MICROSECONDS . COUNT), each stating that COUNT
+    operations took at least MICROSECONDS, but less time than that
+    given by the next element.  */)
+  (void)
+{
+  jobjectArray array;
+  jobject authority;
+  jlongArray counts;
+  jsize length, count_length, i;
+  jlong *longs;
+  const char *chars;
+  Lisp_Object value, name;
+  specpdl_ref count;
+
+  if (android_get_current_api_level () < 21
+      || !android_init_gui)
+    return Qnil;
+
+  array
+    = (*android_java_env)->CallNonvirtualObjectMethod (android_java_env,
+						       emacs_service,
+						       service_class.class,
+						       service_class.get_storage_statistics);
+  android_exception_check ();
+
+  length = (*android_java_env)->GetArrayLength (android_java_env,
+						array);
+  value = Qnil;
+
+  for (i = 0; i + 1 < length; i += 2)
+    {
+      /* Read the name of this authority.  */
+
+      authority
+	= (*android_java_env)->GetObjectArrayElement (android_java_env,
+						      array, i);
+      android_exception_check_1 (array);
+
+      chars = (*android_java_env)->GetStringUTFChars (android_java_env,
+						      (jstring) authority,
+						      NULL);
+      android_exception_check_nonnull_1 ((void *) chars, authority,
+					 array);
+      name = build_string (chars);
+      (*android_java_env)->ReleaseStringUTFChars (android_java_env,
+						  (jstring) authority,
+						  chars);
+      ANDROID_DELETE_LOCAL_REF (authority);
+
+      /* Copy its statistics.  */
+
+      counts
+	= (*android_java_env)->GetObjectArrayElement (android_java_env,
+						      array, i + 1);
+      android_exception_check_1 (array);
+
+      count_length
+	= (*android_java_env)->GetArrayLength (android_java_env,
+					       counts);
+      count = SPECPDL_INDEX ();
+      longs = xnmalloc (max (count_length, 1), sizeof *longs);
+      record_unwind_protect_ptr (xfree, longs);
+      (*android_java_env)->GetLongArrayRegion (android_java_env,
+					       counts, 0, count_length,
+					       longs);
+      ANDROID_DELETE_LOCAL_REF (counts);
+
+      value = Fcons (Fcons (name,
+			    android_saf_statistics_plist (longs,
+							  count_length)),
+		     value);
+      unbind_to (count, Qnil);
+    }
+
+  ANDROID_DELETE_LOCAL_REF (array);
+  return Fnreverse (value);
+}
+
+DEFUN ("android-sync-documents", Fandroid_sync_documents,
+       Sandroid_sync_documents, 0, 0, 0,
+       doc: /* Wait for files written to document trees to be saved.
+When `android-write-behind-documents' is non-nil, files saved within
+directories provided by the Storage Access Framework are first written
+to the cache directory, and copied into their document providers in the
+background.  Wait for each such copy to complete, and signal an error
+if any has failed.  */)
+  (void)
+{
+  if (android_get_current_api_level () < 21
+      || !android_init_gui)
+    return Qnil;
+
+  /* Now guarantee that it is safe to call functions which
+     synchronize with the SAF thread.  */
+
+  if (inside_saf_critical_section)
+    {
+      errno = EIO;
+      report_file_error ("Saving documents", Qnil);
+    }
+
+  inside_saf_critical_section = true;
+  (*android_java_env)->CallNonvirtualVoidMethod (android_java_env,
+						 emacs_service,
+						 service_class.class,
+						 service_class.sync_documents);
+  inside_saf_critical_section = false;
+
+  if (android_saf_exception_check (0))
+    report_file_error ("Saving documents", Qnil);
+
+  return Qnil;
+}
+
+
+
 void
 syms_of_androidvfs (void)
 {
   DEFSYM (Qandroid_jni, "android-jni");
 
   defsubr (&Sandroid_relinquish_directory_access);
+  defsubr (&Sandroid_storage_statistics);
+  defsubr (&Sandroid_sync_documents);
+
+  DEFVAR_BOOL ("android-persistent-document-cache",
+	       android_persistent_document_cache,
+    doc: /* Whether to retain the locations of files in document trees.
+When non-nil, the document identifiers Emacs assigns to the names of
+files within directories provided by the Storage Access Framework are
+saved in a file within the cache directory, and reused in subsequent
+sessions, so that files previously visited can be located again without
+searching each of their parent directories.
+
+Each identifier thus saved is verified before it is used, and those
+within directories to which access has been relinquished are discarded.
+This variable must be set before any such directory is first accessed
+to take effect, such as in your early init file.  */);
+  android_persistent_document_cache = false;
+
+  DEFVAR_BOOL ("android-spool-documents", android_spool_documents,
+    doc: /* Whether to copy documents that cannot be seeked into local files.
+Some document providers, particularly those that retrieve files from
+remote servers, supply the contents of documents opened for reading
+through pipes.  Such documents cannot be seeked, and must be retrieved
+afresh each time they are opened.
+
+When non-nil, the contents of these documents are copied into files
+within the cache directory when they are opened, and these copies are
+reused until the documents are modified.  */);
+  android_spool_documents = false;
+
+  DEFVAR_BOOL ("android-write-behind-documents",
+	       android_write_behind_documents,
+    doc: /* Whether to save documents through files in the cache directory.
+Writing to a document provider, particularly one that transmits files
+to a remote server, can be much slower than writing to a local file.
+When non-nil, files within directories provided by the Storage Access
+Framework that are written in their entirety are first saved into
+files within the cache directory, and copied into their document
+providers in the background once closed.
+
+Operations on a document wait for any such copy to complete, and if it
+fails, the next operation on that document signals an error.  Use
+`android-sync-documents' to wait for every copy to complete.
+
+Copies interrupted by Emacs's exit are resumed when it next starts.  If
+Emacs exits while a file is still being written, or a resumed copy
+fails, the file is kept within the cache directory, and the next
+operation on its document signals an error naming it; it is deleted
+once that document is written again.  */);
+  android_write_behind_documents = false;
+
+  DEFVAR_BOOL ("android-index-document-contents",
+	       android_index_document_contents,
+    doc: /* Whether to index the contents of files for other programs to search.
+Emacs provides other programs with access to its home directory, which
+they can search for files by name.  When non-nil, the contents of text
+files within that directory are also indexed, so that files containing
+a search string are found as well.  Enabling this requires more memory,
+and takes effect only if set before the directory is first searched.  */);
+  android_index_document_contents = false;
 }
@@ -0,0 +1,138 @@
+/* Benchmark of the record of key event strings.  -*- c-file-style: "GNU" -*-
+
+Copyright (C) 2025 Free Software Foundation, Inc.
+
+This file is part of GNU Emacs.
+
+GNU Emacs is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+GNU Emacs is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with GNU Emacs.  If not, see <https://www.gnu.org/licenses/>.  */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gnu.emacs.EmacsEventStrings;
+
+
+
+/* Measure the time taken to save and look up the strings of key
+   events in an EmacsEventStrings, which does not depend on the
+   Android libraries, and so can be run on any JVM.  Say
+
+     make perf
+
+   in this directory.
+
+   One thread saves strings as the UI thread does, while another
+   looks each up as the Emacs thread does.  The saving thread is held
+   no more than half the capacity of the ring buffer ahead of the
+   other, as events are read long before that many more arrive.  Each
+   string retrieved is verified to be that saved with its serial.  */
+
+public final class EventStringsBench
+{
+  /* Number of events saved in each run.  */
+  private static final int EVENTS = 4000000;
+
+  /* How far the saving thread may run ahead of the other.  */
+  private static final int MAX_AHEAD = 8;
+
+  /* Number of runs, the first of which warms up the JVM.  */
+  private static final int RUNS = 5;
+
+  /* Run the benchmark once, and return the time taken in
+     nanoseconds.  */
+
+  private static long
+  run (final String[] strings)
+  {
+    final EmacsEventStrings record;
+    final AtomicLong consumed;
+    Thread saver;
+    long start, end;
+    int serial;
+    String string;
+
+    record = new EmacsEventStrings ();
+    consumed = new AtomicLong ();
+
+    saver = new Thread () {
+	@Override
+	public void
+	run ()
+	{
+	  int serial;
+
+	  for (serial = 1; serial <= EVENTS; ++serial)
+	    {
+	      while (serial - consumed.get () > MAX_AHEAD)
+		Thread.yield ();
+
+	      record.beginSave ();
+	      record.save (serial, strings[serial & (strings.length - 1)]);
+	      record.endSave ();
+	    }
+	}
+      };
+
+    start = System.nanoTime ();
+    saver.start ();
+
+    for (serial = 1; serial <= EVENTS; ++serial)
+      {
+	/* The event might not yet have been saved.  */
+
+	while ((string = record.lookup (serial)) == null)
+	  Thread.yield ();
+
+	if (string != strings[serial & (strings.length - 1)])
+	  throw new AssertionError ("Wrong string for event " + serial);
+
+	consumed.lazySet (serial);
+      }
+
+    end = System.nanoTime ();
+
+    try
+      {
+	saver.join ();
+      }
+    catch (InterruptedException e)
+      {
+	throw new RuntimeException (e);
+      }
+
+    return end - start;
+  }
+
+  public static void
+  main (String[] args)
+  {
+    String[] strings;
+    long time;
+    int i;
+
+    /* The number of strings must be a power of two.  */
+    strings = new String[64];
+
+    for (i = 0; i < strings.length; ++i)
+      strings[i] = String.valueOf ((char) ('0' + i));
+
+    for (i = 0; i < RUNS; ++i)
+      {
+	time = run (strings);
+
+	if (i > 0)
+	  System.out.printf ("run %d: %d events, %.1f ns per event\n",
+			     i, EVENTS, (double) time / EVENTS);
+      }
+  }
+};